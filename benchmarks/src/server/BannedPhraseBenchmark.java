@@ -0,0 +1,90 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Moderation cost per message: the compiled matcher against the per-phrase contains loop it replaced
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class BannedPhraseBenchmark {
+    @Param({"10", "1000", "10000"})
+    int phraseCount;
+
+    @Param({"32", "512", "4096"})
+    int messageLength;
+
+    private Set<String> phrases;
+    private BannedPhraseMatcher matcher;
+    private String cleanMessage;
+    private String bannedMessage;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42); // Fixed seed so results are comparable across commits
+        phrases = new LinkedHashSet<>();
+        while (phrases.size() < phraseCount) {
+            phrases.add(word(random, 5 + random.nextInt(6)));
+        }
+        matcher = new BannedPhraseMatcher(phrases);
+
+        StringBuilder message = new StringBuilder();
+        while (message.length() < messageLength) {
+            message.append(word(random, 1 + random.nextInt(8))).append(' ');
+        }
+        cleanMessage = message.substring(0, messageLength);
+        List<String> phraseList = new ArrayList<>(phrases);
+        String phrase = phraseList.get(random.nextInt(phraseList.size()));
+        int middle = Math.max(0, messageLength / 2 - phrase.length());
+        bannedMessage = cleanMessage.substring(0, middle) + phrase + cleanMessage.substring(middle + phrase.length());
+    }
+
+    @Benchmark
+    public List<String> matcherClean() {
+        return matcher.findAll(cleanMessage);
+    }
+
+    @Benchmark
+    public List<String> matcherBanned() {
+        return matcher.findAll(bannedMessage);
+    }
+
+    // The check the matcher replaced, kept as a reference point
+    @Benchmark
+    public List<String> containsLoopClean() {
+        List<String> found = new ArrayList<>();
+        for (String phrase : phrases) {
+            if (cleanMessage.contains(phrase)) {
+                found.add(phrase);
+            }
+        }
+        return found.isEmpty() ? null : found;
+    }
+
+    private static String word(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,65 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// A server with fake connections, so benchmarks run the real protocol code without sockets
+final class BenchmarkServers {
+    // Connection that encodes what it is sent, like a writer would, and counts it
+    static final class NullConnection implements Connection {
+        long messages;
+        long bytes;
+
+        @Override
+        public void send(Payload payload) {
+            messages++;
+            bytes += payload.length(false);
+        }
+
+        @Override
+        public int queuedMessages() {
+            return 0;
+        }
+
+        @Override
+        public void switchToBinary() {
+        }
+
+        @Override
+        public void disconnectOnOverflow() {
+        }
+
+        @Override
+        public void enableCompression(Compression compression) {
+        }
+
+        @Override
+        public void closeAfterFlush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private BenchmarkServers() {
+    }
+
+    // Server configured with the given comma separated banned phrases, it is never started
+    static Server newServer(String bannedPhrases) throws IOException {
+        Path config = Files.createTempFile("server_config", ".txt");
+        config.toFile().deleteOnExit();
+        Files.writeString(config, "port=0\nserverName=benchmark\nbannedPhrases=" + bannedPhrases + "\n");
+        return new Server(config.toString());
+    }
+
+    // Log a client in over a fake connection
+    static Connection.Handler login(Server server, String name, Connection connection) {
+        Connection.Handler handler = server.newClientHandler(connection);
+        handler.onLine(ByteBuffer.wrap(name.getBytes(StandardCharsets.UTF_8)));
+        return handler;
+    }
+}
@@ -0,0 +1,98 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Cost of routing one message through ClientHandler to every registered recipient, without sockets
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class FanOutBenchmark {
+    private static final int ADDRESSED_USERS = 10; // Recipients named in INCLUDE and EXCLUDE lines
+
+    @Param({"10", "100", "1000", "10000"})
+    int recipients;
+
+    private Server server;
+    private Connection.Handler sender;
+    private BenchmarkServers.NullConnection senderConnection;
+    private List<String> names;
+    private byte[] broadcastLine;
+    private byte[] includeLine;
+    private byte[] excludeLine;
+    private long version;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = BenchmarkServers.newServer("java,SAD,JNI");
+        names = new ArrayList<>();
+        for (int i = 0; i < recipients; i++) {
+            names.add("user" + i);
+        }
+        senderConnection = new BenchmarkServers.NullConnection();
+        sender = BenchmarkServers.login(server, names.get(0), senderConnection);
+        for (int i = 1; i < recipients; i++) {
+            BenchmarkServers.login(server, names.get(i), new BenchmarkServers.NullConnection());
+        }
+
+        List<String> addressed = names.subList(1, Math.min(recipients, ADDRESSED_USERS + 1));
+        broadcastLine = "hello everyone in the room".getBytes(StandardCharsets.UTF_8);
+        includeLine = ("INCLUDE:" + String.join(",", addressed) + ":hello selected users").getBytes(StandardCharsets.UTF_8);
+        excludeLine = ("EXCLUDE:" + String.join(",", addressed) + ":hello everyone else").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Global message: moderation, one encode, then one enqueue per recipient
+    @Benchmark
+    public long broadcast() {
+        sender.onLine(ByteBuffer.wrap(broadcastLine));
+        return senderConnection.messages;
+    }
+
+    // INCLUDE: parse the recipient list and deliver to the named users only
+    @Benchmark
+    public long include() {
+        sender.onLine(ByteBuffer.wrap(includeLine));
+        return senderConnection.messages;
+    }
+
+    // EXCLUDE: parse the excluded users and deliver to everyone else
+    @Benchmark
+    public long exclude() {
+        sender.onLine(ByteBuffer.wrap(excludeLine));
+        return senderConnection.messages;
+    }
+
+    // One user joining and leaving: snapshot rebuild, join/leave notices and presence deltas to everyone
+    @Benchmark
+    public long presenceChurn() {
+        BenchmarkServers.NullConnection connection = new BenchmarkServers.NullConnection();
+        Connection.Handler handler = BenchmarkServers.login(server, "churn", connection);
+        handler.onClose();
+        return connection.messages;
+    }
+
+    // Building and encoding the full user list sent on login and resync
+    @Benchmark
+    public int userList() {
+        return Payload.userList(++version, names).length(false);
+    }
+}
@@ -0,0 +1,751 @@
+package client;
+
+import protocol.Frames;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+// Headless connection to the chat server: handshake, login, sending and a listener thread.
+// Speaks the binary protocol when the server accepts it and falls back to text lines otherwise,
+// and compresses it when asked to and the server agrees.
+// If the server keeps sessions, a dropped connection is resumed where it left off without logging in again.
+// Heartbeats are answered here, and a server that misses several of them is taken for gone.
+// The Swing client and the load generator are both built on it.
+public class ChatConnection implements Closeable {
+    // Receives what the server sends, called from the listener thread, everything but chat messages is ignored by default
+    public interface Listener {
+        // Chat messages, server notices and errors, formatted the way the chat shows them
+        void onMessage(String message);
+
+        default void onUserList(long version, List<String> users) {
+        }
+
+        default void onPresence(long version, String user, boolean joined) {
+        }
+
+        // A message to one of our rooms, formatted like onMessage
+        default void onRoomMessage(String room, String message) {
+        }
+
+        // Members of a room we joined, sent when we join and when asked for
+        default void onRoomUserList(String room, long version, List<String> users) {
+        }
+
+        default void onRoomPresence(String room, long version, String user, boolean joined) {
+        }
+
+        default void onBannedWords(String bannedWords) {
+        }
+
+        default void onInstructions(String instructions) {
+        }
+
+        // A message from before we joined or asked for, formatted like onMessage
+        default void onHistory(long offset, String message) {
+        }
+
+        // The history reply is complete, nextOffset is where to continue with requestHistorySince
+        default void onHistoryEnd(long nextOffset) {
+        }
+
+        // The connection dropped and we are trying to get back, sends are dropped until onReconnected
+        default void onReconnecting() {
+        }
+
+        // Back on the server. Resumed with the missed messages replayed, or logged in again if the session
+        // was gone, which loses room memberships and the messages sent in between.
+        default void onReconnected(boolean resumed, long replayed) {
+        }
+
+        // The connection is gone, cause is null when the server closed it normally
+        default void onDisconnect(IOException cause) {
+        }
+    }
+
+    // The server turned the login down, the message is its ERROR: reply
+    public static class LoginRejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public LoginRejectedException(String message) {
+            super(message);
+        }
+    }
+
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 2000;
+    private static final int MISSED_HEARTBEATS = 3; // Silence for this many heartbeat intervals means the connection is dead
+
+    private final String username;
+    private final String serverIP; // Where to reconnect to
+    private final int port;
+    private final boolean tryBinary;
+    private final boolean tryCompression;
+    private Socket socket;
+    private DataOutputStream out; // For sending messages to the server
+    private DataInputStream in; // For receiving messages from the server
+    private CountingInputStream received; // Socket input, counts the bytes read from it
+    private boolean binary; // Server accepted the binary protocol, frames instead of lines
+    private Compression compression; // Server agreed to compression, which starts after the LOGIN frame
+    private DataInputStream frameBody; // Body of the frame readFrame returned last
+    private DataInputStream inflated; // Frames left over from the last COMPRESSED frame
+    private List<String> listParts; // Last USER_LIST or ROOM_USER_LIST, the _MORE frames right after it continue it
+    private String listPartsRoom; // Its room, null for USER_LIST
+    private long listPartsVersion;
+    private volatile String sessionToken; // Issued by the server on login, null if it doesn't keep sessions
+    private long graceSeconds; // How long the server keeps the session after the connection drops
+    private boolean awaitingLogin; // Reading the login reply, the only place a session token is taken from
+    private long messagesReceived; // Messages received since the session token, read and written by the reading thread only
+    private volatile boolean closing; // close() was called, don't reconnect
+    private volatile boolean reconnecting; // Sends are dropped until the new connection is up
+
+    private ChatConnection(String username, String serverIP, int port, boolean tryBinary, boolean tryCompression) {
+        this.username = username;
+        this.serverIP = serverIP;
+        this.port = port;
+        this.tryBinary = tryBinary;
+        this.tryCompression = tryCompression;
+    }
+
+    // Connect and log in, returns once the server has accepted the name.
+    // The join notice that answers the login is consumed here, call startListening for everything after it.
+    public static ChatConnection connect(String serverIP, int port, String username, boolean tryBinary) throws IOException {
+        return connect(serverIP, port, username, tryBinary, false);
+    }
+
+    // Same, also offering compression of the binary protocol. Worth it on slow links and for large rooms,
+    // it costs CPU and some memory per connection on both ends.
+    public static ChatConnection connect(String serverIP, int port, String username, boolean tryBinary,
+                                         boolean tryCompression) throws IOException {
+        ChatConnection connection = new ChatConnection(username, serverIP, port, tryBinary, tryCompression);
+        try {
+            connection.open();
+            connection.login();
+            return connection;
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private void open() throws IOException {
+        openSocket();
+        if (tryBinary) {
+            // Offer the binary protocol, a server that supports it echoes the handshake, or the plain one if it won't compress
+            writeLine(tryCompression ? Frames.HANDSHAKE_DEFLATE : Frames.HANDSHAKE);
+            String reply = readLine();
+            this.binary = Frames.HANDSHAKE.equals(reply) || (tryCompression && Frames.HANDSHAKE_DEFLATE.equals(reply));
+            if (tryCompression && Frames.HANDSHAKE_DEFLATE.equals(reply)) {
+                this.compression = new Compression();
+            }
+            if (!binary) {
+                // The server took the handshake for something else, start over with the text protocol
+                socket.close();
+                openSocket();
+            }
+        }
+    }
+
+    // Open the socket and its streams
+    private void openSocket() throws IOException {
+        this.socket = new Socket(serverIP, port);
+        socket.setTcpNoDelay(true);
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        long before = received == null ? 0 : received.count; // Keep counting across reconnects
+        this.received = new CountingInputStream(socket.getInputStream());
+        received.count = before;
+        this.in = new DataInputStream(new BufferedInputStream(received));
+    }
+
+    private void login() throws IOException {
+        // Send the username to the server as the first message
+        if (binary) {
+            Frames.write(out, Frames.LOGIN, username);
+        } else {
+            writeLine(username);
+        }
+
+        // Wait for a response from the server, a session token only counts as part of it
+        String response;
+        awaitingLogin = true;
+        try {
+            if (binary) {
+                int opcode = readFrame();
+                if (opcode < 0) {
+                    throw new IOException("Server closed the connection during login");
+                }
+                response = opcode == Frames.ERROR ? Frames.readString(frameBody) : null;
+            } else {
+                response = readMessage();
+                if (response == null) {
+                    throw new IOException("Server closed the connection during login");
+                }
+            }
+        } finally {
+            awaitingLogin = false;
+        }
+        if (response != null && response.startsWith("ERROR:")) {
+            throw new LoginRejectedException(response);
+        }
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public boolean isCompressed() {
+        return compression != null;
+    }
+
+    // Bytes received from the server so far, as they came over the wire
+    public long bytesReceived() {
+        return received == null ? 0 : received.count;
+    }
+
+    // Start a virtual thread that hands everything the server sends to the listener until the connection closes.
+    public Thread startListening(Listener listener) {
+        return Thread.ofVirtual().name("listener-" + username).start(() -> {
+            IOException cause;
+            do {
+                cause = null;
+                try {
+                    if (binary) {
+                        listenForFrames(listener);
+                    } else {
+                        listenForLines(listener);
+                    }
+                } catch (IOException e) {
+                    cause = e;
+                }
+            } while (!closing && sessionToken != null && reconnect(listener));
+            close();
+            listener.onDisconnect(cause);
+        });
+    }
+
+    // The connection dropped, get back into the session while the server keeps it, or log in again if it doesn't.
+    // Returns false if the server could not be reached in time.
+    private boolean reconnect(Listener listener) {
+        reconnecting = true;
+        listener.onReconnecting();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(graceSeconds);
+        long delay = 100;
+        while (!closing) {
+            try {
+                synchronized (this) {
+                    closeSocket();
+                    open();
+                }
+                long replayed = resume();
+                reconnecting = false;
+                listener.onReconnected(replayed >= 0, Math.max(0, replayed));
+                return true;
+            } catch (IOException e) {
+                if (System.nanoTime() - deadline > 0) {
+                    break;
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException interrupted) {
+                    break;
+                }
+                delay = Math.min(delay * 2, MAX_RECONNECT_DELAY_MILLIS);
+            }
+        }
+        reconnecting = false;
+        return false;
+    }
+
+    // Ask for the session back on the new connection, returns how many missed messages follow,
+    // or -1 if the session was gone and we logged in again
+    private long resume() throws IOException {
+        if (sessionToken != null) {
+            String reply;
+            if (binary) {
+                Frames.write(out, Frames.RESUME, sessionToken, messagesReceived);
+                int opcode = readFrame();
+                if (opcode == Frames.RESUMED) {
+                    return frameBody.readLong();
+                }
+                reply = opcode == Frames.RESUME_FAILED ? "RESUME_FAILED:" : null;
+            } else {
+                writeLine("RESUME:" + sessionToken + ":" + messagesReceived);
+                reply = readMessage();
+                if (reply != null && reply.startsWith("RESUMED:")) {
+                    return number(reply.substring(8), reply);
+                }
+            }
+            if (reply == null || !reply.startsWith("RESUME_FAILED:")) {
+                throw new IOException("No reply to resuming the session");
+            }
+            sessionToken = null; // Logging in issues a new one
+        }
+        login();
+        return -1;
+    }
+
+    // Handle text protocol lines until the server closes the connection.
+    private void listenForLines(Listener listener) throws IOException {
+        String message;
+        while ((message = readMessage()) != null) {
+            if (message.startsWith("USER_LIST:")) {
+                // Replace the user list if the server sends the full list
+                String[] parts = fields(message, 10, 2);
+                listener.onUserList(number(parts[0], message), Arrays.asList(parts[1].split(",")));
+            } else if (message.startsWith("USER_JOINED:")) {
+                // Add a single user to the list
+                String[] parts = fields(message, 12, 2);
+                listener.onPresence(number(parts[0], message), parts[1], true);
+            } else if (message.startsWith("USER_LEFT:")) {
+                // Remove a single user from the list
+                String[] parts = fields(message, 10, 2);
+                listener.onPresence(number(parts[0], message), parts[1], false);
+            } else if (message.startsWith("ROOM_MESSAGE:")) {
+                String[] parts = fields(message, 13, 2);
+                listener.onRoomMessage(parts[0], parts[1]);
+            } else if (message.startsWith("ROOM_USER_LIST:")) {
+                String[] parts = fields(message, 15, 3);
+                listener.onRoomUserList(parts[0], number(parts[1], message), Arrays.asList(parts[2].split(",")));
+            } else if (message.startsWith("ROOM_JOINED:") || message.startsWith("ROOM_LEFT:")) {
+                boolean joined = message.startsWith("ROOM_JOINED:");
+                String[] parts = fields(message, joined ? 12 : 10, 3);
+                listener.onRoomPresence(parts[0], number(parts[1], message), parts[2], joined);
+            } else if (message.startsWith("BANNED_WORDS:")) {
+                listener.onBannedWords(message.substring(13));
+            } else if (message.startsWith("INSTRUCTIONS:")) {
+                listener.onInstructions(message.substring(13));
+            } else if (message.startsWith("HISTORY:")) {
+                String[] parts = fields(message, 8, 2);
+                listener.onHistory(number(parts[0], message), parts[1]);
+            } else if (message.startsWith("HISTORY_END:")) {
+                listener.onHistoryEnd(number(message.substring(12), message));
+            } else {
+                listener.onMessage(message);
+            }
+        }
+    }
+
+    // Handle binary protocol frames until the server closes the connection, fields arrive already typed.
+    private void listenForFrames(Listener listener) throws IOException {
+        int opcode;
+        while ((opcode = readFrame()) >= 0) {
+            DataInputStream body = frameBody;
+            switch (opcode) {
+                case Frames.MESSAGE: {
+                    String sender = Frames.readString(body);
+                    String text = Frames.readString(body);
+                    listener.onMessage(sender.isEmpty() ? text : sender + ": " + text);
+                    break;
+                }
+                case Frames.ERROR:
+                    listener.onMessage(Frames.readString(body));
+                    break;
+                case Frames.USER_LIST: {
+                    long version = body.readLong();
+                    listener.onUserList(version, startListParts(null, version, Frames.readList(body)));
+                    break;
+                }
+                case Frames.USER_LIST_MORE: {
+                    long version = body.readLong();
+                    List<String> names = continueListParts(null, version, Frames.readList(body));
+                    if (names != null) {
+                        listener.onUserList(version, names);
+                    }
+                    break;
+                }
+                case Frames.USER_JOINED:
+                case Frames.USER_LEFT: {
+                    long version = body.readLong();
+                    listener.onPresence(version, Frames.readString(body), opcode == Frames.USER_JOINED);
+                    break;
+                }
+                case Frames.ROOM_MESSAGE: {
+                    String room = Frames.readString(body);
+                    String sender = Frames.readString(body);
+                    String text = Frames.readString(body);
+                    listener.onRoomMessage(room, sender.isEmpty() ? text : sender + ": " + text);
+                    break;
+                }
+                case Frames.ROOM_USER_LIST: {
+                    String room = Frames.readString(body);
+                    long version = body.readLong();
+                    listener.onRoomUserList(room, version, startListParts(room, version, Frames.readList(body)));
+                    break;
+                }
+                case Frames.ROOM_USER_LIST_MORE: {
+                    String room = Frames.readString(body);
+                    long version = body.readLong();
+                    List<String> names = continueListParts(room, version, Frames.readList(body));
+                    if (names != null) {
+                        listener.onRoomUserList(room, version, names);
+                    }
+                    break;
+                }
+                case Frames.ROOM_JOINED:
+                case Frames.ROOM_LEFT: {
+                    String room = Frames.readString(body);
+                    long version = body.readLong();
+                    listener.onRoomPresence(room, version, Frames.readString(body), opcode == Frames.ROOM_JOINED);
+                    break;
+                }
+                case Frames.BANNED_WORDS:
+                    listener.onBannedWords(String.join(",", Frames.readList(body)));
+                    break;
+                case Frames.INSTRUCTIONS:
+                    listener.onInstructions(Frames.readString(body));
+                    break;
+                case Frames.HISTORY: {
+                    long offset = body.readLong();
+                    String sender = Frames.readString(body);
+                    String text = Frames.readString(body);
+                    listener.onHistory(offset, sender.isEmpty() ? text : sender + ": " + text);
+                    break;
+                }
+                case Frames.HISTORY_END:
+                    listener.onHistoryEnd(body.readLong());
+                    break;
+                case Frames.STATS:
+                    listener.onMessage("STATS: " + Frames.readString(body)); // Same as the text protocol reply
+                    break;
+                default:
+                    // Unknown frame from a newer server, skip it
+            }
+        }
+    }
+
+    // Remember a full list in case the server continues it with _MORE frames
+    private List<String> startListParts(String room, long version, List<String> names) {
+        listParts = names;
+        listPartsRoom = room;
+        listPartsVersion = version;
+        return names;
+    }
+
+    // The list so far with the next part added, handed to the listener again so the last part leaves it complete.
+    // Null if the part doesn't continue the last list.
+    private List<String> continueListParts(String room, long version, List<String> more) {
+        if (listParts == null || !Objects.equals(room, listPartsRoom) || version != listPartsVersion) {
+            return null;
+        }
+        List<String> names = new ArrayList<>(listParts.size() + more.size());
+        names.addAll(listParts);
+        names.addAll(more);
+        listParts = names;
+        return names;
+    }
+
+    // Read the next frame, unpacking COMPRESSED frames, and leave its body in frameBody. Returns -1 at the end of the stream.
+    private int readFrame() throws IOException {
+        while (true) {
+            DataInputStream source = inflated != null && inflated.available() > 0 ? inflated : in;
+            int opcode = source.read();
+            if (opcode < 0) {
+                return -1;
+            }
+            frameBody = Frames.readBody(source);
+            if (opcode == Frames.SESSION) {
+                if (!awaitingLogin) {
+                    continue; // Only the login reply may set the session
+                }
+                sessionToken = Frames.readString(frameBody);
+                graceSeconds = frameBody.readLong();
+                messagesReceived = 0; // The server numbers what it sends after the token
+                continue;
+            }
+            if (opcode == Frames.PING) {
+                heartbeat(frameBody.readLong());
+                continue;
+            }
+            if (opcode != Frames.COMPRESSED) {
+                if (sessionToken != null && opcode != Frames.RESUMED && opcode != Frames.RESUME_FAILED) {
+                    messagesReceived++;
+                }
+                return opcode;
+            }
+            if (compression == null || source == inflated) {
+                throw new IOException("Unexpected compressed frame");
+            }
+            inflated = compression.inflate(frameBody.readAllBytes());
+        }
+    }
+
+    // Send a message to everyone.
+    public void sendGlobal(String message) {
+        if (binary) {
+            sendFrame(Frames.SEND, message);
+        } else {
+            sendLine(message);
+        }
+    }
+
+    // Send a message to the recipients only.
+    public void sendInclude(List<String> recipients, String message) {
+        sendToUsers("INCLUDE:", Frames.INCLUDE, recipients, message);
+    }
+
+    // Send a message to everyone except the excluded users.
+    public void sendExclude(List<String> excluded, String message) {
+        sendToUsers("EXCLUDE:", Frames.EXCLUDE, excluded, message);
+    }
+
+    // Send a message to the members of a room we joined.
+    public void sendToRoom(String room, String message) {
+        if (binary) {
+            sendFrame(Frames.ROOM_SEND, room, message);
+        } else {
+            sendLine("ROOM:" + room + ":" + message);
+        }
+    }
+
+    // Join a room, the server answers with its member list or an error
+    public void joinRoom(String room) {
+        sendRoomCommand("JOIN:", Frames.JOIN_ROOM, room);
+    }
+
+    public void leaveRoom(String room) {
+        sendRoomCommand("LEAVE:", Frames.LEAVE_ROOM, room);
+    }
+
+    public void requestRoomUserList(String room) {
+        sendRoomCommand("GET_USER_LIST:", Frames.GET_ROOM_USER_LIST, room);
+    }
+
+    public void requestInstructions() {
+        sendCommand("GET_INSTRUCTIONS", Frames.GET_INSTRUCTIONS);
+    }
+
+    public void requestBannedWords() {
+        sendCommand("GET_BANNED_WORDS", Frames.GET_BANNED_WORDS);
+    }
+
+    public void requestUserList() {
+        sendCommand("GET_USER_LIST", Frames.GET_USER_LIST);
+    }
+
+    // The latest messages we may see, if the server keeps a history
+    public void requestHistory(int count) {
+        if (binary) {
+            sendFrame(Frames.GET_HISTORY, (long) count);
+        } else {
+            sendLine("GET_HISTORY:" + count);
+        }
+    }
+
+    // Messages from an offset on, usually the one the last onHistoryEnd reported
+    public void requestHistorySince(long offset) {
+        if (binary) {
+            sendFrame(Frames.GET_HISTORY_SINCE, offset);
+        } else {
+            sendLine("GET_HISTORY_SINCE:" + offset);
+        }
+    }
+
+    // Server metrics, the reply arrives as a "STATS: " message, or an error unless we are an admin user
+    public void requestStats() {
+        sendCommand("STATS", Frames.GET_STATS);
+    }
+
+    // Send an INCLUDE or EXCLUDE message, the users are a counted list in binary mode and comma separated in text mode.
+    private void sendToUsers(String prefix, int opcode, List<String> users, String message) {
+        if (binary) {
+            sendFrame(opcode, users, message);
+        } else {
+            sendLine(prefix + String.join(",", users) + ":" + message);
+        }
+    }
+
+    // Send a request naming a room in whichever protocol is in use.
+    private void sendRoomCommand(String prefix, int opcode, String room) {
+        if (binary) {
+            sendFrame(opcode, room);
+        } else {
+            sendLine(prefix + room);
+        }
+    }
+
+    // Send a request without arguments in whichever protocol is in use.
+    private void sendCommand(String command, int opcode) {
+        if (binary) {
+            sendFrame(opcode);
+        } else {
+            sendLine(command);
+        }
+    }
+
+    // Send a text protocol line, errors show up as a disconnect in the listener.
+    private void sendLine(String line) {
+        if (reconnecting) {
+            return; // Nowhere to send it
+        }
+        synchronized (this) {
+            try {
+                writeLine(line);
+            } catch (IOException e) {
+                // The listener notices the disconnect
+            }
+        }
+    }
+
+    // Send a binary protocol frame, errors show up as a disconnect in the listener.
+    private void sendFrame(int opcode, Object... fields) {
+        if (reconnecting) {
+            return; // Nowhere to send it
+        }
+        synchronized (this) {
+            try {
+                if (compression != null) {
+                    ByteArrayOutputStream frame = new ByteArrayOutputStream();
+                    Frames.write(new DataOutputStream(frame), opcode, fields);
+                    compression.write(out, frame.toByteArray());
+                } else {
+                    Frames.write(out, opcode, fields);
+                }
+            } catch (IOException e) {
+                // The listener notices the disconnect
+            }
+        }
+    }
+
+    // Read the next text protocol line, taking note of a session token and counting the messages after it
+    private String readMessage() throws IOException {
+        while (true) {
+            String line = readLine();
+            if (awaitingLogin && line != null && line.startsWith("SESSION:")) {
+                int separator = line.indexOf(':', 8);
+                if (separator < 0) {
+                    throw new IOException("Malformed line from server: " + line);
+                }
+                graceSeconds = number(line.substring(8, separator), line);
+                sessionToken = line.substring(separator + 1);
+                messagesReceived = 0;
+                continue;
+            }
+            if (line != null && line.startsWith("PING:")) {
+                heartbeat(number(line.substring(5), line)); // No user can be named PING, this is the server's
+                continue;
+            }
+            if (line != null && sessionToken != null && !line.startsWith("RESUMED:") && !line.startsWith("RESUME_FAILED:")) {
+                messagesReceived++;
+            }
+            return line;
+        }
+    }
+
+    // The colon separated fields of a server line after its prefix, the last one may contain colons
+    private static String[] fields(String line, int prefixLength, int count) throws IOException {
+        String[] fields = line.substring(prefixLength).split(":", count);
+        if (fields.length != count) {
+            throw new IOException("Malformed line from server: " + line);
+        }
+        return fields;
+    }
+
+    // Number field of a server line. Usernames can't look like server lines, so a malformed one means
+    // the stream is corrupt or not from a compatible server, and the connection is given up like a lost one.
+    private static long number(String value, String line) throws IOException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed line from server: " + line, e);
+        }
+    }
+
+    // Answer a heartbeat, and give up on reading once the server has been silent for several of its intervals
+    private void heartbeat(long intervalSeconds) throws IOException {
+        sendCommand("PONG", Frames.PONG);
+        socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, intervalSeconds * MISSED_HEARTBEATS * 1000));
+    }
+
+    private void writeLine(String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    // Read one UTF-8 line without reading past it, so the stream can switch to frames afterwards.
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return line.size() > 0 ? line.toString(StandardCharsets.UTF_8) : null;
+            }
+            line.write(b);
+        }
+        String text = line.toString(StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    public boolean isClosed() {
+        return socket == null || socket.isClosed();
+    }
+
+    // Leave for good, telling a server that keeps sessions not to wait for us to come back
+    @Override
+    public void close() {
+        if (!closing) {
+            closing = true;
+            if (sessionToken != null && !isClosed()) {
+                sendCommand("LOGOUT", Frames.LOGOUT);
+            }
+        }
+        closeSocket();
+    }
+
+    private void closeSocket() {
+        try {
+            if (socket != null && !socket.isClosed()) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // Already closing
+        }
+        if (compression != null) {
+            compression.end();
+            compression = null;
+        }
+        inflated = null;
+    }
+
+    // Counts the bytes read through it, read by other threads for reporting only
+    private static final class CountingInputStream extends FilterInputStream {
+        private volatile long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package client;
+
+import javax.swing.AbstractListModel;
+import javax.swing.Timer;
+import java.util.ArrayDeque;
+import java.util.function.IntConsumer;
+
+// The latest chat messages in a fixed-size ring, the model behind the chat JList.
+// Any thread may add messages, they wait in a pending queue and are moved into the ring by a Swing timer
+// once per frame, so a flood of messages costs one EDT event and one list update per frame instead of one each.
+// When the ring is full the oldest messages are dropped, memory stays flat however long the client runs.
+@SuppressWarnings("serial") // Swing models are never serialized here
+final class ChatModel extends AbstractListModel<String> {
+    static final int DEFAULT_CAPACITY = 10_000; // Messages kept for scrolling back
+    private static final int FRAME_MILLIS = 16; // About 60 batches a second at most
+
+    private final String[] ring; // Read and written on the EDT only
+    private int head; // Index of the oldest message
+    private int size;
+    private final ArrayDeque<String> pending = new ArrayDeque<>(); // Not shown yet, guarded by itself
+    private final Timer drainTimer;
+    private final IntConsumer afterBatch; // Called on the EDT after each batch with the number of messages dropped from the top
+
+    ChatModel(int capacity, IntConsumer afterBatch) {
+        this.ring = new String[capacity];
+        this.afterBatch = afterBatch;
+        this.drainTimer = new Timer(FRAME_MILLIS, e -> drain());
+    }
+
+    void start() {
+        drainTimer.start();
+    }
+
+    void stop() {
+        drainTimer.stop();
+    }
+
+    // Queue a message for the next batch, safe to call from any thread
+    void add(String message) {
+        synchronized (pending) {
+            if (pending.size() == ring.length) {
+                pending.pollFirst(); // Would scroll out of the ring in this batch anyway
+            }
+            pending.addLast(message);
+        }
+    }
+
+    // Move the pending messages into the ring and tell the list once for the whole batch
+    private void drain() {
+        String[] batch;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = pending.toArray(new String[0]);
+            pending.clear();
+        }
+
+        int evicted = Math.max(0, size + batch.length - ring.length);
+        if (evicted > 0) {
+            // Drop the oldest first, so the list sees the same sizes as the events it gets
+            head = (head + evicted) % ring.length;
+            size -= evicted;
+            fireIntervalRemoved(this, 0, evicted - 1);
+        }
+        for (String message : batch) {
+            ring[(head + size++) % ring.length] = message;
+        }
+        fireIntervalAdded(this, size - batch.length, size - 1);
+        afterBatch.accept(evicted);
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return ring[(head + index) % ring.length];
+    }
+}
@@ -0,0 +1,563 @@
+package client;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+public class Client {
+    private static final String EVERYONE = "Everyone"; // Room selector entry for the whole server
+    // Client's username
+    private String username;
+
+    // Connection to the server, protocol handling lives in ChatConnection
+    private ChatConnection connection;
+
+    // GUI components for the login screen
+    private JFrame loginFrame;
+
+    // GUI components for the chat application
+    private JFrame chatFrame;
+    private ChatModel chatModel; // Latest messages, filled from the listener thread in batches
+    private JList<String> chatList; // Shows the chat, only the visible rows are laid out and painted
+    private JScrollPane chatScroll;
+    private JTextField inputField; // Input field for typing messages
+    private UserListModel userListModel; // Other online users and which of them are ticked
+    private JList<String> userList; // Shows the users, only the visible rows are laid out and painted
+    private JLabel instructionsLabel;
+    private JRadioButton globalRadioButton;
+    private JRadioButton privateRadioButton;
+    private JRadioButton excludeRadioButton;
+    private DefaultComboBoxModel<String> roomChoices; // EVERYONE, then the rooms we joined
+    private String currentRoom; // Room messages and the user list are for, null for everyone on the server
+    private long userListVersion; // Server's membership version our user list reflects
+    private boolean userListResyncRequested; // Asked for the full list, ignore presence updates until it arrives
+
+    // Entry point of the client application
+    public static void main(String[] args) {
+        // Use SwingUtilities to ensure the UI is created on the Event Dispatch Thread (EDT)
+        SwingUtilities.invokeLater(() -> new Client().showLoginUI());
+    }
+
+
+    // Connect to the server with the specified username, server IP, and port.
+    private void connectToServer(String username, String serverIP, int port) {
+        try {
+            // Set up the username and log in, preferring the binary protocol
+            this.username = username;
+            this.connection = ChatConnection.connect(serverIP, port, username, true, true);
+
+            // Request instructions from the server automatically
+            connection.requestInstructions();
+
+            // Close the login window and open the chat UI
+            loginFrame.dispose();
+            showChatUI();
+
+            // Start a virtual thread to listen for messages from the server
+            connection.startListening(new ChatListener());
+        } catch (ChatConnection.LoginRejectedException e) {
+            // If the server returns an error, display it, the connection is already closed
+            JOptionPane.showMessageDialog(loginFrame, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        } catch (IOException e) {
+            // Handle connection errors
+            JOptionPane.showMessageDialog(loginFrame, "Failed to connect to server.", "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    // Hands what the server sends to the chat UI, Swing components are updated on the EDT.
+    private class ChatListener implements ChatConnection.Listener {
+        @Override
+        public void onMessage(String message) {
+            // Display other messages in the chat area, with the next batch
+            chatModel.add(message);
+        }
+
+        @Override
+        public void onUserList(long version, List<String> users) {
+            SwingUtilities.invokeLater(() -> {
+                if (currentRoom == null) {
+                    updateUserList(version, users);
+                }
+            });
+        }
+
+        @Override
+        public void onPresence(long version, String user, boolean joined) {
+            SwingUtilities.invokeLater(() -> {
+                if (currentRoom == null) {
+                    applyPresenceUpdate(version, user, joined);
+                }
+            });
+        }
+
+        @Override
+        public void onRoomMessage(String room, String message) {
+            chatModel.add("[" + room + "] " + message);
+        }
+
+        @Override
+        public void onRoomUserList(String room, long version, List<String> users) {
+            SwingUtilities.invokeLater(() -> {
+                if (roomChoices.getIndexOf(room) < 0) {
+                    // First list of a room we just joined, switch to it
+                    roomChoices.addElement(room);
+                    switchRoom(room);
+                }
+                if (room.equals(currentRoom)) {
+                    updateUserList(version, users);
+                }
+            });
+        }
+
+        @Override
+        public void onRoomPresence(String room, long version, String user, boolean joined) {
+            SwingUtilities.invokeLater(() -> {
+                if (room.equals(currentRoom)) {
+                    applyPresenceUpdate(version, user, joined);
+                }
+            });
+        }
+
+        @Override
+        public void onBannedWords(String bannedWords) {
+            SwingUtilities.invokeLater(() -> showBannedWordsWindow(bannedWords));
+        }
+
+        @Override
+        public void onInstructions(String instructions) {
+            SwingUtilities.invokeLater(() -> instructionsLabel.setText(instructions));
+        }
+
+        @Override
+        public void onHistory(long offset, String message) {
+            // Messages from before we joined, shown like the live ones
+            chatModel.add(message);
+        }
+
+        @Override
+        public void onReconnecting() {
+            chatModel.add("Connection lost, reconnecting...");
+        }
+
+        @Override
+        public void onReconnected(boolean resumed, long replayed) {
+            if (resumed) {
+                chatModel.add("Reconnected, " + replayed + " missed messages delivered.");
+                return;
+            }
+            // Logged in again as a new client, the server forgot our rooms
+            chatModel.add("Reconnected, messages sent while away may be missing.");
+            SwingUtilities.invokeLater(() -> {
+                for (int i = 0; i < roomChoices.getSize(); i++) {
+                    String room = roomChoices.getElementAt(i);
+                    if (!EVERYONE.equals(room)) {
+                        connection.joinRoom(room);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onDisconnect(IOException cause) {
+            if (cause != null) {
+                // Handle disconnection
+                chatModel.add("Disconnected from server.");
+            }
+            // Ensure proper cleanup upon disconnection
+            disconnect();
+        }
+    }
+
+    // Send a message to the server based on the selected message type.
+    private void sendMessage() {
+        String message = inputField.getText().trim(); // Get the typed message
+        if (!message.isEmpty()) {
+            if (globalRadioButton.isSelected()) {
+                // Send the message to everyone, or everyone in the room
+                if (currentRoom == null) {
+                    connection.sendGlobal(message);
+                } else {
+                    connection.sendToRoom(currentRoom, message);
+                }
+            } else if (privateRadioButton.isSelected()) {
+                // Send the message to specific recipients
+                List<String> recipients = userListModel.selectedUsers();
+                if (!recipients.isEmpty()) {
+                    connection.sendInclude(recipients, message);
+                } else {
+                    JOptionPane.showMessageDialog(chatFrame, "Select at least one recipient for private messaging.", "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            } else if (excludeRadioButton.isSelected()) {
+                // Exclude specific users from receiving the message
+                connection.sendExclude(userListModel.selectedUsers(), message);
+            }
+            inputField.setText(""); // Clear the input field after sending
+        }
+    }
+
+    // Replace the user list with the full list received from the server.
+    private void updateUserList(long version, List<String> users) {
+        List<String> others = new ArrayList<>(users);
+        others.remove(username); // We don't send to ourselves
+        userListModel.setUsers(others);
+        userListVersion = version;
+        userListResyncRequested = false;
+    }
+
+    // Apply a single join or leave, or ask for the full list if an update was missed.
+    private void applyPresenceUpdate(long version, String user, boolean joined) {
+        if (userListResyncRequested || version <= userListVersion) {
+            return; // Waiting for the full list, or already reflected in it
+        }
+        if (version != userListVersion + 1) {
+            requestUserList();
+            return;
+        }
+        userListVersion = version;
+        if (!joined) {
+            userListModel.remove(user);
+        } else if (!user.equals(username)) {
+            userListModel.add(user);
+        }
+    }
+
+    // Ask for the full list of the users in the current room or on the server, presence updates wait for it
+    private void requestUserList() {
+        userListResyncRequested = true;
+        if (currentRoom == null) {
+            connection.requestUserList();
+        } else {
+            connection.requestRoomUserList(currentRoom);
+        }
+    }
+
+    // Show a room's members and send to it, or to everyone on the server for EVERYONE
+    private void switchRoom(String room) {
+        String selected = EVERYONE.equals(room) ? null : room;
+        if (Objects.equals(selected, currentRoom)) {
+            return;
+        }
+        currentRoom = selected;
+        roomChoices.setSelectedItem(room); // Calls us back from the selector, which now finds nothing to do
+        userListModel.setUsers(List.of()); // Until the room's list arrives
+        requestUserList();
+        // Excluding is a server-wide broadcast, inside a room only the room and chosen members can be addressed
+        excludeRadioButton.setEnabled(currentRoom == null);
+        if (excludeRadioButton.isSelected() && currentRoom != null) {
+            globalRadioButton.doClick();
+        }
+    }
+
+    // Ask for a room name and join it, the room is added to the selector once the server confirms
+    private void joinRoom() {
+        String room = JOptionPane.showInputDialog(chatFrame, "Room name:", "Join Room", JOptionPane.PLAIN_MESSAGE);
+        if (room != null && !room.isBlank()) {
+            connection.joinRoom(room.trim());
+        }
+    }
+
+    private void leaveRoom() {
+        if (currentRoom != null) {
+            String room = currentRoom;
+            connection.leaveRoom(room);
+            switchRoom(EVERYONE);
+            roomChoices.removeElement(room);
+        }
+    }
+
+    // Display the login UI for the user to input their credentials.
+    private void showLoginUI() {
+        loginFrame = new JFrame("Chat Client Login");
+        loginFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        loginFrame.setSize(300, 200);
+
+        JPanel panel = new JPanel(new GridLayout(4, 2));
+        JLabel userLabel = new JLabel("Username:");
+        JTextField userField = new JTextField();
+        JLabel serverLabel = new JLabel("Server IP:");
+        JTextField serverField = new JTextField();
+        JLabel portLabel = new JLabel("Port:");
+        JTextField portField = new JTextField();
+
+        JButton loginButton = new JButton("Login");
+        // Validate user input and attempt connection
+        loginButton.addActionListener(e -> {
+            String username = userField.getText().trim();
+            String serverIP = serverField.getText().trim();
+            String portText = portField.getText().trim();
+
+            if (username.isEmpty() || serverIP.isEmpty() || portText.isEmpty()) {
+                JOptionPane.showMessageDialog(loginFrame, "All fields are required.", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            try {
+                int port = Integer.parseInt(portText);
+                connectToServer(username, serverIP, port);
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(loginFrame, "Port must be a number.", "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        });
+
+        panel.add(userLabel);
+        panel.add(userField);
+        panel.add(serverLabel);
+        panel.add(serverField);
+        panel.add(portLabel);
+        panel.add(portField);
+        panel.add(new JLabel());
+        panel.add(loginButton);
+
+        loginFrame.add(panel);
+        loginFrame.setVisible(true);
+    }
+
+
+    //Display the chat UI after successfully logging in.
+    private void showChatUI() {
+        chatFrame = new JFrame("Chat - " + username);
+        chatFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        chatFrame.setSize(650, 600);
+
+        chatModel = new ChatModel(ChatModel.DEFAULT_CAPACITY, this::followChat);
+        chatList = new JList<>(chatModel) {
+            @Override
+            public boolean getScrollableTracksViewportWidth() {
+                return true; // Rows are as wide as the view, long messages show in full as a tooltip
+            }
+
+            @Override
+            public String getToolTipText(MouseEvent event) {
+                int index = locationToIndex(event.getPoint());
+                return index >= 0 ? getModel().getElementAt(index) : null;
+            }
+        };
+        chatList.setPrototypeCellValue("Message"); // Fixed row height, so nothing has to measure every message
+        chatScroll = new JScrollPane(chatList);
+        chatScroll.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+
+        inputField = new JTextField();
+        inputField.addActionListener(e -> sendMessage());
+
+        // User list setup, a checkbox per row is only drawn, ticking goes through the model
+        userListModel = new UserListModel();
+        userList = new JList<>(userListModel);
+        userList.setPrototypeCellValue("Username"); // Fixed row size, so nothing has to measure every user
+        userList.setCellRenderer(new UserCellRenderer());
+        userList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int row = userList.locationToIndex(e.getPoint());
+                if (userList.isEnabled() && row >= 0 && userList.getCellBounds(row, row).contains(e.getPoint())) {
+                    userListModel.toggle(row);
+                }
+            }
+        });
+        userList.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_SPACE, 0), "toggleUser");
+        userList.getActionMap().put("toggleUser", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                for (int row : userList.getSelectedIndices()) {
+                    userListModel.toggle(row);
+                }
+            }
+        });
+        JScrollPane userScroll = new JScrollPane(userList);
+
+        // Typing narrows the list down, ticks of hidden users are kept
+        JTextField userFilterField = new JTextField();
+        userFilterField.setBorder(BorderFactory.createTitledBorder("Find user: "));
+        userFilterField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                userListModel.setFilter(userFilterField.getText());
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                userListModel.setFilter(userFilterField.getText());
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+        JButton tickShownButton = new JButton("All");
+        tickShownButton.addActionListener(e -> userListModel.setAllShown(true));
+        JButton untickShownButton = new JButton("None");
+        untickShownButton.addActionListener(e -> userListModel.setAllShown(false));
+        JPanel tickPanel = new JPanel(new GridLayout(1, 2));
+        tickPanel.add(tickShownButton);
+        tickPanel.add(untickShownButton);
+        JPanel userPanel = new JPanel(new BorderLayout());
+        userPanel.add(userFilterField, BorderLayout.NORTH);
+        userPanel.add(userScroll, BorderLayout.CENTER);
+        userPanel.add(tickPanel, BorderLayout.SOUTH);
+
+        globalRadioButton = new JRadioButton("Global");
+        privateRadioButton = new JRadioButton("Include");
+        excludeRadioButton = new JRadioButton("Exclude");
+        ButtonGroup messageTypeGroup = new ButtonGroup();
+        messageTypeGroup.add(globalRadioButton);
+        messageTypeGroup.add(privateRadioButton);
+        messageTypeGroup.add(excludeRadioButton);
+
+        globalRadioButton.setSelected(true); // Default to global messaging
+        userList.setEnabled(false);
+        globalRadioButton.addActionListener(e -> {
+            userList.setEnabled(false);
+            userListModel.selectAll(); // Automatically select all users when "Global" is selected
+        });
+        privateRadioButton.addActionListener(e -> userList.setEnabled(true));
+        excludeRadioButton.addActionListener(e -> userList.setEnabled(true));
+
+        JPanel messageTypePanel = new JPanel();
+        messageTypePanel.setBorder(BorderFactory.createTitledBorder("Message Type"));
+        messageTypePanel.add(globalRadioButton);
+        messageTypePanel.add(privateRadioButton);
+        messageTypePanel.add(excludeRadioButton);
+
+        // Instructions panel setup using JLabel
+        instructionsLabel = new JLabel();
+        instructionsLabel.setVerticalAlignment(SwingConstants.TOP); // Align text to the top
+        instructionsLabel.setBorder(BorderFactory.createTitledBorder("Instructions"));
+        instructionsLabel.setPreferredSize(new Dimension(150, 170)); // Adjust size as needed
+        instructionsLabel.setText("<html><p>Instructions will appear here...</p></html>");
+
+        // Room selector, the rooms we are in and buttons to join and leave them
+        roomChoices = new DefaultComboBoxModel<>(new String[]{EVERYONE});
+        currentRoom = null;
+        JComboBox<String> roomSelector = new JComboBox<>(roomChoices);
+        roomSelector.addActionListener(e -> {
+            if (roomSelector.getSelectedItem() != null) {
+                switchRoom((String) roomSelector.getSelectedItem());
+            }
+        });
+        JButton joinRoomButton = new JButton("Join");
+        joinRoomButton.addActionListener(e -> joinRoom());
+        JButton leaveRoomButton = new JButton("Leave");
+        leaveRoomButton.addActionListener(e -> leaveRoom());
+        JPanel roomButtonPanel = new JPanel(new GridLayout(1, 2));
+        roomButtonPanel.add(joinRoomButton);
+        roomButtonPanel.add(leaveRoomButton);
+        JPanel roomPanel = new JPanel(new BorderLayout());
+        roomPanel.setBorder(BorderFactory.createTitledBorder("Room"));
+        roomPanel.add(roomSelector, BorderLayout.CENTER);
+        roomPanel.add(roomButtonPanel, BorderLayout.EAST);
+
+        JPanel topPanel = new JPanel(new BorderLayout());
+        topPanel.add(roomPanel, BorderLayout.NORTH);
+        topPanel.add(messageTypePanel, BorderLayout.SOUTH);
+
+        JPanel sidePanel = new JPanel(new BorderLayout());
+        sidePanel.add(topPanel, BorderLayout.NORTH);
+        userPanel.setBorder(BorderFactory.createTitledBorder("Users: "));
+        sidePanel.add(userPanel, BorderLayout.CENTER);
+
+        // Buttons for additional actions
+        JButton bannedWordsButton = new JButton("Show Banned Words");
+        bannedWordsButton.addActionListener(e -> requestBannedWords());
+
+        JButton disconnectButton = new JButton("Disconnect");
+        disconnectButton.addActionListener(e -> disconnect());
+
+        JPanel buttonPanel = new JPanel(new GridLayout(2, 1));
+        bannedWordsButton.setBorder(BorderFactory.createLineBorder(new Color(184, 207, 229), 1));
+        bannedWordsButton.setBackground(new Color(238, 238, 238));
+        disconnectButton.setBorder(BorderFactory.createLineBorder(new Color(184, 207, 229), 1));
+        disconnectButton.setBackground(new Color(238, 238, 238));
+        buttonPanel.add(bannedWordsButton);
+        buttonPanel.add(disconnectButton);
+
+        JPanel lowerPanel = new JPanel(new BorderLayout());
+        lowerPanel.add(buttonPanel, BorderLayout.SOUTH);
+        lowerPanel.add(instructionsLabel, BorderLayout.CENTER);
+
+        sidePanel.add(lowerPanel, BorderLayout.SOUTH);
+        sidePanel.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+        inputField.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+
+        JPanel leftPanel = new JPanel(new BorderLayout());
+        chatScroll.setBorder(BorderFactory.createTitledBorder("Chat: "));
+        chatList.setBackground(new Color(238, 238, 238));
+        leftPanel.add(chatScroll, BorderLayout.CENTER);
+        leftPanel.add(inputField, BorderLayout.SOUTH);
+        inputField.setBackground(new Color(238, 238, 238));
+        inputField.setBorder(BorderFactory.createTitledBorder("Input message here: "));
+
+        // Add components to the main frame
+        chatFrame.add(leftPanel, BorderLayout.CENTER);
+        chatFrame.add(sidePanel, BorderLayout.EAST);
+
+        chatFrame.setVisible(true);
+        chatModel.start();
+    }
+
+    // Keep the newest message in view after a batch, unless the user scrolled up to read older ones
+    private void followChat(int evicted) {
+        JScrollBar scrollBar = chatScroll.getVerticalScrollBar();
+        // The scroll bar still reflects the list before the batch
+        boolean atBottom = scrollBar.getValue() + scrollBar.getVisibleAmount() >= scrollBar.getMaximum() - chatList.getFixedCellHeight();
+        chatScroll.validate();
+        if (atBottom) {
+            chatList.ensureIndexIsVisible(chatModel.getSize() - 1);
+        } else if (evicted > 0) {
+            // The rows moved up by the dropped messages, move with them so the text being read stays put
+            scrollBar.setValue(scrollBar.getValue() - evicted * chatList.getFixedCellHeight());
+        }
+    }
+
+    // Draws a user row as a checkbox, ticked from the model and greyed out while the list is disabled
+    @SuppressWarnings("serial") // Never serialized
+    private class UserCellRenderer extends JCheckBox implements ListCellRenderer<String> {
+        @Override
+        public Component getListCellRendererComponent(JList<? extends String> list, String user, int row,
+                                                      boolean isSelected, boolean cellHasFocus) {
+            setText(user);
+            setSelected(userListModel.isSelected(row));
+            setEnabled(list.isEnabled());
+            setBackground(isSelected && list.isEnabled() ? list.getSelectionBackground() : list.getBackground());
+            setForeground(isSelected && list.isEnabled() ? list.getSelectionForeground() : list.getForeground());
+            return this;
+        }
+    }
+
+    // Other helper methods
+    private void requestBannedWords() {
+        connection.requestBannedWords();
+    }
+
+    private void showBannedWordsWindow(String bannedWords) {
+        JFrame bannedWordsFrame = new JFrame("Banned Words");
+        bannedWordsFrame.setSize(300, 200);
+
+        JTextArea bannedWordsArea = new JTextArea(bannedWords);
+        bannedWordsArea.setEditable(false);
+        bannedWordsArea.setCaretColor(Color.white);
+
+        bannedWordsFrame.add(new JScrollPane(bannedWordsArea));
+        bannedWordsFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        bannedWordsFrame.setVisible(true);
+    }
+
+    private void disconnect() {
+        if (connection != null) {
+            connection.close();
+        }
+        if (chatModel != null) {
+            chatModel.stop();
+        }
+        if (chatFrame != null) {
+            chatFrame.dispose();
+        }
+        SwingUtilities.invokeLater(this::showLoginUI); // Return to log in screen
+    }
+}
\ No newline at end of file
@@ -0,0 +1,63 @@
+package client;
+
+import protocol.FrameDeflater;
+import protocol.FrameInflater;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Deflate compression of the binary protocol, negotiated with the PROTOCOL:binary/1+deflate handshake.
+// The deflate streams are the protocol module's FrameDeflater and FrameInflater, shared with the server.
+// We compress single frames from THRESHOLD bytes on, the server compresses whole write batches.
+// Sending and receiving may happen on different threads, each side has its own stream and lock.
+final class Compression {
+    static final int THRESHOLD = 512; // Smaller frames are sent as they are
+
+    private final FrameDeflater deflater = new FrameDeflater(); // Guarded by itself
+    private final FrameInflater inflater = new FrameInflater(); // Guarded by itself
+    private boolean ended; // Streams were freed, guarded by both locks
+
+    // Write an encoded frame, as a COMPRESSED frame if it is large enough
+    void write(DataOutputStream out, byte[] frame) throws IOException {
+        if (frame.length < THRESHOLD || frame.length > FrameDeflater.MAX_INPUT_BYTES) {
+            out.write(frame);
+            out.flush();
+            return;
+        }
+        synchronized (deflater) {
+            if (ended) {
+                throw new IOException("Connection closed");
+            }
+            ByteBuffer compressed = deflater.deflate(frame, 0, frame.length);
+            out.write(compressed.array(), 0, compressed.limit());
+            out.flush();
+        }
+    }
+
+    // Unpack the body of a COMPRESSED frame, the returned stream holds the frames it carried
+    DataInputStream inflate(byte[] body) throws IOException {
+        synchronized (inflater) {
+            if (ended) {
+                throw new IOException("Connection closed");
+            }
+            ByteBuffer frames = inflater.inflate(ByteBuffer.wrap(body));
+            byte[] copy = new byte[frames.remaining()];
+            frames.get(copy);
+            return new DataInputStream(new ByteArrayInputStream(copy));
+        }
+    }
+
+    // Free both zlib streams
+    void end() {
+        synchronized (deflater) {
+            synchronized (inflater) {
+                ended = true;
+                deflater.end();
+                inflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package client;
+
+import protocol.LatencyHistogram;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Drives a running server with many headless clients, one virtual thread each, and reports
+// connection setup rate, message throughput and send-to-receive latency.
+//
+// java -cp clientPart/target/classes client.LoadGenerator --clients 1000 --duration 30 --rate 2 --mix 70:20:10
+//
+// Every message carries its send time, the server echoes global and INCLUDE messages to the sender and
+// delivers them to the other recipients, so each delivery is one latency sample.
+// Senders and receivers share this JVM's clock, so no clock synchronisation with the server is needed.
+public class LoadGenerator {
+    private static final String MARKER = ": #t="; // Precedes the send time in a delivered load message
+
+    // Options, set from --name value pairs
+    private String host = "localhost";
+    private int port = 12345;
+    private int clientCount = 200; // Concurrent clients
+    private int durationSeconds = 30; // Length of the send phase
+    private double rate = 1; // Messages per second per client
+    private int globalWeight = 70; // Mix of message kinds, relative weights
+    private int includeWeight = 20;
+    private int excludeWeight = 10;
+    private int recipientCount = 5; // Users named in each INCLUDE or EXCLUDE message
+    private int messageSize = 64; // Bytes of text per message, including the timestamp
+    private boolean binary = true; // Offer the binary protocol
+    private boolean compress; // Also offer compression, used if the server has it enabled
+    private int connectConcurrency = 100; // Connections being set up at once, keeps the accept backlog short
+    private int drainSeconds = 5; // Longest wait for deliveries after the send phase
+    private String statsUser; // Admin user to fetch the server's STATS with after the run, none to skip
+
+    private final List<ChatConnection> connections = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+    private final LatencyHistogram setupLatency = new LatencyHistogram(); // Nanoseconds per connect and login
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram(); // Nanoseconds from send to receive
+    private final AtomicLong sentGlobal = new AtomicLong();
+    private final AtomicLong sentInclude = new AtomicLong();
+    private final AtomicLong sentExclude = new AtomicLong();
+    private final AtomicLong expectedDeliveries = new AtomicLong();
+    private final AtomicLong deliveries = new AtomicLong();
+    private final AtomicInteger connectFailures = new AtomicInteger();
+    private final AtomicInteger disconnects = new AtomicInteger();
+    private volatile boolean finished; // Past the drain phase, disconnects are ours
+
+    public static void main(String[] args) throws InterruptedException {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Options: --host --port --clients --duration --rate --mix global:include:exclude"
+                    + " --recipients --size --binary --compress --connect-concurrency --drain --stats-user");
+            System.exit(2);
+        }
+        generator.run();
+    }
+
+    private void parseArguments(String[] args) {
+        Map<String, String> options = new TreeMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Expected --name value, got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        try {
+            host = options.getOrDefault("host", host);
+            port = Integer.parseInt(options.getOrDefault("port", String.valueOf(port)));
+            clientCount = Integer.parseInt(options.getOrDefault("clients", String.valueOf(clientCount)));
+            durationSeconds = Integer.parseInt(options.getOrDefault("duration", String.valueOf(durationSeconds)));
+            rate = Double.parseDouble(options.getOrDefault("rate", String.valueOf(rate)));
+            recipientCount = Integer.parseInt(options.getOrDefault("recipients", String.valueOf(recipientCount)));
+            messageSize = Integer.parseInt(options.getOrDefault("size", String.valueOf(messageSize)));
+            binary = Boolean.parseBoolean(options.getOrDefault("binary", String.valueOf(binary)));
+            compress = Boolean.parseBoolean(options.getOrDefault("compress", String.valueOf(compress)));
+            connectConcurrency = Integer.parseInt(options.getOrDefault("connect-concurrency", String.valueOf(connectConcurrency)));
+            drainSeconds = Integer.parseInt(options.getOrDefault("drain", String.valueOf(drainSeconds)));
+            statsUser = options.get("stats-user");
+            if (options.containsKey("mix")) {
+                String[] weights = options.get("mix").split(":");
+                if (weights.length != 3) {
+                    throw new IllegalArgumentException("--mix takes three weights, global:include:exclude");
+                }
+                globalWeight = Integer.parseInt(weights[0]);
+                includeWeight = Integer.parseInt(weights[1]);
+                excludeWeight = Integer.parseInt(weights[2]);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number: " + e.getMessage());
+        }
+        options.keySet().removeAll(List.of("host", "port", "clients", "duration", "rate", "recipients", "size",
+                "binary", "compress", "connect-concurrency", "drain", "mix", "stats-user"));
+        if (!options.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options " + options.keySet());
+        }
+        if (clientCount < 1 || rate <= 0 || connectConcurrency < 1 || globalWeight + includeWeight + excludeWeight <= 0) {
+            throw new IllegalArgumentException("clients, rate, connect-concurrency and the mix must be positive");
+        }
+    }
+
+    private void run() throws InterruptedException {
+        connectAll();
+        if (connections.isEmpty()) {
+            System.out.println("No client could connect to " + host + ":" + port);
+            return;
+        }
+
+        // Send phase, every client paces itself to its own schedule
+        long sendStart = System.nanoTime();
+        long deadline = sendStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+        List<Thread> senders = new ArrayList<>();
+        for (ChatConnection connection : connections) {
+            senders.add(Thread.ofVirtual().start(() -> sendLoop(connection, deadline)));
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        double sendSeconds = (System.nanoTime() - sendStart) / 1e9;
+
+        // Let the last deliveries arrive, stop early once everything expected is in
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainSeconds);
+        while (deliveries.get() < expectedDeliveries.get() && System.nanoTime() < drainDeadline) {
+            Thread.sleep(10);
+        }
+        double receiveSeconds = (System.nanoTime() - sendStart) / 1e9;
+        finished = true;
+        long bytesReceived = 0;
+        for (ChatConnection connection : connections) {
+            connection.close();
+            bytesReceived += connection.bytesReceived();
+        }
+
+        long sent = sentGlobal.get() + sentInclude.get() + sentExclude.get();
+        System.out.printf(Locale.ROOT, "Sent %d messages in %.2f s (%.1f msgs/sec): global %d, include %d, exclude %d%n",
+                sent, sendSeconds, sent / sendSeconds, sentGlobal.get(), sentInclude.get(), sentExclude.get());
+        System.out.printf(Locale.ROOT, "Delivered %d of %d expected messages in %.2f s (%.1f msgs/sec)%n",
+                deliveries.get(), expectedDeliveries.get(), receiveSeconds, deliveries.get() / receiveSeconds);
+        System.out.println("Latency " + describe(deliveryLatency));
+        System.out.printf(Locale.ROOT, "Received %d bytes, %.1f per client%n", bytesReceived,
+                (double) bytesReceived / connections.size());
+        if (disconnects.get() > 0) {
+            System.out.println("Disconnected by the server: " + disconnects.get() + " clients");
+        }
+        if (statsUser != null) {
+            printServerStats();
+        }
+    }
+
+    // Log in as an admin user and print the server's own counters and latencies
+    private void printServerStats() throws InterruptedException {
+        try (ChatConnection admin = ChatConnection.connect(host, port, statsUser, binary)) {
+            CompletableFuture<String> reply = new CompletableFuture<>();
+            admin.startListening(message -> {
+                if (message.startsWith("STATS:") || message.startsWith("ERROR:")) {
+                    reply.complete(message);
+                }
+            });
+            admin.requestStats();
+            System.out.println(reply.get(5, TimeUnit.SECONDS));
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            System.out.println("Could not get server stats: " + e);
+        }
+    }
+
+    // Connect and log in every client, at most connectConcurrency at a time.
+    private void connectAll() throws InterruptedException {
+        String prefix = "lg" + Long.toString(System.currentTimeMillis() % 100000, 36) + "-"; // Unique per run
+        ChatConnection[] connected = new ChatConnection[clientCount];
+        AtomicInteger next = new AtomicInteger();
+        long start = System.nanoTime();
+        List<Thread> connectors = new ArrayList<>();
+        for (int i = 0; i < Math.min(connectConcurrency, clientCount); i++) {
+            connectors.add(Thread.ofVirtual().start(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < clientCount) {
+                    long connectStart = System.nanoTime();
+                    try {
+                        connected[index] = ChatConnection.connect(host, port, prefix + index, binary, compress);
+                        setupLatency.record(System.nanoTime() - connectStart);
+                    } catch (IOException e) {
+                        if (connectFailures.getAndIncrement() == 0) {
+                            System.out.println("Connect failed: " + e.getMessage());
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread connector : connectors) {
+            connector.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        for (ChatConnection connection : connected) {
+            if (connection != null) {
+                connections.add(connection);
+                names.add(connection.getUsername());
+            }
+        }
+        for (ChatConnection connection : connections) {
+            connection.startListening(new LoadListener());
+        }
+        System.out.printf(Locale.ROOT, "Connected %d of %d clients in %.2f s (%.1f connections/sec), %d failed, protocol %s%n",
+                connections.size(), clientCount, seconds, connections.size() / seconds, connectFailures.get(),
+                connections.isEmpty() || !connections.get(0).isBinary() ? "text"
+                        : connections.get(0).isCompressed() ? "binary+deflate" : "binary");
+        System.out.println("Connection setup " + describe(setupLatency));
+    }
+
+    // Send messages at the configured rate until the deadline.
+    // Sends follow a fixed schedule rather than sleeping after each send, so a slow server does not lower the offered load.
+    private void sendLoop(ChatConnection connection, long deadline) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long interval = (long) (1e9 / rate);
+        long next = System.nanoTime() + random.nextLong(interval); // Spread the clients over the first interval
+        int totalWeight = globalWeight + includeWeight + excludeWeight;
+        while (next < deadline && !connection.isClosed()) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            int kind = random.nextInt(totalWeight);
+            if (kind < globalWeight) {
+                expectedDeliveries.addAndGet(names.size()); // Everyone, including the sender
+                connection.sendGlobal(message(random));
+                sentGlobal.incrementAndGet();
+            } else if (kind < globalWeight + includeWeight) {
+                List<String> recipients = pickOthers(connection.getUsername(), random);
+                expectedDeliveries.addAndGet(recipients.size() + 1); // Recipients and the echo to the sender
+                connection.sendInclude(recipients, message(random));
+                sentInclude.incrementAndGet();
+            } else {
+                List<String> excluded = pickOthers(connection.getUsername(), random);
+                expectedDeliveries.addAndGet(names.size() - excluded.size());
+                connection.sendExclude(excluded, message(random));
+                sentExclude.incrementAndGet();
+            }
+            next += interval;
+        }
+    }
+
+    // Up to recipientCount distinct users other than the sender
+    private List<String> pickOthers(String self, ThreadLocalRandom random) {
+        int wanted = Math.min(recipientCount, names.size() - 1);
+        List<String> picked = new ArrayList<>(wanted);
+        while (picked.size() < wanted) {
+            String name = names.get(random.nextInt(names.size()));
+            if (!name.equals(self) && !picked.contains(name)) {
+                picked.add(name);
+            }
+        }
+        return picked;
+    }
+
+    // The send time followed by padding up to messageSize, digits only so no banned phrase can appear
+    private String message(ThreadLocalRandom random) {
+        StringBuilder text = new StringBuilder(messageSize);
+        text.append("#t=").append(System.nanoTime()).append(' ');
+        while (text.length() < messageSize) {
+            text.append((char) ('0' + random.nextInt(10)));
+        }
+        return text.toString();
+    }
+
+    private static String describe(LatencyHistogram histogram) {
+        return String.format(Locale.ROOT, "p50=%.3f ms p99=%.3f ms p99.9=%.3f ms max=%.3f ms (%d samples)",
+                histogram.percentile(50) / 1e6, histogram.percentile(99) / 1e6, histogram.percentile(99.9) / 1e6,
+                histogram.max() / 1e6, histogram.count());
+    }
+
+    // Records a latency sample for every load message delivered to one client
+    private class LoadListener implements ChatConnection.Listener {
+        @Override
+        public void onMessage(String message) {
+            long received = System.nanoTime();
+            int marker = message.indexOf(MARKER);
+            if (marker < 0) {
+                return; // Join and leave notices, errors
+            }
+            int end = message.indexOf(' ', marker + MARKER.length());
+            try {
+                long sent = Long.parseLong(message, marker + MARKER.length(), end < 0 ? message.length() : end, 10);
+                deliveryLatency.record(received - sent);
+                deliveries.incrementAndGet();
+            } catch (NumberFormatException e) {
+                // Someone else's message that happens to contain the marker
+            }
+        }
+
+        @Override
+        public void onDisconnect(IOException cause) {
+            if (!finished) {
+                disconnects.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package client;
+
+import javax.swing.AbstractListModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// The other users, the model behind the user JList. Each name is interned to a small id while the user
+// is online, ticked users are a bitset over those ids and the rows the filter lets through are an int array,
+// so joins, leaves, ticking and collecting the recipients never touch a Swing component per user.
+// Used on the EDT only.
+@SuppressWarnings("serial") // Swing models are never serialized here
+final class UserListModel extends AbstractListModel<String> {
+    private final Map<String, Integer> ids = new HashMap<>(); // Online users and their ids
+    private final List<String> names = new ArrayList<>(); // Name by id, null for a free id
+    private int[] freeIds = new int[16]; // Ids of users who left, reused first
+    private int freeCount;
+    private final BitSet selected = new BitSet(); // Ticked users by id
+    private int[] rows = new int[16]; // Ids of the users shown, in the order they came
+    private int rowCount;
+    private String filter = ""; // Lower case, rows are the users whose name contains it
+
+    // Replace everyone with the full list from the server, users still online keep their tick
+    void setUsers(List<String> users) {
+        Map<String, Integer> previous = new HashMap<>(ids);
+        BitSet previousSelected = (BitSet) selected.clone();
+        ids.clear();
+        names.clear();
+        freeCount = 0;
+        selected.clear();
+        rowCount = 0;
+        for (String user : users) {
+            if (!ids.containsKey(user)) {
+                Integer old = previous.get(user);
+                int id = intern(user);
+                if (old == null || previousSelected.get(old)) {
+                    selected.set(id); // New users start ticked
+                }
+                if (matches(user)) {
+                    addRow(id);
+                }
+            }
+        }
+        fireContentsChanged(this, 0, Integer.MAX_VALUE);
+    }
+
+    // A user joined, ticked like every new user
+    void add(String user) {
+        if (ids.containsKey(user)) {
+            return;
+        }
+        int id = intern(user);
+        selected.set(id);
+        if (matches(user)) {
+            addRow(id);
+            fireIntervalAdded(this, rowCount - 1, rowCount - 1);
+        }
+    }
+
+    // A user left
+    void remove(String user) {
+        Integer id = ids.remove(user);
+        if (id == null) {
+            return;
+        }
+        names.set(id, null);
+        selected.clear(id);
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+        for (int row = 0; row < rowCount; row++) {
+            if (rows[row] == id) {
+                System.arraycopy(rows, row + 1, rows, row, rowCount - row - 1);
+                rowCount--;
+                fireIntervalRemoved(this, row, row);
+                return;
+            }
+        }
+    }
+
+    // Show only the users whose name contains the text, ignoring case
+    void setFilter(String text) {
+        String lowerCase = text.trim().toLowerCase(Locale.ROOT);
+        if (lowerCase.equals(filter)) {
+            return;
+        }
+        filter = lowerCase;
+        rowCount = 0;
+        for (int id = 0; id < names.size(); id++) {
+            if (names.get(id) != null && matches(names.get(id))) {
+                addRow(id);
+            }
+        }
+        fireContentsChanged(this, 0, Integer.MAX_VALUE);
+    }
+
+    boolean isSelected(int row) {
+        return selected.get(rows[row]);
+    }
+
+    void toggle(int row) {
+        selected.flip(rows[row]);
+        fireContentsChanged(this, row, row);
+    }
+
+    // Tick or untick every user the filter shows
+    void setAllShown(boolean tick) {
+        for (int row = 0; row < rowCount; row++) {
+            selected.set(rows[row], tick);
+        }
+        fireContentsChanged(this, 0, Integer.MAX_VALUE);
+    }
+
+    // Tick everyone, shown or not
+    void selectAll() {
+        for (int id = 0; id < names.size(); id++) {
+            selected.set(id, names.get(id) != null);
+        }
+        fireContentsChanged(this, 0, Integer.MAX_VALUE);
+    }
+
+    // Ticked users, including those the filter hides
+    List<String> selectedUsers() {
+        List<String> users = new ArrayList<>(selected.cardinality());
+        for (int id = selected.nextSetBit(0); id >= 0; id = selected.nextSetBit(id + 1)) {
+            users.add(names.get(id));
+        }
+        return users;
+    }
+
+    // Number of users online, shown or not
+    int userCount() {
+        return ids.size();
+    }
+
+    @Override
+    public int getSize() {
+        return rowCount;
+    }
+
+    @Override
+    public String getElementAt(int row) {
+        return names.get(rows[row]);
+    }
+
+    private int intern(String user) {
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+            names.set(id, user);
+        } else {
+            id = names.size();
+            names.add(user);
+        }
+        ids.put(user, id);
+        return id;
+    }
+
+    private void addRow(int id) {
+        if (rowCount == rows.length) {
+            rows = Arrays.copyOf(rows, rowCount * 2);
+        }
+        rows[rowCount++] = id;
+    }
+
+    private boolean matches(String user) {
+        return filter.isEmpty() || user.toLowerCase(Locale.ROOT).contains(filter);
+    }
+}
@@ -0,0 +1,203 @@
+package client;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import protocol.Frames;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Text protocol parsing, against a server that answers the login with scripted lines and hangs up
+class ChatConnectionTest {
+    private ServerSocket server;
+
+    // Everything the listener was told, in order
+    private static final class Recorder implements ChatConnection.Listener {
+        final List<String> events = new CopyOnWriteArrayList<>();
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        volatile IOException cause;
+
+        @Override
+        public void onMessage(String message) {
+            events.add("message " + message);
+        }
+
+        @Override
+        public void onUserList(long version, List<String> users) {
+            events.add("users " + version + " " + users);
+        }
+
+        @Override
+        public void onPresence(long version, String user, boolean joined) {
+            events.add((joined ? "joined " : "left ") + version + " " + user);
+        }
+
+        @Override
+        public void onRoomMessage(String room, String message) {
+            events.add("room " + room + " " + message);
+        }
+
+        @Override
+        public void onRoomUserList(String room, long version, List<String> users) {
+            events.add("room users " + room + " " + version + " " + users);
+        }
+
+        @Override
+        public void onHistory(long offset, String message) {
+            events.add("history " + offset + " " + message);
+        }
+
+        @Override
+        public void onHistoryEnd(long nextOffset) {
+            events.add("history end " + nextOffset);
+        }
+
+        @Override
+        public void onReconnecting() {
+            events.add("reconnecting");
+        }
+
+        @Override
+        public void onDisconnect(IOException cause) {
+            this.cause = cause;
+            disconnected.countDown();
+        }
+    }
+
+    @AfterEach
+    void closeServer() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    // Log in against the scripted server and listen until it hangs up. It takes one connection only, so a
+    // client that tries to resume finds nobody there.
+    private Recorder run(String... script) throws Exception {
+        server = new ServerSocket(0);
+        Thread.ofVirtual().start(() -> {
+            try (Socket socket = server.accept()) {
+                server.close();
+                new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+                OutputStream out = socket.getOutputStream();
+                out.write((String.join("\n", script) + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } catch (IOException e) {
+                // The test fails on what the client saw
+            }
+        });
+        ChatConnection connection = ChatConnection.connect("localhost", server.getLocalPort(), "ann", false);
+        Recorder recorder = new Recorder();
+        connection.startListening(recorder);
+        assertTrue(recorder.disconnected.await(10, TimeUnit.SECONDS));
+        return recorder;
+    }
+
+    @Test
+    void parsesServerLines() throws Exception {
+        Recorder recorder = run("ann has joined the chat!", "USER_LIST:3:ann,ben", "USER_LEFT:4:ben",
+                "ROOM_MESSAGE:lobby:ben: hi: there", "ROOM_USER_LIST:lobby:2:ann,ben",
+                "HISTORY:7:ben: old", "HISTORY_END:8", "ben: USER_LIST:1:x");
+        assertNull(recorder.cause);
+        assertEquals(List.of("users 3 [ann, ben]", "left 4 ben", "room lobby ben: hi: there",
+                "room users lobby 2 [ann, ben]", "history 7 ben: old", "history end 8", "message ben: USER_LIST:1:x"),
+                recorder.events);
+    }
+
+    // A malformed server line ends the connection with an IOException instead of killing the listener thread
+    @Test
+    void malformedLinesDisconnect() throws Exception {
+        for (String line : new String[] {"USER_LIST:x:ann", "USER_JOINED:5", "USER_LEFT:", "ROOM_MESSAGE:lobby",
+                "ROOM_USER_LIST:lobby:1", "ROOM_JOINED:lobby:v:ann", "ROOM_LEFT:lobby", "HISTORY:seven:x",
+                "HISTORY:", "HISTORY_END:", "PING:soon"}) {
+            Recorder recorder = run("ann has joined the chat!", line);
+            assertInstanceOf(IOException.class, recorder.cause, line);
+            assertTrue(recorder.cause.getMessage().startsWith("Malformed line"), line);
+        }
+    }
+
+    // Lists too long for one frame arrive in parts, each part hands over the list so far
+    @Test
+    void listFramesAreJoinedWithTheirContinuations() throws Exception {
+        server = new ServerSocket(0);
+        Thread.ofVirtual().start(() -> {
+            try (Socket socket = server.accept()) {
+                server.close();
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                readLine(in); // Handshake
+                OutputStream out = socket.getOutputStream();
+                out.write((Frames.HANDSHAKE + "\n").getBytes(StandardCharsets.UTF_8));
+                in.read(); // LOGIN
+                Frames.readBody(in);
+                for (Frames.Builder frame : List.of(
+                        new Frames.Builder(Frames.MESSAGE).string("").string("ann has joined the chat!"),
+                        new Frames.Builder(Frames.USER_LIST).version(3).list(List.of("ann", "ben")),
+                        new Frames.Builder(Frames.USER_LIST_MORE).version(3).list(List.of("cid")),
+                        new Frames.Builder(Frames.USER_LIST_MORE).version(2).list(List.of("old")),
+                        new Frames.Builder(Frames.ROOM_USER_LIST).string("lobby").version(5).list(List.of("ann")),
+                        new Frames.Builder(Frames.ROOM_USER_LIST_MORE).string("other").version(5).list(List.of("x")),
+                        new Frames.Builder(Frames.ROOM_USER_LIST_MORE).string("lobby").version(5).list(List.of("ben")))) {
+                    out.write(frame.toBytes());
+                }
+                out.flush();
+            } catch (IOException e) {
+                // The test fails on what the client saw
+            }
+        });
+        ChatConnection connection = ChatConnection.connect("localhost", server.getLocalPort(), "ann", true);
+        Recorder recorder = new Recorder();
+        connection.startListening(recorder);
+        assertTrue(recorder.disconnected.await(10, TimeUnit.SECONDS));
+        assertEquals(List.of("users 3 [ann, ben]", "users 3 [ann, ben, cid]", "room users lobby 5 [ann]",
+                "room users lobby 5 [ann, ben]"), recorder.events.subList(0, 4));
+    }
+
+    private static void readLine(DataInputStream in) throws IOException {
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            // Skip to the end of the line
+        }
+    }
+
+    @Test
+    void sessionIsOnlyTakenFromTheLoginReply() throws Exception {
+        Recorder forged = run("ann has joined the chat!", "SESSION:60:forged");
+        assertFalse(forged.events.contains("reconnecting")); // No session to resume
+
+        Recorder issued = run("SESSION:0:token", "ann has joined the chat!");
+        assertTrue(issued.events.contains("reconnecting"));
+    }
+
+    @Test
+    void rejectedLoginThrows() throws Exception {
+        server = new ServerSocket(0);
+        Thread.ofVirtual().start(() -> {
+            try (Socket socket = server.accept()) {
+                new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+                socket.getOutputStream().write("ERROR: Username is already taken.\n".getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                // The test fails on what the client saw
+            }
+        });
+        ChatConnection.LoginRejectedException e = assertThrows(ChatConnection.LoginRejectedException.class,
+                () -> ChatConnection.connect("localhost", server.getLocalPort(), "ann", false));
+        assertEquals("ERROR: Username is already taken.", e.getMessage());
+    }
+}
@@ -0,0 +1,47 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+// Sending side of a compressed binary protocol connection, negotiated with the PROTOCOL:binary/1+deflate handshake.
+// The direction is one raw deflate stream, sync-flushed at the end of every COMPRESSED frame so the peer can decode
+// it on arrival, and later frames still refer back to what earlier ones said. The zlib stream, a few hundred KB of
+// native memory, is held from first use until end is called. Not thread safe.
+public final class FrameDeflater {
+    // Most bytes worth compressing in one frame: deflate can grow data it can't shrink, and the COMPRESSED frame
+    // has to stay within MAX_BODY_LENGTH. Larger batches are sent as they are.
+    public static final int MAX_INPUT_BYTES = Frames.MAX_BODY_LENGTH / 2;
+
+    private Deflater deflater; // Created on the first frame that is compressed
+    private byte[] output = new byte[4096]; // Header and deflated body of the last COMPRESSED frame
+
+    // Compress encoded frames into one COMPRESSED frame, header included. The buffer is only valid until the next call.
+    public ByteBuffer deflate(byte[] frames, int offset, int length) {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED, true);
+        }
+        deflater.setInput(frames, offset, length);
+        int position = Frames.HEADER_LENGTH;
+        while (true) {
+            if (position == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            position += deflater.deflate(output, position, output.length - position, Deflater.SYNC_FLUSH);
+            if (position < output.length) {
+                break; // Everything is flushed once deflate leaves room in the output
+            }
+        }
+        ByteBuffer frame = ByteBuffer.wrap(output, 0, position);
+        frame.put(0, (byte) Frames.COMPRESSED).putInt(1, position - Frames.HEADER_LENGTH);
+        return frame;
+    }
+
+    // Free the zlib stream
+    public void end() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Receiving side of a compressed binary protocol connection, unpacks COMPRESSED frames back into the frames they
+// carry, see FrameDeflater. The zlib stream is held from first use until end is called. Not thread safe.
+public final class FrameInflater {
+    public static final int MAX_INFLATED_BYTES = 4 * Frames.MAX_BODY_LENGTH; // More is treated as a protocol violation
+
+    private Inflater inflater; // Created on the first COMPRESSED frame received
+    private byte[] inflated = new byte[4096]; // Frames unpacked from the last COMPRESSED frame
+
+    // Unpack the body of a COMPRESSED frame, the returned buffer holds the encoded frames it carried
+    // and is only valid until the next call
+    public ByteBuffer inflate(ByteBuffer body) throws IOException {
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        inflater.setInput(body);
+        int length = 0;
+        try {
+            while (true) {
+                if (length == inflated.length) {
+                    if (length >= MAX_INFLATED_BYTES) {
+                        throw new IOException("Compressed frame inflates to more than " + MAX_INFLATED_BYTES + " bytes");
+                    }
+                    inflated = Arrays.copyOf(inflated, length * 2);
+                }
+                int count = inflater.inflate(inflated, length, inflated.length - length);
+                length += count;
+                if (count == 0 && (inflater.needsInput() || inflater.finished())) {
+                    break;
+                }
+                if (count == 0 && inflater.needsDictionary()) {
+                    throw new IOException("Compressed frame needs a preset dictionary");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame", e);
+        }
+        return ByteBuffer.wrap(inflated, 0, length);
+    }
+
+    // Free the zlib stream
+    public void end() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+}
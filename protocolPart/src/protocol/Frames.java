@@ -0,0 +1,249 @@
+package protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Binary protocol shared by the server and the client: after the handshake line every message is a frame of
+// opcode (1 byte), body length (4 bytes) and a body of typed fields.
+// Strings are a 4 byte length and UTF-8 bytes, lists a 4 byte count followed by strings, versions 8 bytes.
+// The server reads frame bodies from buffers, the client from streams, both kinds of reader are here.
+public final class Frames {
+    public static final String HANDSHAKE = "PROTOCOL:binary/1"; // Sent by the client as its first line, echoed by the server to accept
+    public static final String HANDSHAKE_DEFLATE = "PROTOCOL:binary/1+deflate"; // Also offers compression, echoed if the server compresses
+    public static final int HEADER_LENGTH = 5;
+    public static final int MAX_BODY_LENGTH = 1 << 20; // Larger frames are treated as a protocol violation
+
+    // Client to server
+    public static final int LOGIN = 0x01; // name
+    public static final int SEND = 0x02; // text
+    public static final int INCLUDE = 0x03; // recipients, text
+    public static final int EXCLUDE = 0x04; // excluded users, text
+    public static final int GET_BANNED_WORDS = 0x05;
+    public static final int GET_INSTRUCTIONS = 0x06;
+    public static final int GET_USER_LIST = 0x07;
+    public static final int GET_STATS = 0x08; // Admin users only
+    public static final int GET_HISTORY = 0x09; // count (8 bytes), the latest messages
+    public static final int GET_HISTORY_SINCE = 0x0A; // offset, messages from that offset on
+    public static final int JOIN_ROOM = 0x0B; // room
+    public static final int LEAVE_ROOM = 0x0C; // room
+    public static final int ROOM_SEND = 0x0D; // room, text
+    public static final int GET_ROOM_USER_LIST = 0x0E; // room
+    public static final int RESUME = 0x0F; // session token, messages received (8 bytes), instead of LOGIN
+    public static final int LOGOUT = 0x10; // Leaving for good, don't keep the session
+    public static final int PONG = 0x11; // Answer to PING
+
+    // Server to client
+    public static final int MESSAGE = 0x41; // sender (empty for server notices), text
+    public static final int ERROR = 0x42; // text
+    public static final int USER_LIST = 0x43; // version, names
+    public static final int USER_JOINED = 0x44; // version, name
+    public static final int USER_LEFT = 0x45; // version, name
+    public static final int BANNED_WORDS = 0x46; // words
+    public static final int INSTRUCTIONS = 0x47; // text
+    public static final int STATS = 0x48; // space separated name=value pairs
+    public static final int HISTORY = 0x49; // offset, sender (empty for server notices), text
+    public static final int HISTORY_END = 0x4A; // offset to ask for next time
+    public static final int ROOM_MESSAGE = 0x4B; // room, sender (empty for server notices), text
+    public static final int ROOM_USER_LIST = 0x4C; // room, version, names
+    public static final int ROOM_JOINED = 0x4D; // room, version, name
+    public static final int ROOM_LEFT = 0x4E; // room, version, name
+    public static final int SESSION = 0x4F; // session token, grace period in seconds (8 bytes)
+    public static final int RESUMED = 0x50; // messages replayed (8 bytes), they follow
+    public static final int RESUME_FAILED = 0x51; // reason, log in instead
+    public static final int PING = 0x52; // heartbeat interval in seconds (8 bytes), answer with PONG
+    public static final int USER_LIST_MORE = 0x53; // version, names: the rest of a USER_LIST too long for one frame
+    public static final int ROOM_USER_LIST_MORE = 0x54; // room, version, names: the rest of a ROOM_USER_LIST
+
+    // Either direction, once compression was negotiated
+    public static final int COMPRESSED = 0x7F; // deflate stream data holding whole frames, see Compression
+
+    private Frames() {
+    }
+
+    // Read a string field from a frame body
+    public static String readString(ByteBuffer body) {
+        int length = body.getInt();
+        if (length < 0 || length > body.remaining()) {
+            throw new IllegalArgumentException("Invalid string length " + length);
+        }
+        String value;
+        if (body.hasArray()) {
+            value = new String(body.array(), body.arrayOffset() + body.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            body.get(body.position(), bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        body.position(body.position() + length);
+        return value;
+    }
+
+    // Read a counted list of strings from a frame body
+    public static List<String> readList(ByteBuffer body) {
+        int count = body.getInt();
+        if (count < 0 || count > body.remaining() / 4) {
+            throw new IllegalArgumentException("Invalid list length " + count);
+        }
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString(body));
+        }
+        return values;
+    }
+
+    // Read a counted list of strings from a frame body into a set, for lookups rather than order
+    public static Set<String> readSet(ByteBuffer body) {
+        int count = body.getInt();
+        if (count < 0 || count > body.remaining() / 4) {
+            throw new IllegalArgumentException("Invalid list length " + count);
+        }
+        Set<String> values = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            values.add(readString(body));
+        }
+        return values;
+    }
+
+    // Write one frame, fields may be String, List<String> or Long
+    public static void write(DataOutputStream out, int opcode, Object... fields) throws IOException {
+        List<byte[]> encoded = new ArrayList<>();
+        int length = 0;
+        for (Object field : fields) {
+            if (field instanceof List<?> list) {
+                length += 4;
+                for (Object value : list) {
+                    byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+                    encoded.add(bytes);
+                    length += 4 + bytes.length;
+                }
+            } else if (field instanceof Long) {
+                length += 8;
+            } else {
+                byte[] bytes = field.toString().getBytes(StandardCharsets.UTF_8);
+                encoded.add(bytes);
+                length += 4 + bytes.length;
+            }
+        }
+
+        out.writeByte(opcode);
+        out.writeInt(length);
+        int next = 0;
+        for (Object field : fields) {
+            if (field instanceof List<?> list) {
+                out.writeInt(list.size());
+                for (int i = 0; i < list.size(); i++) {
+                    writeBytes(out, encoded.get(next++));
+                }
+            } else if (field instanceof Long value) {
+                out.writeLong(value);
+            } else {
+                writeBytes(out, encoded.get(next++));
+            }
+        }
+        out.flush();
+    }
+
+    // Read a frame body after its opcode, the caller then reads the fields from the returned stream
+    public static DataInputStream readBody(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_BODY_LENGTH) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return new DataInputStream(new ByteArrayInputStream(body));
+    }
+
+    // Read a string field from a frame body stream
+    public static String readString(DataInputStream body) throws IOException {
+        int length = body.readInt();
+        if (length < 0 || length > body.available()) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        body.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Read a counted list of strings from a frame body stream
+    public static List<String> readList(DataInputStream body) throws IOException {
+        int count = body.readInt();
+        if (count < 0 || count > body.available() / 4) {
+            throw new IOException("Invalid list length " + count);
+        }
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString(body));
+        }
+        return values;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // Builds one frame, fields are appended in order
+    public static final class Builder {
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final int opcode;
+
+        public Builder(int opcode) {
+            this.opcode = opcode;
+        }
+
+        public Builder string(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(bytes.length);
+            body.writeBytes(bytes);
+            return this;
+        }
+
+        public Builder list(Collection<String> values) {
+            writeInt(values.size());
+            for (String value : values) {
+                string(value);
+            }
+            return this;
+        }
+
+        // A string field from bytes that are already UTF-8 encoded
+        public Builder string(ByteBuffer utf8) {
+            writeInt(utf8.remaining());
+            byte[] bytes = new byte[utf8.remaining()];
+            utf8.get(utf8.position(), bytes);
+            body.writeBytes(bytes);
+            return this;
+        }
+
+        public Builder version(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+            return this;
+        }
+
+        // Header and body as one array
+        public byte[] toBytes() {
+            byte[] frame = new byte[HEADER_LENGTH + body.size()];
+            ByteBuffer.wrap(frame).put((byte) opcode).putInt(body.size()).put(body.toByteArray());
+            return frame;
+        }
+
+        private void writeInt(int value) {
+            body.write(value >>> 24);
+            body.write(value >>> 16);
+            body.write(value >>> 8);
+            body.write(value);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package protocol;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear histogram of non-negative values, in the spirit of HdrHistogram.
+// Values below 128 get a bucket each, above that every power of two is split into 64 buckets,
+// so a reported percentile is within 1/64 of the recorded value. Recording is lock-free and allocation-free.
+// Like LongAdder, the counts start in one array and are spread over per-thread stripes once two threads collide on it,
+// so hot buckets don't bounce one cache line between cores. Reading them merges the stripes.
+// Shared by the server's metrics and the client's load generator.
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // Buckets per power of two
+    private static final int LINEAR_BUCKETS = SUB_BUCKETS * 2; // Values below this are counted exactly
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+    // Power of two of at least the number of cores, each stripe takes about 30 KB once a thread uses it
+    private static final int STRIPES = Math.min(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+    private final AtomicLongArray base = new AtomicLongArray(BUCKET_COUNT); // Counts until the first collision
+    private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<>(STRIPES); // Created on first use
+    private volatile boolean contended; // Set by the first lost race, from then on every thread counts into its stripe
+    private final LongAdder sum = new LongAdder(); // Total of the recorded values
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        int bucket = bucketIndex(value);
+        if (contended) {
+            stripe().incrementAndGet(bucket);
+        } else {
+            long count = base.get(bucket);
+            if (!base.compareAndSet(bucket, count, count + 1)) {
+                contended = true;
+                stripe().incrementAndGet(bucket);
+            }
+        }
+        sum.add(value);
+    }
+
+    // The calling thread's stripe, picked by hashing its id
+    private AtomicLongArray stripe() {
+        int index = (int) ((Thread.currentThread().threadId() * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1);
+        AtomicLongArray stripe = stripes.get(index);
+        if (stripe == null) {
+            stripes.compareAndSet(index, null, new AtomicLongArray(BUCKET_COUNT));
+            stripe = stripes.get(index);
+        }
+        return stripe;
+    }
+
+    // Every bucket's count, summed over the base array and the stripes
+    private long[] counts() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = base.get(i);
+        }
+        for (int s = 0; s < STRIPES; s++) {
+            AtomicLongArray stripe = stripes.get(s);
+            if (stripe != null) {
+                for (int i = 0; i < BUCKET_COUNT; i++) {
+                    counts[i] += stripe.get(i);
+                }
+            }
+        }
+        return counts;
+    }
+
+    public long count() {
+        long total = 0;
+        for (long count : counts()) {
+            total += count;
+        }
+        return total;
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    // Highest value of the bucket holding the given percentile, 0 when nothing was recorded
+    public long percentile(double percentile) {
+        long[] counts = counts();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highestValue(i);
+            }
+        }
+        return highestValue(BUCKET_COUNT - 1);
+    }
+
+    public long max() {
+        long[] counts = counts();
+        for (int i = BUCKET_COUNT - 1; i >= 0; i--) {
+            if (counts[i] > 0) {
+                return highestValue(i);
+            }
+        }
+        return 0;
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        // Keep the top SUB_BUCKET_BITS + 1 bits, the highest one is implied by the shift
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestValue(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long top = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,69 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FrameCompressionTest {
+    private final FrameDeflater deflater = new FrameDeflater();
+    private final FrameInflater inflater = new FrameInflater();
+
+    // Later frames refer back to earlier ones, so each must decode with the same inflater in order
+    @Test
+    void framesDecodeInOrderOnOneStream() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            byte[] frames = new Frames.Builder(Frames.USER_LIST).version(i).list(List.of("ann", "ben", "cat")).toBytes();
+            ByteBuffer compressed = deflater.deflate(frames, 0, frames.length);
+            assertEquals(Frames.COMPRESSED, compressed.get());
+            assertEquals(compressed.remaining() - 4, compressed.getInt());
+            assertArrayEquals(frames, bytes(inflater.inflate(compressed)));
+        }
+    }
+
+    @Test
+    void largeBatchesGrowTheOutput() throws IOException {
+        byte[] frames = new byte[100_000];
+        new Random(1).nextBytes(frames); // Incompressible, the output ends up larger than the input
+        ByteBuffer compressed = deflater.deflate(frames, 0, frames.length);
+        compressed.position(Frames.HEADER_LENGTH);
+        assertArrayEquals(frames, bytes(inflater.inflate(compressed)));
+    }
+
+    @Test
+    void corruptDataIsRejected() {
+        ByteBuffer garbage = ByteBuffer.wrap(new byte[] {(byte) 0xFF, (byte) 0xFF, 0x00, 0x01});
+        assertThrows(IOException.class, () -> inflater.inflate(garbage));
+    }
+
+    // A small frame must not unpack into unbounded memory
+    @Test
+    void inflatedSizeIsBounded() {
+        byte[] zeros = new byte[FrameInflater.MAX_INFLATED_BYTES + 1];
+        ByteBuffer compressed = deflater.deflate(zeros, 0, zeros.length);
+        compressed.position(Frames.HEADER_LENGTH);
+        assertThrows(IOException.class, () -> inflater.inflate(compressed));
+    }
+
+    @Test
+    void endedStreamsStartOverOnNextUse() throws IOException {
+        byte[] frames = new Frames.Builder(Frames.MESSAGE).string("").string("hi").toBytes();
+        deflater.deflate(frames, 0, frames.length);
+        deflater.end();
+        inflater.end();
+        ByteBuffer compressed = deflater.deflate(frames, 0, frames.length);
+        compressed.position(Frames.HEADER_LENGTH);
+        assertArrayEquals(frames, bytes(inflater.inflate(compressed)));
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        return Arrays.copyOfRange(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.arrayOffset() + buffer.limit());
+    }
+}
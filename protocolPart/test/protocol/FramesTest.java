@@ -0,0 +1,123 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FramesTest {
+    @Test
+    void builderFieldsReadBack() {
+        byte[] frame = new Frames.Builder(Frames.ROOM_USER_LIST).string("lobby").version(42).list(List.of("ann", "bén")).toBytes();
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        assertEquals(Frames.ROOM_USER_LIST, buffer.get());
+        assertEquals(frame.length - Frames.HEADER_LENGTH, buffer.getInt());
+        assertEquals("lobby", Frames.readString(buffer));
+        assertEquals(42, buffer.getLong());
+        assertEquals(List.of("ann", "bén"), Frames.readList(buffer));
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    void utf8BufferFieldIsCopiedAsItIs() {
+        ByteBuffer utf8 = ByteBuffer.wrap("héllo".getBytes(StandardCharsets.UTF_8));
+        byte[] frame = new Frames.Builder(Frames.MESSAGE).string(utf8).toBytes();
+        assertEquals("héllo", Frames.readString(ByteBuffer.wrap(frame, Frames.HEADER_LENGTH, frame.length - Frames.HEADER_LENGTH)));
+        assertEquals(0, utf8.position()); // Left for the next recipient
+    }
+
+    @Test
+    void setReadsDistinctNames() {
+        byte[] frame = new Frames.Builder(Frames.EXCLUDE).list(List.of("ann", "ben", "ann")).toBytes();
+        assertEquals(Set.of("ann", "ben"), Frames.readSet(body(frame)));
+    }
+
+    @Test
+    void stringLongerThanTheBodyIsRejected() {
+        ByteBuffer body = ByteBuffer.allocate(6).putInt(3).put((byte) 'a').put((byte) 'b').flip();
+        assertThrows(IllegalArgumentException.class, () -> Frames.readString(body));
+        ByteBuffer negative = ByteBuffer.allocate(4).putInt(-1).flip();
+        assertThrows(IllegalArgumentException.class, () -> Frames.readString(negative));
+    }
+
+    @Test
+    void bodyTooShortForALengthUnderflows() {
+        assertThrows(BufferUnderflowException.class, () -> Frames.readString(ByteBuffer.wrap(new byte[3])));
+        assertThrows(BufferUnderflowException.class, () -> Frames.readList(ByteBuffer.wrap(new byte[0])));
+    }
+
+    // A count the body can't hold is refused before anything is allocated for it
+    @Test
+    void listCountBeyondTheBodyIsRejected() {
+        ByteBuffer huge = ByteBuffer.allocate(8).putInt(Integer.MAX_VALUE).putInt(0).flip();
+        assertThrows(IllegalArgumentException.class, () -> Frames.readList(huge));
+        ByteBuffer negative = ByteBuffer.allocate(4).putInt(-5).flip();
+        assertThrows(IllegalArgumentException.class, () -> Frames.readSet(negative));
+    }
+
+    @Test
+    void streamFramesReadBack() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Frames.write(new DataOutputStream(bytes), Frames.INCLUDE, List.of("ann", "ben"), "hi");
+        Frames.write(new DataOutputStream(bytes), Frames.GET_HISTORY, 20L);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+
+        assertEquals(Frames.INCLUDE, in.read());
+        DataInputStream body = Frames.readBody(in);
+        assertEquals(List.of("ann", "ben"), Frames.readList(body));
+        assertEquals("hi", Frames.readString(body));
+        assertEquals(Frames.GET_HISTORY, in.read());
+        assertEquals(20, Frames.readBody(in).readLong());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    void streamWriterMatchesTheBuilder() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Frames.write(new DataOutputStream(bytes), Frames.RESUME, "token", 7L);
+        assertArrayEquals(new Frames.Builder(Frames.RESUME).string("token").version(7).toBytes(), bytes.toByteArray());
+    }
+
+    @Test
+    void invalidFrameLengthIsRejected() {
+        byte[] negative = ByteBuffer.allocate(4).putInt(-1).array();
+        assertThrows(IOException.class, () -> Frames.readBody(stream(negative)));
+        byte[] tooLong = ByteBuffer.allocate(4).putInt(Frames.MAX_BODY_LENGTH + 1).array();
+        assertThrows(IOException.class, () -> Frames.readBody(stream(tooLong)));
+    }
+
+    @Test
+    void streamEndingInsideABodyIsRejected() {
+        byte[] cut = ByteBuffer.allocate(6).putInt(10).putShort((short) 0).array();
+        assertThrows(IOException.class, () -> Frames.readBody(stream(cut)));
+    }
+
+    @Test
+    void malformedStreamFieldsAreRejected() {
+        byte[] longString = ByteBuffer.allocate(6).putInt(5).putShort((short) 0).array();
+        assertThrows(IOException.class, () -> Frames.readString(stream(longString)));
+        byte[] hugeList = ByteBuffer.allocate(8).putInt(1 << 30).putInt(0).array();
+        assertThrows(IOException.class, () -> Frames.readList(stream(hugeList)));
+        assertThrows(IOException.class, () -> Frames.readString(stream(new byte[2])));
+    }
+
+    private static ByteBuffer body(byte[] frame) {
+        return ByteBuffer.wrap(frame, Frames.HEADER_LENGTH, frame.length - Frames.HEADER_LENGTH).slice();
+    }
+
+    private static DataInputStream stream(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+}
@@ -0,0 +1,66 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+    @Test
+    void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(99));
+        assertEquals(0, histogram.max());
+    }
+
+    @Test
+    void percentilesAreWithinABucketOfTheValue() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.count());
+        assertEquals(500_500_000L, histogram.sum());
+        long p50 = histogram.percentile(50);
+        assertTrue(p50 >= 500_000 && p50 <= 500_000 + 500_000 / 64, "p50 " + p50);
+        long max = histogram.max();
+        assertTrue(max >= 1_000_000 && max <= 1_000_000 + 1_000_000 / 64, "max " + max);
+        histogram.record(-5); // Counted as 0
+        assertEquals(0, histogram.percentile(0));
+    }
+
+    // Threads racing on the same buckets spill into stripes, nothing may get lost when they are merged again
+    @Test
+    void concurrentRecordingIsMergedExactly() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        int threads = 8;
+        int perThread = 100_000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(Thread.ofPlatform().start(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    histogram.record(i % 2 == 0 ? 10 : 100_000);
+                }
+            }));
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals((long) threads * perThread, histogram.count());
+        assertEquals(10, histogram.percentile(50));
+        long max = histogram.max();
+        assertTrue(max >= 100_000 && max <= 100_000 + 100_000 / 64, "max " + max);
+    }
+}
@@ -0,0 +1,138 @@
+package server;
+
+import java.util.*;
+
+// Aho-Corasick automaton compiled from the banned phrases, finds every phrase in a single scan
+final class BannedPhraseMatcher {
+    private final String[] phrases; // Distinct phrases, indexed by pattern id
+    private final int[] edgeStart; // Offset of each state's first outgoing edge (CSR layout)
+    private final char[] edgeChars; // Edge labels, sorted per state for binary search
+    private final int[] edgeTargets; // Target state of each edge
+    private final int[] fail; // Failure link of each state
+    private final int[] output; // Pattern id ending exactly at each state, or -1
+    private final int[] dictLink; // Nearest state on the failure chain that has an output, or -1
+
+    // Build the automaton from the configured phrases
+    BannedPhraseMatcher(Collection<String> bannedPhrases) {
+        this.phrases = new LinkedHashSet<>(bannedPhrases).toArray(new String[0]);
+
+        // Build a plain trie first, one sorted child map per state
+        List<TreeMap<Character, Integer>> children = new ArrayList<>();
+        List<Integer> outputs = new ArrayList<>();
+        children.add(new TreeMap<>());
+        outputs.add(-1);
+        for (int id = 0; id < phrases.length; id++) {
+            int state = 0;
+            for (int i = 0; i < phrases[id].length(); i++) {
+                Integer next = children.get(state).get(phrases[id].charAt(i));
+                if (next == null) {
+                    next = children.size();
+                    children.add(new TreeMap<>());
+                    outputs.add(-1);
+                    children.get(state).put(phrases[id].charAt(i), next);
+                }
+                state = next;
+            }
+            outputs.set(state, id);
+        }
+
+        // Flatten the trie into compact arrays so scanning never touches boxed values
+        int stateCount = children.size();
+        this.edgeStart = new int[stateCount + 1];
+        this.edgeChars = new char[stateCount - 1];
+        this.edgeTargets = new int[stateCount - 1];
+        this.output = new int[stateCount];
+        int edge = 0;
+        for (int state = 0; state < stateCount; state++) {
+            edgeStart[state] = edge;
+            for (Map.Entry<Character, Integer> entry : children.get(state).entrySet()) {
+                edgeChars[edge] = entry.getKey();
+                edgeTargets[edge] = entry.getValue();
+                edge++;
+            }
+            output[state] = outputs.get(state);
+        }
+        edgeStart[stateCount] = edge;
+
+        // Compute failure and dictionary links breadth-first
+        this.fail = new int[stateCount];
+        this.dictLink = new int[stateCount];
+        dictLink[0] = -1;
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int e = edgeStart[0]; e < edgeStart[1]; e++) {
+            int child = edgeTargets[e];
+            fail[child] = 0;
+            dictLink[child] = output[0] >= 0 ? 0 : -1;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int e = edgeStart[state]; e < edgeStart[state + 1]; e++) {
+                int child = edgeTargets[e];
+                int f = fail[state];
+                int next;
+                while ((next = transition(f, edgeChars[e])) < 0 && f != 0) {
+                    f = fail[f];
+                }
+                fail[child] = next < 0 ? 0 : next;
+                dictLink[child] = output[fail[child]] >= 0 ? fail[child] : dictLink[fail[child]];
+                queue.add(child);
+            }
+        }
+    }
+
+    // Return every banned phrase found in the text, or null if the text is clean (no allocation in that case)
+    List<String> findAll(String text) {
+        List<String> found = collect(0, null);
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int next;
+            while ((next = transition(state, c)) < 0 && state != 0) {
+                state = fail[state];
+            }
+            state = next < 0 ? 0 : next;
+            if (output[state] >= 0 || dictLink[state] >= 0) {
+                found = collect(state, found);
+            }
+        }
+        return found;
+    }
+
+    // Number of distinct phrases compiled into the automaton
+    int size() {
+        return phrases.length;
+    }
+
+    // Add the phrases ending at the given state (and along its dictionary links) to the result
+    private List<String> collect(int state, List<String> found) {
+        for (int s = output[state] >= 0 ? state : dictLink[state]; s >= 0; s = dictLink[s]) {
+            String phrase = phrases[output[s]];
+            if (found == null) {
+                found = new ArrayList<>();
+            }
+            if (!found.contains(phrase)) {
+                found.add(phrase); // Report each phrase once, like the original per-phrase check
+            }
+        }
+        return found;
+    }
+
+    // Follow the goto edge for a character, or -1 if the state has none
+    private int transition(int state, char c) {
+        int low = edgeStart[state];
+        int high = edgeStart[state + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            char label = edgeChars[mid];
+            if (label < c) {
+                low = mid + 1;
+            } else if (label > c) {
+                high = mid - 1;
+            } else {
+                return edgeTargets[mid];
+            }
+        }
+        return -1;
+    }
+}
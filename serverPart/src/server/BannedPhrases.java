@@ -0,0 +1,19 @@
+package server;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+// One version of the banned phrases: the phrases, their compiled matcher and the GET_BANNED_WORDS reply.
+// Never modified once built, a configuration change publishes a new instance in place of the old one.
+final class BannedPhrases {
+    final Set<String> phrases;
+    final BannedPhraseMatcher matcher;
+    final Payload reply; // Encoded once, shared by every client that asks
+
+    BannedPhrases(Set<String> phrases) {
+        this.phrases = Collections.unmodifiableSet(new LinkedHashSet<>(phrases));
+        this.matcher = new BannedPhraseMatcher(this.phrases);
+        this.reply = Payload.bannedWords(this.phrases);
+    }
+}
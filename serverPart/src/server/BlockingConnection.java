@@ -0,0 +1,218 @@
+package server;
+
+import protocol.Frames;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.function.Function;
+
+// Thread-per-connection transport: a virtual thread reads lines or frames, another drains the outbound queue
+final class BlockingConnection implements Connection, Runnable {
+    private static final int RETAINED_INPUT_BYTES = 64 * 1024; // Larger lines and frames get a buffer of their own, dropped after use
+
+    private final Socket socket;
+    private final OutboundQueue outbound; // Messages waiting to be written
+    private final Function<Connection, Handler> handlerFactory; // Creates the protocol handler for this connection
+    private final int writeBatchBytes; // Buffered output is flushed once it reaches this size
+    private final long writeBatchWindowNanos; // How long a batch may wait for more messages before it is flushed
+    private Thread writer; // Virtual thread draining the outbound queue
+    private volatile boolean closed; // Set once we closed the socket ourselves
+    private volatile boolean binary; // Frames instead of lines, after the handshake
+    private volatile Compression compression; // Set once compression was negotiated
+    private ByteBuffer input = ByteBuffer.allocate(1024); // Reused for every line or frame body read, by the reader only
+
+    BlockingConnection(Socket socket, OutboundQueue outbound, int writeBatchBytes, long writeBatchWindowNanos,
+                       Function<Connection, Handler> handlerFactory) {
+        this.socket = socket;
+        this.outbound = outbound;
+        this.writeBatchBytes = writeBatchBytes;
+        this.writeBatchWindowNanos = writeBatchWindowNanos;
+        this.handlerFactory = handlerFactory;
+    }
+
+    @Override
+    public void run() {
+        Handler handler = handlerFactory.apply(this);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            OutputStream out = socket.getOutputStream();
+            this.writer = Thread.ofVirtual().start(() -> writeOutbound(out));
+
+            // Hand every line or frame to the protocol handler until the client disconnects
+            while (!closed) {
+                if (binary) {
+                    int opcode = in.read();
+                    if (opcode < 0) {
+                        break;
+                    }
+                    int length = in.readInt();
+                    if (length < 0 || length > Frames.MAX_BODY_LENGTH) {
+                        break; // Protocol violation
+                    }
+                    ByteBuffer body = inputBuffer(length);
+                    in.readFully(body.array(), 0, length);
+                    body.limit(length);
+                    if (opcode != Frames.COMPRESSED) {
+                        handler.onFrame(opcode, body);
+                    } else if (compression != null) {
+                        compression.inflate(body, handler);
+                    } else {
+                        break; // Protocol violation, compression was not negotiated
+                    }
+                } else {
+                    ByteBuffer line = readLine(in);
+                    if (line == null) {
+                        break;
+                    }
+                    handler.onLine(line);
+                }
+            }
+        } catch (EOFException e) {
+            // Client disconnected in the middle of a frame
+        } catch (IOException e) {
+            if (!closed) {
+                e.printStackTrace();
+            }
+        } finally {
+            close();
+            handler.onClose(); // Ensure proper cleanup on client disconnect
+            if (compression != null) {
+                compression.endInput();
+            }
+        }
+    }
+
+    @Override
+    public void send(Payload payload) {
+        if (!outbound.offer(payload)) {
+            // The client is not keeping up, drop the connection so it can't stall anyone else
+            System.out.println(socket.getRemoteSocketAddress() + " disconnected: outbound queue overflow");
+            close();
+        }
+    }
+
+    @Override
+    public int queuedMessages() {
+        return outbound.size();
+    }
+
+    @Override
+    public void switchToBinary() {
+        binary = true; // Seen by the reader after the current line, and by the writer for the next message
+    }
+
+    @Override
+    public void disconnectOnOverflow() {
+        outbound.disconnectOnOverflow();
+    }
+
+    @Override
+    public void enableCompression(Compression compression) {
+        this.compression = compression; // Seen by the reader for the next frame, and by the writer for the next message
+    }
+
+    @Override
+    public void closeAfterFlush() {
+        outbound.finish(); // The writer closes the socket once the queue is drained
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        outbound.finish(); // Lets the writer exit even if it has not been interrupted
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (writer != null) {
+            writer.interrupt(); // Stop the writer thread
+        }
+    }
+
+    // Read one line without its terminator, like BufferedReader.readLine but without reading past it or decoding it.
+    // Null at the end of the stream.
+    private ByteBuffer readLine(DataInputStream in) throws IOException {
+        ByteBuffer line = inputBuffer(0);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return line.position() > 0 ? line.flip() : null;
+            }
+            if (!line.hasRemaining()) {
+                if (line.capacity() >= Frames.MAX_BODY_LENGTH) {
+                    throw new IOException("Line too long");
+                }
+                line = ByteBuffer.allocate(line.capacity() * 2).put(line.flip());
+                if (line.capacity() <= RETAINED_INPUT_BYTES) {
+                    input = line;
+                }
+            }
+            line.put((byte) b);
+        }
+        if (line.position() > 0 && line.get(line.position() - 1) == '\r') {
+            line.position(line.position() - 1);
+        }
+        return line.flip();
+    }
+
+    // The reusable input buffer, cleared and large enough for the given length, or a one-off buffer for a large one
+    private ByteBuffer inputBuffer(int length) {
+        if (length > input.capacity()) {
+            if (length > RETAINED_INPUT_BYTES) {
+                return ByteBuffer.allocate(length);
+            }
+            input = ByteBuffer.allocate(Math.min(RETAINED_INPUT_BYTES, Math.max(length, input.capacity() * 2)));
+        }
+        return input.clear();
+    }
+
+    // Write queued messages to the socket until the connection closes.
+    // Everything queued while a batch is being written goes out with it, so a burst costs one write per batch, not per message.
+    // With compression the batch is staged instead and goes out as one COMPRESSED frame.
+    private void writeOutbound(OutputStream socketOut) {
+        BufferedOutputStream out = new BufferedOutputStream(socketOut, writeBatchBytes); // Writes through once a batch is full
+        try {
+            Payload payload;
+            while ((payload = outbound.take()) != null) {
+                long deadline = System.nanoTime() + writeBatchWindowNanos;
+                do {
+                    Compression compression = this.compression;
+                    if (compression == null) {
+                        payload.writeTo(out, binary);
+                    } else {
+                        compression.stage(payload);
+                        if (compression.staged() >= writeBatchBytes) {
+                            writeBatch(compression, out);
+                        }
+                    }
+                    payload = outbound.poll();
+                    if (payload == null && writeBatchWindowNanos > 0) {
+                        payload = outbound.poll(deadline - System.nanoTime()); // Give the batch a moment to fill up
+                    }
+                } while (payload != null);
+                if (compression != null) {
+                    writeBatch(compression, out);
+                }
+                out.flush();
+            }
+            close(); // Queue was finished and drained
+        } catch (InterruptedException | IOException e) {
+            // Client disconnected, stop writing
+        } finally {
+            if (compression != null) {
+                compression.endOutput();
+            }
+        }
+    }
+
+    private static void writeBatch(Compression compression, OutputStream out) throws IOException {
+        ByteBuffer batch = compression.takeBatch();
+        out.write(batch.array(), batch.arrayOffset() + batch.position(), batch.remaining());
+    }
+}
@@ -0,0 +1,164 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+// Registry of logged-in clients: lock-free lookups and fan-out, atomic name reservation on login
+final class ClientRegistry<C> {
+    // Immutable view of the registry, names and clients at the same index belong together
+    static final class Snapshot<C> {
+        final long version; // Increases with every join or leave
+        final List<String> names;
+        final List<C> clients;
+        private final byte[][] indexNames; // Open addressing table of UTF-8 names, null if the registry is not indexed
+        private final Object[] indexClients; // Client of the name in the same slot
+
+        Snapshot(long version, List<String> names, List<C> clients, byte[][] indexNames, Object[] indexClients) {
+            this.version = version;
+            this.names = names;
+            this.clients = clients;
+            this.indexNames = indexNames;
+            this.indexClients = indexClients;
+        }
+    }
+
+    private final ConcurrentHashMap<String, C> clients = new ConcurrentHashMap<>(); // Name lookups, never block readers
+    private final Object membershipLock = new Object(); // Serializes joins and leaves only, never held while sending
+    private final Map<String, byte[]> encodedNames; // UTF-8 form of every registered name, guarded by membershipLock, null if not indexed
+    private volatile Snapshot<C> snapshot;
+
+    ClientRegistry() {
+        this(false);
+    }
+
+    // An indexed registry also finds clients by the UTF-8 bytes of their name, as received, without decoding them
+    ClientRegistry(boolean indexed) {
+        this.encodedNames = indexed ? new HashMap<>() : null;
+        this.snapshot = new Snapshot<>(0, Collections.emptyList(), Collections.emptyList(),
+                indexed ? new byte[1][] : null, indexed ? new Object[1] : null);
+    }
+
+    // Reserve a name for a client, returns false if the name is already taken.
+    // onJoin runs with the new snapshot before any later join or leave is published, so presence updates stay in order.
+    boolean register(String name, C client, Consumer<Snapshot<C>> onJoin) {
+        synchronized (membershipLock) {
+            if (clients.putIfAbsent(name, client) != null) {
+                return false;
+            }
+            if (encodedNames != null) {
+                encodedNames.put(name, name.getBytes(StandardCharsets.UTF_8)); // Encoded once, shared by every later snapshot
+            }
+            onJoin.accept(publish());
+            return true;
+        }
+    }
+
+    // Release a client's name, returns false if it was not registered under that name.
+    // onLeave runs with the new snapshot, ordered like onJoin.
+    boolean unregister(String name, C client, Consumer<Snapshot<C>> onLeave) {
+        synchronized (membershipLock) {
+            if (!clients.remove(name, client)) {
+                return false;
+            }
+            if (encodedNames != null) {
+                encodedNames.remove(name);
+            }
+            onLeave.accept(publish());
+            return true;
+        }
+    }
+
+    // Run an action with the current snapshot, ordered with the onJoin and onLeave callbacks
+    void withSnapshot(Consumer<Snapshot<C>> action) {
+        synchronized (membershipLock) {
+            action.accept(snapshot);
+        }
+    }
+
+    // Look up a client by name without locking, null if nobody is logged in under it
+    C get(String name) {
+        return clients.get(name);
+    }
+
+    // Look up a client by the UTF-8 bytes of its name between two absolute indexes, without locking or allocating.
+    // Only for indexed registries, sees the latest published snapshot.
+    @SuppressWarnings("unchecked")
+    C get(ByteBuffer bytes, int from, int to) {
+        Snapshot<C> current = snapshot;
+        byte[][] names = current.indexNames;
+        int mask = names.length - 1;
+        for (int slot = hash(bytes, from, to) & mask; names[slot] != null; slot = (slot + 1) & mask) {
+            if (matches(names[slot], bytes, from, to)) {
+                return (C) current.indexClients[slot];
+            }
+        }
+        return null;
+    }
+
+    // Current consistent view of every client, safe to iterate while others join or leave
+    Snapshot<C> snapshot() {
+        return snapshot;
+    }
+
+    // Rebuild the snapshot after a membership change, called with membershipLock held
+    private Snapshot<C> publish() {
+        List<String> names = new ArrayList<>(clients.size());
+        List<C> members = new ArrayList<>(clients.size());
+        clients.forEach((name, client) -> {
+            names.add(name);
+            members.add(client);
+        });
+        byte[][] indexNames = null;
+        Object[] indexClients = null;
+        if (encodedNames != null) {
+            // At most half full, so probes stay short and a miss always reaches an empty slot
+            int capacity = Integer.highestOneBit(Math.max(1, names.size()) * 2) * 2;
+            indexNames = new byte[capacity][];
+            indexClients = new Object[capacity];
+            for (int i = 0; i < names.size(); i++) {
+                byte[] name = encodedNames.get(names.get(i));
+                int slot = hash(ByteBuffer.wrap(name), 0, name.length) & (capacity - 1);
+                while (indexNames[slot] != null) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                indexNames[slot] = name;
+                indexClients[slot] = members.get(i);
+            }
+        }
+        snapshot = new Snapshot<>(snapshot.version + 1,
+                Collections.unmodifiableList(names), Collections.unmodifiableList(members), indexNames, indexClients);
+        return snapshot;
+    }
+
+    private static int hash(ByteBuffer bytes, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + bytes.get(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(byte[] name, ByteBuffer bytes, int from, int to) {
+        if (name.length != to - from) {
+            return false;
+        }
+        if (bytes.hasArray()) {
+            int offset = bytes.arrayOffset() + from;
+            return Arrays.equals(name, 0, name.length, bytes.array(), offset, offset + name.length);
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (name[i] != bytes.get(from + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,460 @@
+package server;
+
+import protocol.Frames;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// Links several servers into one chat. Every node dials every peer and only sends on that link, so each
+// pair of nodes is joined by two one-way links. Events are framed like the binary client protocol and
+// coalesced into batched writes. Each username is owned by one node, picked by hashing the name over the
+// sorted member list, and a login has to reserve the name there first, which keeps names unique across the cluster.
+final class Cluster {
+    // Node to node events
+    private static final int HELLO = 0x81; // node, shared secret: first event on every link
+    private static final int JOIN = 0x82; // name, a user logged in on the sending node
+    private static final int LEAVE = 0x83; // name
+    private static final int BROADCAST = 0x84; // sender (empty for server notices), excluded users, text
+    private static final int DIRECT = 0x85; // sender, readers, text: deliver to the readers connected here
+    private static final int RESERVE = 0x86; // request id, name: asks the owner node for a name
+    private static final int RESERVE_REPLY = 0x87; // request id, 1 if the name is ours
+    private static final int RELEASE = 0x88; // name, gives a reservation back to the owner node
+    private static final int ROOM_JOIN = 0x89; // room, name: a user of the sending node joined a room
+    private static final int ROOM_LEAVE = 0x8A; // room, name
+    private static final int ROOM_MESSAGE = 0x8B; // room, sender, text: deliver to the room's members connected here
+
+    private static final int LINK_QUEUE_CAPACITY = 65536; // Events waiting for one peer before the link is reset
+    private static final int LINK_BUFFER_BYTES = 64 * 1024; // Events are coalesced into writes of up to this size
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    private static final long RESERVE_TIMEOUT_MILLIS = 3000;
+
+    // Receives what the other nodes report, called from the thread reading that node's link
+    interface Listener {
+        void onRemoteJoin(String node, String name);
+
+        void onRemoteLeave(String node, String name);
+
+        void onRemoteBroadcast(String sender, String text, Set<String> excludedUsers);
+
+        void onRemoteDirect(String sender, String text, List<String> readers);
+
+        void onRemoteRoomJoin(String node, String room, String name);
+
+        void onRemoteRoomLeave(String node, String room, String name);
+
+        void onRemoteRoomMessage(String room, String sender, String text);
+
+        // The node's link closed, its users are gone until it reconnects
+        void onNodeDown(String node);
+
+        // A link to a peer came up: pass every local user to announceUser and their rooms to announceRoom,
+        // then call markUp, in one step with logins, logouts and room changes so the peer sees each exactly once
+        void onLinkUp(Consumer<String> announceUser, BiConsumer<String, String> announceRoom, Runnable markUp);
+    }
+
+    private final String self; // Our address as the peers list it
+    private final int port; // Where peers connect to us
+    private final InetAddress bindAddress; // Interface the peer port listens on
+    private final String secret; // Shared by every node, a link whose HELLO doesn't carry it is refused
+    private final List<String> members; // Every node including us, sorted, the same on every node
+    private final Map<String, PeerLink> links = new ConcurrentHashMap<>(); // Outgoing link per peer
+    private final Map<String, Socket> inbound = new ConcurrentHashMap<>(); // Current incoming link per peer
+    private final Map<String, String> reservations = new ConcurrentHashMap<>(); // Names we own, and the node using each
+    private final Map<Long, CompletableFuture<Boolean>> pendingReservations = new ConcurrentHashMap<>();
+    private final AtomicLong requestIds = new AtomicLong();
+    private final Metrics metrics;
+    private Listener listener;
+
+    Cluster(String self, int port, InetAddress bindAddress, String secret, Collection<String> peers, Metrics metrics) {
+        this.self = self;
+        this.port = port;
+        this.bindAddress = bindAddress;
+        this.secret = secret;
+        this.metrics = metrics;
+        List<String> nodes = new ArrayList<>(peers);
+        nodes.add(self);
+        Collections.sort(nodes);
+        this.members = Collections.unmodifiableList(nodes);
+        for (String peer : peers) {
+            links.put(peer, new PeerLink(peer));
+        }
+    }
+
+    // Accept links from the peers and keep dialing ours
+    void start(Listener listener) throws IOException {
+        this.listener = listener;
+        ServerSocket serverSocket = new ServerSocket(port, 50, bindAddress);
+        Thread.ofVirtual().name("cluster-accept").start(() -> {
+            try (serverSocket) {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    Thread.ofVirtual().start(() -> readLink(socket));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        for (PeerLink link : links.values()) {
+            Thread.ofVirtual().name("cluster-link-" + link.node).start(link);
+        }
+    }
+
+    // Reserve a name for a local login, completes with false if another node's user has it
+    CompletableFuture<Boolean> reserve(String name) {
+        String owner = ownerOf(name);
+        if (owner.equals(self)) {
+            return CompletableFuture.completedFuture(claim(name, self));
+        }
+        PeerLink link = links.get(owner);
+        if (!link.up) {
+            return CompletableFuture.failedFuture(new IOException("Node " + owner + " is not reachable"));
+        }
+        long id = requestIds.incrementAndGet();
+        CompletableFuture<Boolean> reply = new CompletableFuture<>();
+        pendingReservations.put(id, reply);
+        link.send(new Frames.Builder(RESERVE).version(id).string(name).toBytes());
+        return reply.orTimeout(RESERVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .whenComplete((reserved, error) -> pendingReservations.remove(id));
+    }
+
+    // Give a name back after its user logged out
+    void release(String name) {
+        String owner = ownerOf(name);
+        if (owner.equals(self)) {
+            reservations.remove(name, self);
+        } else {
+            links.get(owner).send(new Frames.Builder(RELEASE).string(name).toBytes());
+        }
+    }
+
+    // Tell the peers about a local login, called from the registry's onJoin callback
+    void announceJoin(String name) {
+        sendToAll(new Frames.Builder(JOIN).string(name).toBytes());
+    }
+
+    // Tell the peers about a local logout, called from the registry's onLeave callback
+    void announceLeave(String name) {
+        sendToAll(new Frames.Builder(LEAVE).string(name).toBytes());
+    }
+
+    // Relay a global or EXCLUDE message, encoded once for every peer
+    void broadcast(String sender, String text, Set<String> excludedUsers) {
+        sendToAll(new Frames.Builder(BROADCAST).string(sender != null ? sender : "")
+                .list(excludedUsers != null ? excludedUsers : Collections.emptySet()).string(text).toBytes());
+    }
+
+    // Relay an INCLUDE message to the nodes its recipients are connected to, readers lists everyone who may see it
+    void direct(Collection<String> nodes, String sender, String text, List<String> readers) {
+        byte[] frame = new Frames.Builder(DIRECT).string(sender).list(readers).string(text).toBytes();
+        for (String node : nodes) {
+            PeerLink link = links.get(node);
+            if (link != null) {
+                link.send(frame);
+            }
+        }
+    }
+
+    // Tell the peers a local user joined a room
+    void announceRoomJoin(String room, String name) {
+        sendToAll(new Frames.Builder(ROOM_JOIN).string(room).string(name).toBytes());
+    }
+
+    // Tell the peers a local user left a room
+    void announceRoomLeave(String room, String name) {
+        sendToAll(new Frames.Builder(ROOM_LEAVE).string(room).string(name).toBytes());
+    }
+
+    // Relay a room message to the nodes with members in the room
+    void roomMessage(Collection<String> nodes, String room, String sender, String text) {
+        byte[] frame = new Frames.Builder(ROOM_MESSAGE).string(room).string(sender).string(text).toBytes();
+        for (String node : nodes) {
+            PeerLink link = links.get(node);
+            if (link != null) {
+                link.send(frame);
+            }
+        }
+    }
+
+    private void sendToAll(byte[] frame) {
+        for (PeerLink link : links.values()) {
+            link.send(frame);
+        }
+    }
+
+    private String ownerOf(String name) {
+        return members.get(Math.floorMod(name.hashCode(), members.size()));
+    }
+
+    // Record that a node uses a name we own, false if a different node already does
+    private boolean claim(String name, String node) {
+        String holder = reservations.putIfAbsent(name, node);
+        return holder == null || holder.equals(node);
+    }
+
+    // Read the events one peer sends us until its link closes
+    private void readLink(Socket socket) {
+        String node = null; // Set once the peer proved it is one, a refused link must not take the real node down
+        try (socket; DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            ByteBuffer hello = readEvent(in, HELLO);
+            String claimed = hello != null ? Frames.readString(hello) : null;
+            if (claimed == null || !links.containsKey(claimed)) {
+                System.out.println("Cluster link from unknown node " + claimed + " refused");
+                return;
+            }
+            if (!MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), // Compared in constant time
+                    Frames.readString(hello).getBytes(StandardCharsets.UTF_8))) {
+                System.out.println("Cluster link from " + socket.getInetAddress() + " claiming to be " + claimed
+                        + " refused: wrong secret");
+                return;
+            }
+            node = claimed;
+            Socket previous = inbound.put(node, socket);
+            if (previous != null) { // The peer redialed before we noticed its old link fail, drop what it announced there
+                System.out.println("Cluster link from " + node + " replaced");
+                previous.close();
+                nodeDown(node);
+            }
+            int opcode;
+            while ((opcode = in.read()) >= 0 && inbound.get(node) == socket) {
+                ByteBuffer body = readBody(in);
+                metrics.clusterEventsReceived.increment();
+                handle(node, opcode, body);
+            }
+        } catch (EOFException e) {
+            // Peer went away in the middle of an event
+        } catch (IOException | RuntimeException e) {
+            if (node == null || inbound.get(node) == socket) { // A replaced link was closed on purpose
+                System.out.println("Cluster link from " + node + " failed: " + e);
+            }
+        } finally {
+            if (node != null && inbound.remove(node, socket)) { // A replaced link leaves the node to its successor
+                nodeDown(node);
+            }
+        }
+    }
+
+    private void nodeDown(String node) {
+        reservations.values().removeIf(node::equals); // Its users are gone, free their names
+        listener.onNodeDown(node);
+        links.get(node).disconnect(); // An idle link would not notice, redial so a restarted peer learns our users again
+    }
+
+    private void handle(String node, int opcode, ByteBuffer body) {
+        switch (opcode) {
+            case JOIN: {
+                String name = Frames.readString(body);
+                if (ownerOf(name).equals(self) && !claim(name, node)) {
+                    System.out.println("Cluster: " + name + " is logged in on two nodes"); // Only after a split, keep both
+                }
+                listener.onRemoteJoin(node, name);
+                break;
+            }
+            case LEAVE:
+                listener.onRemoteLeave(node, Frames.readString(body));
+                break;
+            case BROADCAST: {
+                String sender = Frames.readString(body);
+                Set<String> excludedUsers = new HashSet<>(Frames.readList(body));
+                listener.onRemoteBroadcast(sender.isEmpty() ? null : sender, Frames.readString(body),
+                        excludedUsers.isEmpty() ? null : excludedUsers);
+                break;
+            }
+            case DIRECT: {
+                String sender = Frames.readString(body);
+                List<String> readers = Frames.readList(body);
+                listener.onRemoteDirect(sender, Frames.readString(body), readers);
+                break;
+            }
+            case ROOM_JOIN: {
+                String room = Frames.readString(body);
+                listener.onRemoteRoomJoin(node, room, Frames.readString(body));
+                break;
+            }
+            case ROOM_LEAVE: {
+                String room = Frames.readString(body);
+                listener.onRemoteRoomLeave(node, room, Frames.readString(body));
+                break;
+            }
+            case ROOM_MESSAGE: {
+                String room = Frames.readString(body);
+                String sender = Frames.readString(body);
+                listener.onRemoteRoomMessage(room, sender, Frames.readString(body));
+                break;
+            }
+            case RESERVE: {
+                long id = body.getLong();
+                boolean reserved = claim(Frames.readString(body), node);
+                links.get(node).send(new Frames.Builder(RESERVE_REPLY).version(id).version(reserved ? 1 : 0).toBytes());
+                break;
+            }
+            case RESERVE_REPLY: {
+                CompletableFuture<Boolean> reply = pendingReservations.remove(body.getLong());
+                if (reply != null) {
+                    reply.complete(body.getLong() == 1);
+                }
+                break;
+            }
+            case RELEASE:
+                reservations.remove(Frames.readString(body), node);
+                break;
+            default:
+                // Event from a newer node, skip it
+        }
+    }
+
+    // Read one event and check its type, null if the link closed first
+    private static ByteBuffer readEvent(DataInputStream in, int expectedOpcode) throws IOException {
+        int opcode = in.read();
+        if (opcode < 0) {
+            return null;
+        }
+        if (opcode != expectedOpcode) {
+            throw new IOException("Expected event " + expectedOpcode + ", got " + opcode);
+        }
+        return readBody(in);
+    }
+
+    private static ByteBuffer readBody(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > Frames.MAX_BODY_LENGTH) {
+            throw new IOException("Invalid event length " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return ByteBuffer.wrap(body);
+    }
+
+    // Our outgoing link to one peer: connects, announces our users, then writes queued events in batches.
+    // Reconnects after a failure, events raised while it is down are dropped and the reconnect resyncs presence.
+    // The resync is written straight to the socket ahead of the queue, so it is only bounded by the local users.
+    private final class PeerLink implements Runnable {
+        final String node;
+        private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(LINK_QUEUE_CAPACITY);
+        private volatile boolean up; // Connected and synced, events are queued
+        private volatile Socket socket;
+
+        PeerLink(String node) {
+            this.node = node;
+        }
+
+        void send(byte[] frame) {
+            if (!up) {
+                return;
+            }
+            if (queue.offer(frame)) {
+                metrics.clusterEventsSent.increment();
+            } else if (up) { // Only the first refused event reports the reset
+                System.out.println("Cluster link to " + node + " reset: peer is not keeping up");
+                disconnect();
+            }
+        }
+
+        @Override
+        public void run() {
+            int separator = node.lastIndexOf(':');
+            String host = node.substring(0, separator);
+            int peerPort = Integer.parseInt(node.substring(separator + 1));
+            while (true) {
+                try (Socket connected = new Socket()) {
+                    connected.connect(new InetSocketAddress(host, peerPort));
+                    connected.setTcpNoDelay(true);
+                    this.socket = connected;
+                    BufferedOutputStream out = new BufferedOutputStream(connected.getOutputStream(), LINK_BUFFER_BYTES);
+                    writeResync(out, collectResync());
+                    System.out.println("Cluster link to " + node + " up");
+                    writeEvents(out);
+                } catch (IOException e) {
+                    // Peer not started yet or gone, try again shortly
+                } finally {
+                    if (up) {
+                        System.out.println("Cluster link to " + node + " down");
+                    }
+                    up = false;
+                    queue.clear();
+                }
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        // HELLO and every local user and room membership, the link is marked up in the same step so later
+        // events queue behind them
+        private List<byte[]> collectResync() {
+            List<byte[]> resync = new ArrayList<>();
+            resync.add(new Frames.Builder(HELLO).string(self).string(secret).toBytes());
+            listener.onLinkUp(name -> resync.add(new Frames.Builder(JOIN).string(name).toBytes()),
+                    (room, name) -> resync.add(new Frames.Builder(ROOM_JOIN).string(room).string(name).toBytes()),
+                    () -> up = true);
+            return resync;
+        }
+
+        private void writeResync(OutputStream out, List<byte[]> resync) throws IOException {
+            for (byte[] frame : resync) {
+                out.write(frame);
+                metrics.clusterEventsSent.increment();
+            }
+            out.flush();
+            metrics.clusterBatches.increment();
+        }
+
+        // Write whatever is queued as one batch, then wait for more, until the link fails
+        private void writeEvents(OutputStream out) throws IOException {
+            while (!socket.isClosed()) {
+                byte[] frame;
+                try {
+                    frame = queue.poll(RECONNECT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (frame == null) {
+                    continue;
+                }
+                do {
+                    out.write(frame);
+                } while ((frame = queue.poll()) != null);
+                out.flush();
+                metrics.clusterBatches.increment();
+            }
+        }
+
+        private void disconnect() {
+            up = false;
+            try {
+                Socket current = socket;
+                if (current != null) {
+                    current.close();
+                }
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+}
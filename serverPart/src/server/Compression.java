@@ -0,0 +1,93 @@
+package server;
+
+import protocol.FrameDeflater;
+import protocol.FrameInflater;
+import protocol.Frames;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Deflate compression of one binary protocol connection, negotiated with the PROTOCOL:binary/1+deflate handshake.
+// Outgoing frames are staged into write batches. A batch of at least threshold bytes goes out as one COMPRESSED
+// frame, smaller ones and very large ones as they are, where compressing would cost more CPU than it saves bandwidth.
+// The deflate streams themselves are the protocol module's FrameDeflater and FrameInflater, shared with the client.
+// The staging and deflate side belongs to the connection's writer, the inflate side to its reader.
+final class Compression {
+    private final int threshold; // Smallest batch worth compressing, in bytes
+    private final Metrics metrics;
+    private final FrameDeflater deflater = new FrameDeflater();
+    private final FrameInflater inflater = new FrameInflater();
+    private byte[] staged = new byte[4096]; // Frames of the batch being collected
+    private int stagedLength;
+
+    Compression(int threshold, Metrics metrics) {
+        this.threshold = threshold;
+        this.metrics = metrics;
+    }
+
+    // Add an encoded frame to the batch
+    void stage(Payload payload) {
+        ByteBuffer frame = payload.buffer(true);
+        int length = frame.remaining();
+        if (stagedLength + length > staged.length) {
+            staged = Arrays.copyOf(staged, Math.max(staged.length * 2, stagedLength + length));
+        }
+        frame.get(staged, stagedLength, length);
+        stagedLength += length;
+    }
+
+    // Bytes staged so far
+    int staged() {
+        return stagedLength;
+    }
+
+    // The staged frames as they go on the wire, compressed if there are enough of them, and start a new batch.
+    // The buffer is only valid until the next call.
+    ByteBuffer takeBatch() {
+        int length = stagedLength;
+        stagedLength = 0;
+        if (length < threshold || length > FrameDeflater.MAX_INPUT_BYTES) {
+            return ByteBuffer.wrap(staged, 0, length);
+        }
+
+        long start = System.nanoTime();
+        ByteBuffer frame = deflater.deflate(staged, 0, length);
+        metrics.compressedBatches.increment();
+        metrics.compressionBytesIn.add(length);
+        metrics.compressionBytesOut.add(frame.remaining());
+        metrics.compression.record(System.nanoTime() - start);
+        return frame;
+    }
+
+    // Unpack the body of a COMPRESSED frame and hand every frame in it to the handler
+    void inflate(ByteBuffer body, Connection.Handler handler) throws IOException {
+        ByteBuffer frames = inflater.inflate(body);
+        int length = frames.limit();
+        while (frames.hasRemaining()) {
+            if (frames.remaining() < Frames.HEADER_LENGTH) {
+                throw new IOException("Compressed frame ends inside a frame header");
+            }
+            int opcode = frames.get() & 0xFF;
+            int frameLength = frames.getInt();
+            if (opcode == Frames.COMPRESSED || frameLength < 0 || frameLength > frames.remaining()) {
+                throw new IOException("Invalid frame inside a compressed frame");
+            }
+            // Each body is handed over in place, between the buffer's position and limit
+            int end = frames.position() + frameLength;
+            frames.limit(end);
+            handler.onFrame(opcode, frames);
+            frames.limit(length).position(end);
+        }
+    }
+
+    // Free the writer's zlib stream, called by the writer once it is done
+    void endOutput() {
+        deflater.end();
+    }
+
+    // Free the reader's zlib stream, called by the reader once it is done
+    void endInput() {
+        inflater.end();
+    }
+}
@@ -0,0 +1,34 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+// A client connection as seen by the protocol code, independent of the transport behind it
+interface Connection {
+    // Receives what the transport reads from a connection
+    interface Handler {
+        void onLine(ByteBuffer line); // Called for every line received in text mode, in order, from one thread at a time. The UTF-8 bytes without the terminator, only valid during the call
+        void onFrame(int opcode, ByteBuffer body); // Called for every frame in binary mode, the body is only valid during the call
+        void onClose(); // Called exactly once when the connection is gone
+    }
+
+    // Queue a message for the client, never blocks on the socket
+    void send(Payload payload);
+
+    // Number of messages queued for the client and not yet written
+    int queuedMessages();
+
+    // Read and write frames instead of lines from now on, called by the handler while handling the handshake line
+    void switchToBinary();
+
+    // Close the connection instead of dropping messages when the outbound queue is full
+    void disconnectOnOverflow();
+
+    // Compress write batches and accept COMPRESSED frames from now on, called by the handler once compression was negotiated
+    void enableCompression(Compression compression);
+
+    // Write everything already queued, then close the connection
+    void closeAfterFlush();
+
+    // Close the connection immediately
+    void close();
+}
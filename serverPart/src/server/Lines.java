@@ -0,0 +1,124 @@
+package server;
+
+import protocol.Frames;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Text protocol: newline-delimited UTF-8 lines, handed over as the bytes between the buffer's position and limit.
+// Commands are matched against the received bytes in place and only the parts a command needs are decoded,
+// so routing a line allocates nothing but the strings it actually keeps.
+final class Lines {
+    static final byte[] LOGOUT = ascii("LOGOUT");
+    static final byte[] PONG = ascii("PONG");
+    static final byte[] RESUME = ascii("RESUME:");
+    static final byte[] HANDSHAKE = ascii(Frames.HANDSHAKE);
+    static final byte[] HANDSHAKE_DEFLATE = ascii(Frames.HANDSHAKE_DEFLATE);
+    static final byte[] GET_BANNED_WORDS = ascii("GET_BANNED_WORDS");
+    static final byte[] GET_USER_LIST = ascii("GET_USER_LIST");
+    static final byte[] GET_ROOM_USER_LIST = ascii("GET_USER_LIST:");
+    static final byte[] GET_INSTRUCTIONS = ascii("GET_INSTRUCTIONS");
+    static final byte[] STATS = ascii("STATS");
+    static final byte[] GET_HISTORY = ascii("GET_HISTORY:");
+    static final byte[] GET_HISTORY_SINCE = ascii("GET_HISTORY_SINCE:");
+    static final byte[] JOIN = ascii("JOIN:");
+    static final byte[] LEAVE = ascii("LEAVE:");
+    static final byte[] INCLUDE = ascii("INCLUDE:");
+    static final byte[] EXCLUDE = ascii("EXCLUDE:");
+    static final byte[] ROOM = ascii("ROOM:");
+
+    private Lines() {
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static boolean equals(ByteBuffer line, byte[] value) {
+        return line.remaining() == value.length && startsWith(line, value);
+    }
+
+    static boolean startsWith(ByteBuffer line, byte[] prefix) {
+        if (line.remaining() < prefix.length) {
+            return false;
+        }
+        int start = line.position();
+        for (int i = 0; i < prefix.length; i++) {
+            if (line.get(start + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Absolute index of the first occurrence of a byte from an absolute index on, or -1
+    static int indexOf(ByteBuffer line, int from, byte value) {
+        for (int i = from; i < line.limit(); i++) {
+            if (line.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Absolute index of the last occurrence of a byte, or -1
+    static int lastIndexOf(ByteBuffer line, byte value) {
+        for (int i = line.limit() - 1; i >= line.position(); i--) {
+            if (line.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Number of occurrences of a byte between two absolute indexes
+    static int count(ByteBuffer line, int from, int to, byte value) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (line.get(i) == value) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Decode the bytes between two absolute indexes
+    static String decode(ByteBuffer line, int from, int to) {
+        if (line.hasArray()) {
+            return new String(line.array(), line.arrayOffset() + from, to - from, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[to - from];
+        line.get(from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Decode the whole line
+    static String decode(ByteBuffer line) {
+        return decode(line, line.position(), line.limit());
+    }
+
+    // Decode the bytes between two absolute indexes without surrounding whitespace, like String.trim
+    static String decodeTrimmed(ByteBuffer line, int from, int to) {
+        while (from < to && isSpace(line.get(from))) {
+            from++;
+        }
+        while (to > from && isSpace(line.get(to - 1))) {
+            to--;
+        }
+        return decode(line, from, to);
+    }
+
+    // End of the line without trailing whitespace, but not before an absolute index
+    static int trimEnd(ByteBuffer line, int from) {
+        int end = line.limit();
+        while (end > from && isSpace(line.get(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    // Whitespace as String.trim sees it, every UTF-8 byte of a multi-byte character is above it
+    static boolean isSpace(byte b) {
+        return b >= 0 && b <= ' ';
+    }
+}
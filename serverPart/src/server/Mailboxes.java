@@ -0,0 +1,315 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Store-and-forward of INCLUDE messages to users who are not logged in, until they log in again.
+// Each mailbox keeps its oldest messages on the heap, up to a small head, and spills the rest to shared segments
+// outside the heap: memory-mapped files when a directory is given, direct buffers otherwise. The heap then only
+// holds an 8 byte reference per spilled message, however long the messages are. A segment is freed once every
+// message in it was delivered or expired, and the space cap counts whole segments, so one undelivered message
+// that keeps a segment alive keeps its full size counted. Spilled records are
+// length (4) | time millis (8) | sender | text
+// with strings as a 4 byte length and UTF-8 bytes, as in the binary protocol.
+// Only users seen logging in within the TTL get a mailbox, so INCLUDEs to made-up names can't use up the caps.
+// Mailboxes are lost on restart, spill files from an earlier run are deleted.
+final class Mailboxes {
+    private static final String SUFFIX = ".spill";
+
+    // A stored message
+    record Letter(long time, String sender, String text) {
+    }
+
+    private final int capacity; // Messages one mailbox holds
+    private final int headCapacity; // Of those, how many stay on the heap
+    private final long ttlMillis; // Messages older than this are dropped
+    private final int maxMailboxes; // Offline users that may have mail at the same time
+    private final long maxSpillBytes; // Allocated segment bytes of all mailboxes together
+    private final int segmentBytes; // Size of a new segment, larger only for a record that would not fit
+    private final Path directory; // Where spill files go, null to spill to direct buffers
+    private final Metrics metrics;
+    private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> seen = new ConcurrentHashMap<>(); // Users by their last login or logout, within the TTL
+
+    // Spill segments by id, guarded by this
+    private final Map<Integer, Segment> segments = new HashMap<>();
+    private Segment current; // Segment new records go to
+    private int nextSegmentId;
+    private long allocatedBytes; // Capacity of all segments not yet freed
+
+    Mailboxes(int capacity, int headCapacity, long ttlMillis, int maxMailboxes, long maxSpillBytes, int segmentBytes,
+              Path directory, Metrics metrics) throws IOException {
+        this.capacity = capacity;
+        this.headCapacity = headCapacity;
+        this.ttlMillis = ttlMillis;
+        this.maxMailboxes = maxMailboxes;
+        this.maxSpillBytes = maxSpillBytes;
+        this.segmentBytes = segmentBytes;
+        this.directory = directory;
+        this.metrics = metrics;
+        if (directory != null) {
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+                for (Path file : files) {
+                    Files.delete(file); // Nothing refers to them anymore
+                }
+            }
+        }
+    }
+
+    // Note that a user logged in or out, they may get mail for a TTL from now on
+    void seen(String user) {
+        seen.put(user, System.currentTimeMillis());
+    }
+
+    // Whether mail for the user is kept, only for users seen within the TTL
+    boolean accepts(String user) {
+        return seen.containsKey(user);
+    }
+
+    // Keep a message for an offline user, returns false if their mailbox or the spill space is full
+    boolean store(String recipient, String sender, String text) {
+        long now = System.currentTimeMillis();
+        while (true) {
+            Mailbox mailbox = mailboxes.get(recipient);
+            if (mailbox == null) {
+                if (mailboxes.size() >= maxMailboxes) {
+                    metrics.mailboxRefused.increment();
+                    return false;
+                }
+                mailbox = mailboxes.computeIfAbsent(recipient, name -> new Mailbox());
+            }
+            synchronized (mailbox) {
+                if (mailbox.removed) {
+                    continue; // Emptied and dropped just now, start a new one
+                }
+                dropExpired(mailbox, now);
+                if (mailbox.size() >= capacity || !mailbox.add(this, new Letter(now, sender, text))) {
+                    metrics.mailboxRefused.increment();
+                    return false;
+                }
+            }
+            metrics.mailboxStored.increment();
+            return true;
+        }
+    }
+
+    // Whether there is mail for the user
+    boolean hasMail(String user) {
+        return mailboxes.containsKey(user);
+    }
+
+    // Take up to max of the user's messages, oldest first. Empty once the mailbox is.
+    List<Letter> take(String user, int max) {
+        Mailbox mailbox = mailboxes.get(user);
+        if (mailbox == null) {
+            return List.of();
+        }
+        List<Letter> letters = new ArrayList<>(Math.min(max, 64));
+        synchronized (mailbox) {
+            dropExpired(mailbox, System.currentTimeMillis());
+            while (letters.size() < max && mailbox.size() > 0) {
+                letters.add(mailbox.poll(this));
+            }
+            removeIfEmpty(user, mailbox);
+        }
+        metrics.mailboxDelivered.add(letters.size());
+        return letters;
+    }
+
+    // Drop every expired message, the mailboxes left empty, and users not seen within the TTL
+    void expire() {
+        long now = System.currentTimeMillis();
+        seen.values().removeIf(time -> now - time > ttlMillis);
+        mailboxes.forEach((user, mailbox) -> {
+            synchronized (mailbox) {
+                dropExpired(mailbox, now);
+                removeIfEmpty(user, mailbox);
+            }
+        });
+    }
+
+    // Called with the mailbox's monitor held, messages are in arrival order so the expired ones come first
+    private void dropExpired(Mailbox mailbox, long now) {
+        while (mailbox.size() > 0 && now - mailbox.oldestTime(this) > ttlMillis) {
+            mailbox.poll(this);
+            metrics.mailboxExpired.increment();
+        }
+    }
+
+    private void removeIfEmpty(String user, Mailbox mailbox) {
+        if (mailbox.size() == 0 && !mailbox.removed) {
+            mailbox.removed = true;
+            mailboxes.remove(user, mailbox);
+        }
+    }
+
+    // Write a message to the spill segments, returns its reference or -1 if the spill space is full
+    private synchronized long spill(Letter letter) {
+        byte[] sender = letter.sender().getBytes(StandardCharsets.UTF_8);
+        byte[] text = letter.text().getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 4 + sender.length + 4 + text.length;
+        if (current == null || current.records.capacity() - current.size < 4 + length) {
+            int size = Math.max(segmentBytes, 4 + length);
+            boolean reusable = current != null && current.live == 0; // Freed by the rollover, its space counts for the new one
+            if (allocatedBytes - (reusable ? current.records.capacity() : 0) + size > maxSpillBytes) {
+                return -1;
+            }
+            Segment previous = current;
+            try {
+                current = newSegment(size);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return -1;
+            }
+            if (reusable) {
+                free(previous); // Nothing was waiting on it for a rollover to free it
+            }
+        }
+        int position = current.size;
+        ByteBuffer out = current.records.duplicate().position(position);
+        out.putInt(length).putLong(letter.time());
+        out.putInt(sender.length).put(sender);
+        out.putInt(text.length).put(text);
+        current.size += 4 + length;
+        current.live++;
+        return (long) current.id << 32 | position;
+    }
+
+    // Time of a spilled message, without reading the rest of it
+    private synchronized long spilledTime(long reference) {
+        Segment segment = segments.get((int) (reference >>> 32));
+        return segment.records.getLong((int) reference + 4);
+    }
+
+    // Read a spilled message back and free its space
+    private synchronized Letter unspill(long reference) {
+        Segment segment = segments.get((int) (reference >>> 32));
+        ByteBuffer in = segment.records.duplicate().position((int) reference);
+        in.getInt(); // Length, only needed to skip a record
+        long time = in.getLong();
+        String sender = readString(in);
+        String text = readString(in);
+        if (--segment.live == 0 && segment != current) {
+            free(segment);
+        }
+        return new Letter(time, sender, text);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Segment newSegment(int size) throws IOException {
+        int id = nextSegmentId++;
+        ByteBuffer records;
+        if (directory == null) {
+            records = ByteBuffer.allocateDirect(size);
+        } else {
+            try (FileChannel channel = FileChannel.open(segmentPath(id), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                records = channel.map(FileChannel.MapMode.READ_WRITE, 0, size); // Stays valid after the channel is closed
+            }
+        }
+        Segment segment = new Segment(id, records);
+        segments.put(id, segment);
+        allocatedBytes += size;
+        return segment;
+    }
+
+    // Forget a segment nothing refers to anymore, its memory goes once the buffer is collected
+    private void free(Segment segment) {
+        segments.remove(segment.id);
+        allocatedBytes -= segment.records.capacity();
+        if (directory != null) {
+            try {
+                Files.deleteIfExists(segmentPath(segment.id));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private Path segmentPath(int id) {
+        return directory.resolve(String.format("%010d%s", id, SUFFIX));
+    }
+
+    // One spill segment, fields are guarded by the mailboxes
+    private static final class Segment {
+        final int id;
+        final ByteBuffer records;
+        int size; // Bytes written
+        int live; // Records not yet delivered or expired
+
+        Segment(int id, ByteBuffer records) {
+            this.id = id;
+            this.records = records;
+        }
+    }
+
+    // Messages of one offline user: the oldest on the heap, the rest spilled in arrival order.
+    // Once anything is spilled, later messages are spilled too, so the head always holds the oldest. Guarded by itself.
+    private final class Mailbox {
+        private final ArrayDeque<Letter> head = new ArrayDeque<>();
+        private long[] spilled = new long[0]; // Ring of references to spilled messages
+        private int spilledStart;
+        private int spilledCount;
+        private boolean removed; // Taken out of the map, a new mailbox is created for the next message
+
+        int size() {
+            return head.size() + spilledCount;
+        }
+
+        boolean add(Mailboxes owner, Letter letter) {
+            if (spilledCount == 0 && head.size() < headCapacity) {
+                head.add(letter);
+                return true;
+            }
+            long reference = owner.spill(letter);
+            if (reference < 0) {
+                return false;
+            }
+            if (spilledCount == spilled.length) {
+                long[] larger = new long[Math.max(8, spilled.length * 2)];
+                for (int i = 0; i < spilledCount; i++) {
+                    larger[i] = spilled[(spilledStart + i) % spilled.length];
+                }
+                spilled = larger;
+                spilledStart = 0;
+            }
+            spilled[(spilledStart + spilledCount++) % spilled.length] = reference;
+            return true;
+        }
+
+        long oldestTime(Mailboxes owner) {
+            return !head.isEmpty() ? head.peek().time() : owner.spilledTime(spilled[spilledStart]);
+        }
+
+        Letter poll(Mailboxes owner) {
+            if (!head.isEmpty()) {
+                return head.poll();
+            }
+            long reference = spilled[spilledStart];
+            spilledStart = (spilledStart + 1) % spilled.length;
+            if (--spilledCount == 0 && spilled.length > 64) {
+                spilled = new long[0]; // Don't keep a large ring for a mailbox that may fill up again with few messages
+                spilledStart = 0;
+            }
+            return owner.unspill(reference);
+        }
+    }
+}
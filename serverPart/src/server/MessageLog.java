@@ -0,0 +1,288 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+// Append-only message history in memory-mapped segment files, one offset per message.
+// Each segment is named after the offset of its first message and holds length-prefixed records:
+// length (4) | offset (8) | time millis (8) | visibility (1) | sender | names | text
+// Strings are a 4 byte length and UTF-8 bytes as in the binary protocol, names a 4 byte count followed by strings.
+// The length is written last, so a record cut short by a crash reads as the end of the segment.
+final class MessageLog {
+    static final byte PUBLIC = 0; // Everyone may see the message
+    static final byte INCLUDE = 1; // Only the listed users may see it
+    static final byte EXCLUDE = 2; // Everyone except the listed users may see it
+
+    private static final int INDEX_INTERVAL = 64; // Records between two sparse index entries
+    private static final int MAX_TAIL_SCAN = 100_000; // Records a tail read looks through at most
+    private static final String SUFFIX = ".log";
+
+    // A logged message, sender and text are read-only views of the mapped segment, not copies
+    record Entry(long offset, ByteBuffer sender, ByteBuffer text) {
+    }
+
+    // Part of a segment a read looks through, taken under the lock and scanned without it
+    private record Range(ByteBuffer records, int start, int end) {
+    }
+
+    private final Path directory;
+    private final int segmentBytes; // Size of a new segment, larger only for a record that would not fit
+    private final int maxSegments; // Older segments are deleted
+    private final List<Segment> segments = new ArrayList<>(); // Oldest first, guarded by this
+    private long nextOffset; // Offset of the next message, guarded by this
+    private final List<Path> dropped = new ArrayList<>(); // Files of dropped segments not deleted yet, guarded by this
+
+    MessageLog(Path directory, int segmentBytes, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    // Map the existing segments and find where each one ends
+    private void recover() throws IOException {
+        List<Long> baseOffsets = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    baseOffsets.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        baseOffsets.sort(null);
+        for (long baseOffset : baseOffsets) {
+            Path path = segmentPath(baseOffset);
+            Segment segment = new Segment(baseOffset, map(path, (int) Math.min(Files.size(path), Integer.MAX_VALUE)));
+            segment.scan();
+            segments.add(segment);
+            nextOffset = segment.nextOffset;
+        }
+    }
+
+    // Log a message, returns its offset
+    synchronized long append(byte visibility, String sender, Collection<String> names, String text) throws IOException {
+        byte[] senderBytes = (sender != null ? sender : "").getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        byte[][] nameBytes = new byte[names.size()][];
+        int length = 8 + 8 + 1 + 4 + senderBytes.length + 4 + 4 + textBytes.length;
+        int i = 0;
+        for (String name : names) {
+            nameBytes[i] = name.getBytes(StandardCharsets.UTF_8);
+            length += 4 + nameBytes[i++].length;
+        }
+
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.records.capacity() - segment.size < 4 + length) {
+            segment = roll(4 + length);
+        }
+
+        long offset = nextOffset;
+        ByteBuffer out = segment.records.duplicate();
+        out.position(segment.size + 4);
+        out.putLong(offset).putLong(System.currentTimeMillis()).put(visibility);
+        out.putInt(senderBytes.length).put(senderBytes);
+        out.putInt(nameBytes.length);
+        for (byte[] name : nameBytes) {
+            out.putInt(name.length).put(name);
+        }
+        out.putInt(textBytes.length).put(textBytes);
+        segment.records.putInt(segment.size, length); // Commits the record
+        segment.added(offset, 4 + length);
+        nextOffset = offset + 1;
+        return offset;
+    }
+
+    // Start a new segment with room for at least the given number of bytes, dropping the oldest past the limit
+    private Segment roll(int minimumBytes) throws IOException {
+        if (!segments.isEmpty() && segments.get(segments.size() - 1).nextOffset == nextOffset
+                && segments.get(segments.size() - 1).baseOffset == nextOffset) {
+            segments.remove(segments.size() - 1); // Empty, its file is mapped again with the new size
+        }
+        Segment segment = new Segment(nextOffset, map(segmentPath(nextOffset), Math.max(segmentBytes, minimumBytes)));
+        segment.nextOffset = nextOffset;
+        segments.add(segment);
+        while (segments.size() > maxSegments) {
+            dropped.add(segmentPath(segments.remove(0).baseOffset)); // Readers still holding its mapping can finish
+        }
+        deleteDropped();
+        return segment;
+    }
+
+    // Delete the files of dropped segments. Some systems, Windows among them, refuse while a file is mapped, and the
+    // mapping only goes once its buffer is collected, so a file that can't be deleted yet is tried again on the next roll.
+    private void deleteDropped() {
+        dropped.removeIf(path -> {
+            try {
+                Files.deleteIfExists(path);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        });
+    }
+
+    // Offset the next message will get
+    synchronized long nextOffset() {
+        return nextOffset;
+    }
+
+    // The reader's visible messages with offsets from 'from' up to but excluding 'to', at most limit of them, oldest first
+    List<Entry> read(long from, long to, int limit, String reader) {
+        List<Range> ranges = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                if (segment.nextOffset > from && segment.baseOffset < to) {
+                    ranges.add(new Range(segment.records.asReadOnlyBuffer(), segment.floorPosition(from), segment.size));
+                }
+            }
+        }
+
+        ByteBuffer readerName = ByteBuffer.wrap(reader.getBytes(StandardCharsets.UTF_8));
+        List<Entry> entries = new ArrayList<>();
+        for (Range range : ranges) {
+            ByteBuffer records = range.records();
+            int position = range.start();
+            while (position < range.end()) {
+                int length = records.getInt(position);
+                long offset = records.getLong(position + 4);
+                if (offset >= to) {
+                    return entries;
+                }
+                if (offset >= from) {
+                    Entry entry = visibleEntry(records, position + 4, readerName);
+                    if (entry != null) {
+                        if (entries.size() >= limit) {
+                            return entries; // Checked before adding, a limit of 0 reads nothing
+                        }
+                        entries.add(entry);
+                    }
+                }
+                position += 4 + length;
+            }
+        }
+        return entries;
+    }
+
+    // The last limit messages before 'to' the reader may see, oldest first.
+    // Looks back over a growing window, so a reader who sees few messages does not cost a scan of the whole log.
+    List<Entry> tail(long to, int limit, String reader) {
+        long first;
+        synchronized (this) {
+            first = segments.isEmpty() ? nextOffset : segments.get(0).baseOffset;
+        }
+        List<Entry> entries = new ArrayList<>();
+        long end = to;
+        long window = limit;
+        long scanned = 0;
+        while (entries.size() < limit && end > first && scanned < MAX_TAIL_SCAN) {
+            long start = Math.max(first, end - window);
+            entries.addAll(0, read(start, end, Integer.MAX_VALUE, reader));
+            scanned += end - start;
+            end = start;
+            window *= 2;
+        }
+        return entries.size() > limit ? new ArrayList<>(entries.subList(entries.size() - limit, entries.size())) : entries;
+    }
+
+    // The record starting at the given position if the reader may see it, compares names as UTF-8 bytes without decoding
+    private static Entry visibleEntry(ByteBuffer records, int position, ByteBuffer readerName) {
+        long offset = records.getLong(position);
+        byte visibility = records.get(position + 16);
+        position += 17;
+        ByteBuffer sender = field(records, position);
+        position += 4 + sender.remaining();
+
+        boolean listed = false;
+        int count = records.getInt(position);
+        position += 4;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer name = field(records, position);
+            listed |= name.equals(readerName);
+            position += 4 + name.remaining();
+        }
+        if (visibility == INCLUDE ? !listed : visibility == EXCLUDE && listed) {
+            return null;
+        }
+        return new Entry(offset, sender, field(records, position));
+    }
+
+    // View of the bytes of a length-prefixed string field
+    private static ByteBuffer field(ByteBuffer records, int position) {
+        return records.slice(position + 4, records.getInt(position));
+    }
+
+    private Path segmentPath(long baseOffset) {
+        return directory.resolve(String.format("%020d%s", baseOffset, SUFFIX));
+    }
+
+    // Map a segment file, the mapping stays valid after the channel is closed
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    // One mapped segment file and its sparse index, fields are guarded by the log
+    private static final class Segment {
+        final long baseOffset; // Offset of the first message
+        final MappedByteBuffer records;
+        int size; // Bytes of complete records
+        long nextOffset; // Offset after the last record
+        long[] indexOffsets = new long[16]; // Every INDEX_INTERVAL-th offset...
+        int[] indexPositions = new int[16]; // ...and where its record starts
+        int indexSize;
+
+        Segment(long baseOffset, MappedByteBuffer records) {
+            this.baseOffset = baseOffset;
+            this.records = records;
+            this.nextOffset = baseOffset;
+        }
+
+        // Find the end of the records written before a restart and rebuild the index
+        void scan() {
+            while (size + 4 + 17 <= records.capacity()) {
+                int length = records.getInt(size);
+                if (length < 17 + 12 || size + 4 + length > records.capacity() || records.getLong(size + 4) != nextOffset) {
+                    break; // Unused space, or a record that was never committed
+                }
+                added(nextOffset, 4 + length);
+            }
+        }
+
+        // Account for a record written at the current end
+        void added(long offset, int bytes) {
+            if ((offset - baseOffset) % INDEX_INTERVAL == 0) {
+                if (indexSize == indexOffsets.length) {
+                    indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+                    indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+                }
+                indexOffsets[indexSize] = offset;
+                indexPositions[indexSize++] = size;
+            }
+            size += bytes;
+            nextOffset = offset + 1;
+        }
+
+        // Position of the last indexed record at or before the offset
+        int floorPosition(long offset) {
+            int found = Arrays.binarySearch(indexOffsets, 0, indexSize, offset);
+            int index = found >= 0 ? found : -found - 2;
+            return index >= 0 ? indexPositions[index] : 0;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package server;
+
+import protocol.LatencyHistogram;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server instrumentation: lock-free counters and latency histograms, recorded on the message path
+// without allocating, rendered for the STATS command and the Prometheus endpoint.
+final class Metrics {
+    // Connections and logins
+    final LongAdder connectionsOpened = new LongAdder();
+    final LongAdder connectionsClosed = new LongAdder();
+    final LongAdder logins = new LongAdder();
+    final LongAdder loginsRejected = new LongAdder(); // Banned or taken names
+    final LongAdder sessionsResumed = new LongAdder(); // Reconnects that picked up their session
+    final LongAdder resumesFailed = new LongAdder(); // Resume attempts that had to log in again
+    final LongAdder sessionsExpired = new LongAdder(); // Lost connections nobody resumed within the grace period
+    final LongAdder messagesReplayed = new LongAdder(); // Sent again to resumed clients
+    final LongAdder idleDisconnects = new LongAdder(); // Connections closed for not answering heartbeats
+
+    // Messages
+    final LongAdder messagesReceived = new LongAdder(); // Lines and frames from logged-in clients
+    final LongAdder messagesBanned = new LongAdder(); // Rejected for banned phrases
+    final LongAdder deliveries = new LongAdder(); // Messages queued for a recipient
+    final LongAdder droppedMessages = new LongAdder(); // Discarded by a full outbound queue
+    final LongAdder overflowDisconnects = new LongAdder(); // Clients dropped by a full outbound queue
+    final LongAdder rateLimitedMessages = new LongAdder(); // Dropped for exceeding the client's message rate
+    final LongAdder rateLimitedFanOut = new LongAdder(); // Dropped for exceeding the client's fan-out rate
+
+    // Mailboxes of offline INCLUDE recipients
+    final LongAdder mailboxStored = new LongAdder(); // Messages kept for a recipient who was offline
+    final LongAdder mailboxDelivered = new LongAdder(); // Kept messages sent once the recipient logged in
+    final LongAdder mailboxRefused = new LongAdder(); // Not kept, the mailbox or the spill space was full
+    final LongAdder mailboxExpired = new LongAdder(); // Dropped after waiting longer than the TTL
+
+    // Cluster links
+    final LongAdder clusterEventsSent = new LongAdder();
+    final LongAdder clusterEventsReceived = new LongAdder();
+    final LongAdder clusterBatches = new LongAdder(); // Socket writes the sent events were coalesced into
+
+    // Compression
+    final LongAdder compressedBatches = new LongAdder(); // Write batches sent as one COMPRESSED frame
+    final LongAdder compressionBytesIn = new LongAdder(); // Frame bytes that went into them
+    final LongAdder compressionBytesOut = new LongAdder(); // Bytes they took on the wire
+
+    // Latencies in nanoseconds
+    final LatencyHistogram messageHandling = new LatencyHistogram(); // One line or frame, end to end in the handler
+    final LatencyHistogram fanOut = new LatencyHistogram(); // Queueing one message for all its recipients
+    final LatencyHistogram bannedPhraseCheck = new LatencyHistogram(); // One banned phrase scan
+    final LatencyHistogram historyAppend = new LatencyHistogram(); // Writing one message to the history log
+    final LatencyHistogram compression = new LatencyHistogram(); // Deflating one write batch
+
+    // Gauges are read from the registry when rendering, nothing tracks them on the message path
+    record Gauges(int connectedClients, long queuedMessages, long maxQueueDepth) {
+    }
+
+    // Space separated name=value pairs for the STATS reply, latencies in microseconds
+    String stats(Gauges gauges) {
+        return "clients=" + gauges.connectedClients()
+                + " connections_opened=" + connectionsOpened.sum()
+                + " connections_closed=" + connectionsClosed.sum()
+                + " logins=" + logins.sum()
+                + " logins_rejected=" + loginsRejected.sum()
+                + " sessions_resumed=" + sessionsResumed.sum()
+                + " resumes_failed=" + resumesFailed.sum()
+                + " sessions_expired=" + sessionsExpired.sum()
+                + " messages_replayed=" + messagesReplayed.sum()
+                + " idle_disconnects=" + idleDisconnects.sum()
+                + " messages_received=" + messagesReceived.sum()
+                + " messages_banned=" + messagesBanned.sum()
+                + " deliveries=" + deliveries.sum()
+                + " dropped=" + droppedMessages.sum()
+                + " overflow_disconnects=" + overflowDisconnects.sum()
+                + " rate_limited_messages=" + rateLimitedMessages.sum()
+                + " rate_limited_fanout=" + rateLimitedFanOut.sum()
+                + " mailbox_stored=" + mailboxStored.sum()
+                + " mailbox_delivered=" + mailboxDelivered.sum()
+                + " mailbox_refused=" + mailboxRefused.sum()
+                + " mailbox_expired=" + mailboxExpired.sum()
+                + " cluster_events_sent=" + clusterEventsSent.sum()
+                + " cluster_events_received=" + clusterEventsReceived.sum()
+                + " cluster_batches=" + clusterBatches.sum()
+                + " compressed_batches=" + compressedBatches.sum()
+                + " compression_bytes_in=" + compressionBytesIn.sum()
+                + " compression_bytes_out=" + compressionBytesOut.sum()
+                + " queued=" + gauges.queuedMessages()
+                + " max_queue_depth=" + gauges.maxQueueDepth()
+                + percentiles(" handle", messageHandling)
+                + percentiles(" fanout", fanOut)
+                + percentiles(" banned_check", bannedPhraseCheck)
+                + percentiles(" history_append", historyAppend)
+                + percentiles(" compress", compression);
+    }
+
+    private static String percentiles(String name, LatencyHistogram histogram) {
+        return String.format(Locale.ROOT, "%s_p50_us=%.1f%s_p99_us=%.1f%s_p999_us=%.1f",
+                name, histogram.percentile(50) / 1e3, name, histogram.percentile(99) / 1e3,
+                name, histogram.percentile(99.9) / 1e3);
+    }
+
+    // Prometheus text exposition format, counters and gauges as is, histograms as summaries in seconds
+    String prometheus(Gauges gauges) {
+        StringBuilder out = new StringBuilder(4096);
+        gauge(out, "chat_connected_clients", "Logged-in clients.", gauges.connectedClients());
+        gauge(out, "chat_queued_messages", "Messages waiting in outbound queues.", gauges.queuedMessages());
+        gauge(out, "chat_max_queue_depth", "Longest outbound queue.", gauges.maxQueueDepth());
+        counter(out, "chat_connections_opened_total", "Accepted connections.", connectionsOpened);
+        counter(out, "chat_connections_closed_total", "Closed connections.", connectionsClosed);
+        counter(out, "chat_logins_total", "Successful logins.", logins);
+        counter(out, "chat_logins_rejected_total", "Logins refused for a banned or taken name.", loginsRejected);
+        counter(out, "chat_sessions_resumed_total", "Reconnects that picked up their session.", sessionsResumed);
+        counter(out, "chat_resumes_failed_total", "Resume attempts that had to log in again.", resumesFailed);
+        counter(out, "chat_sessions_expired_total", "Lost connections nobody resumed within the grace period.", sessionsExpired);
+        counter(out, "chat_messages_replayed_total", "Messages sent again to resumed clients.", messagesReplayed);
+        counter(out, "chat_idle_disconnects_total", "Connections closed for not answering heartbeats.", idleDisconnects);
+        counter(out, "chat_messages_received_total", "Lines and frames received from logged-in clients.", messagesReceived);
+        counter(out, "chat_messages_banned_total", "Messages rejected for banned phrases.", messagesBanned);
+        counter(out, "chat_deliveries_total", "Messages queued for a recipient.", deliveries);
+        counter(out, "chat_dropped_messages_total", "Messages discarded by a full outbound queue.", droppedMessages);
+        counter(out, "chat_overflow_disconnects_total", "Clients disconnected by a full outbound queue.", overflowDisconnects);
+        counter(out, "chat_rate_limited_messages_total", "Messages dropped for exceeding the client's message rate.", rateLimitedMessages);
+        counter(out, "chat_rate_limited_fanout_total", "Messages dropped for exceeding the client's fan-out rate.", rateLimitedFanOut);
+        counter(out, "chat_mailbox_stored_total", "Messages kept for recipients who were offline.", mailboxStored);
+        counter(out, "chat_mailbox_delivered_total", "Kept messages sent once the recipient logged in.", mailboxDelivered);
+        counter(out, "chat_mailbox_refused_total", "Messages not kept because a mailbox or the spill space was full.", mailboxRefused);
+        counter(out, "chat_mailbox_expired_total", "Kept messages dropped after waiting longer than the TTL.", mailboxExpired);
+        counter(out, "chat_cluster_events_sent_total", "Events queued for other cluster nodes.", clusterEventsSent);
+        counter(out, "chat_cluster_events_received_total", "Events received from other cluster nodes.", clusterEventsReceived);
+        counter(out, "chat_cluster_batches_total", "Socket writes the sent cluster events were coalesced into.", clusterBatches);
+        counter(out, "chat_compressed_batches_total", "Write batches sent as one compressed frame.", compressedBatches);
+        counter(out, "chat_compression_in_bytes_total", "Frame bytes that went into compressed batches.", compressionBytesIn);
+        counter(out, "chat_compression_out_bytes_total", "Bytes the compressed batches took on the wire.", compressionBytesOut);
+        summary(out, "chat_message_handling_seconds", "Time to handle one line or frame.", messageHandling);
+        summary(out, "chat_fanout_seconds", "Time to queue one message for all its recipients.", fanOut);
+        summary(out, "chat_banned_phrase_check_seconds", "Time of one banned phrase scan.", bannedPhraseCheck);
+        summary(out, "chat_history_append_seconds", "Time to write one message to the history log.", historyAppend);
+        summary(out, "chat_compression_seconds", "Time to deflate one write batch.", compression);
+        return out.toString();
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, LongAdder value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value.sum()).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String help, LatencyHistogram histogram) {
+        header(out, name, help, "summary");
+        for (String quantile : new String[]{"0.5", "0.99", "0.999"}) {
+            double seconds = histogram.percentile(Double.parseDouble(quantile) * 100) / 1e9;
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ").append(seconds).append('\n');
+        }
+        out.append(name).append("_sum ").append(histogram.sum() / 1e9).append('\n');
+        out.append(name).append("_count ").append(histogram.count()).append('\n');
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
@@ -0,0 +1,493 @@
+package server;
+
+import protocol.Frames;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+// Selector-based transport: a few event loops multiplex every connection over non-blocking channels
+final class NioTransport {
+    private static final int READ_BUFFER_SIZE = 16 * 1024; // Size of each event loop's read buffer
+    private static final int MAX_POOLED_BUFFERS = 256; // Write buffers kept per event loop once released
+    private static final int PENDING_BUFFER_SIZE = 4 * 1024; // Pooled buffers for incomplete input, longer input gets its own
+
+    private final int port;
+    private final int writeBufferSize; // Size of each pooled write buffer, queued messages are coalesced up to this size
+    private final long writeBatchWindowNanos; // How long a connection's first queued message waits for more before the flush
+    private final EventLoop[] eventLoops;
+    private final Supplier<OutboundQueue> queueFactory; // Creates the outbound queue of each connection
+    private final Function<Connection, Connection.Handler> handlerFactory; // Creates the protocol handler of each connection
+
+    NioTransport(int port, int eventLoopCount, int writeBufferSize, long writeBatchWindowNanos,
+                 Supplier<OutboundQueue> queueFactory, Function<Connection, Connection.Handler> handlerFactory) throws IOException {
+        this.port = port;
+        this.writeBufferSize = writeBufferSize;
+        this.writeBatchWindowNanos = writeBatchWindowNanos;
+        this.queueFactory = queueFactory;
+        this.handlerFactory = handlerFactory;
+        this.eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop();
+        }
+    }
+
+    // Start the event loops and accept connections on the calling thread
+    void run() throws IOException {
+        for (int i = 0; i < eventLoops.length; i++) {
+            Thread loopThread = new Thread(eventLoops[i], "nio-event-loop-" + i);
+            loopThread.setDaemon(true);
+            loopThread.start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept(); // Blocking accept, the loops only do I/O
+                channel.configureBlocking(false);
+                EventLoop loop = eventLoops[next];
+                next = (next + 1) % eventLoops.length;
+                NioConnection connection = new NioConnection(channel, loop, queueFactory.get());
+                loop.execute(connection::register);
+            }
+        }
+    }
+
+    // One selector thread, owns the keys and pooled buffers of its connections
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // Work handed over by other threads
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE); // Shared by all reads on this loop
+        private final ArrayDeque<ByteBuffer> writeBuffers = new ArrayDeque<>(); // Direct buffers free for connections with pending output
+        private final ArrayDeque<ByteBuffer> pendingBuffers = new ArrayDeque<>(); // Heap buffers free for connections with incomplete input
+        private final ArrayDeque<NioConnection> delayedFlushes = new ArrayDeque<>(); // Waiting out the batch window, due in order
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        // Run a task on this loop's thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        // Flush the connection once the batch window is over, runs on the loop
+        void flushLater(NioConnection connection) {
+            connection.flushAt = System.nanoTime() + writeBatchWindowNanos;
+            delayedFlushes.add(connection); // Every window is as long, so the deque stays in deadline order
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    NioConnection next = delayedFlushes.peek();
+                    if (next == null) {
+                        selector.select();
+                    } else {
+                        long waitNanos = next.flushAt - System.nanoTime();
+                        if (waitNanos > 0) {
+                            selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos))); // Rounds down, never 0
+                        } else {
+                            selector.selectNow();
+                        }
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            e.printStackTrace(); // Connection tasks close their connection themselves, see NioConnection.fail
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (RuntimeException e) {
+                            connection.fail(e);
+                        }
+                    }
+                    long now = System.nanoTime();
+                    while ((next = delayedFlushes.peek()) != null && next.flushAt - now <= 0) {
+                        delayedFlushes.poll().flushOrFail();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        ByteBuffer borrowBuffer() {
+            ByteBuffer buffer = writeBuffers.poll();
+            return buffer != null ? buffer : ByteBuffer.allocateDirect(writeBufferSize);
+        }
+
+        void releaseBuffer(ByteBuffer buffer) {
+            if (writeBuffers.size() < MAX_POOLED_BUFFERS) {
+                buffer.clear();
+                writeBuffers.push(buffer);
+            }
+        }
+
+        ByteBuffer borrowPendingBuffer(int capacity) {
+            ByteBuffer buffer = capacity <= PENDING_BUFFER_SIZE ? pendingBuffers.poll() : null;
+            return buffer != null ? buffer : ByteBuffer.allocate(Math.max(PENDING_BUFFER_SIZE, capacity));
+        }
+
+        void releasePendingBuffer(ByteBuffer buffer) {
+            if (buffer.capacity() == PENDING_BUFFER_SIZE && pendingBuffers.size() < MAX_POOLED_BUFFERS) {
+                buffer.clear();
+                pendingBuffers.push(buffer);
+            }
+        }
+    }
+
+    // A non-blocking client connection, all I/O happens on its event loop
+    private final class NioConnection implements Connection {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final OutboundQueue outbound; // Messages waiting to be written
+        private final Connection.Handler handler;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(); // A flush is pending or in progress on the loop
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final Runnable flushTask = this::flushOrFail; // Allocated once, reused for every scheduled flush
+        private final Runnable delayedFlushTask = this::flushLater; // Same, for flushes after the batch window
+        private long flushAt; // When a delayed flush is due, only while it is in the loop's delayedFlushes
+        private SelectionKey key;
+        private ByteBuffer pending; // Borrowed buffer of unconsumed input (an incomplete line or frame), only while one is pending
+        private boolean binary; // Frames instead of lines, after the handshake
+        private ByteBuffer writeBuffer; // Borrowed direct buffer, only while output is pending
+        private ByteBuffer current; // Payload or compressed batch being copied into the write buffer
+        private Compression compression; // Set once compression was negotiated
+
+        NioConnection(SocketChannel channel, EventLoop loop, OutboundQueue outbound) {
+            this.channel = channel;
+            this.loop = loop;
+            this.outbound = outbound;
+            this.handler = handlerFactory.apply(this);
+        }
+
+        // Register with the loop's selector, runs on the loop
+        void register() {
+            try {
+                this.key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            } catch (ClosedChannelException e) {
+                close();
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        // A bug in the handler or the protocol code closes only this connection, the loop goes on with the others
+        void fail(RuntimeException e) {
+            e.printStackTrace();
+            close();
+        }
+
+        private void flushLater() {
+            loop.flushLater(this);
+        }
+
+        private void flushOrFail() {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void send(Payload payload) {
+            if (!outbound.offer(payload)) {
+                // The client is not keeping up, drop the connection so it can't stall anyone else
+                System.out.println(channel.socket().getRemoteSocketAddress() + " disconnected: outbound queue overflow");
+                close();
+                return;
+            }
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(writeBatchWindowNanos > 0 ? delayedFlushTask : flushTask); // Let the batch fill up first
+            }
+        }
+
+        @Override
+        public int queuedMessages() {
+            return outbound.size();
+        }
+
+        @Override
+        public void switchToBinary() {
+            binary = true; // Called on the loop, the next decode and every later flush see it
+        }
+
+        @Override
+        public void disconnectOnOverflow() {
+            outbound.disconnectOnOverflow();
+        }
+
+        @Override
+        public void enableCompression(Compression compression) {
+            this.compression = compression; // Called on the loop like switchToBinary
+        }
+
+        @Override
+        public void closeAfterFlush() {
+            outbound.finish();
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(flushTask);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                outbound.finish();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                loop.execute(this::release);
+            }
+        }
+
+        // Return pooled buffers and notify the handler, runs on the loop
+        private void release() {
+            if (writeBuffer != null) {
+                loop.releaseBuffer(writeBuffer);
+                writeBuffer = null;
+            }
+            if (pending != null) {
+                loop.releasePendingBuffer(pending);
+                pending = null;
+            }
+            handler.onClose();
+            if (compression != null) {
+                compression.endOutput();
+                compression.endInput();
+            }
+        }
+
+        // Read what is available and hand complete lines or frames to the handler, runs on the loop
+        void read() {
+            ByteBuffer buffer = loop.readBuffer;
+            buffer.clear();
+            int count;
+            try {
+                count = channel.read(buffer);
+            } catch (IOException e) {
+                count = -1;
+            }
+            if (count < 0) {
+                close();
+                return;
+            }
+            buffer.flip();
+
+            // Continue an incomplete line or frame from the previous read
+            ByteBuffer input = buffer;
+            if (pending != null) {
+                if (pending.remaining() < buffer.remaining()) {
+                    if (pending.position() + buffer.remaining() > Frames.HEADER_LENGTH + Frames.MAX_BODY_LENGTH) {
+                        close(); // Line or frame too long
+                        return;
+                    }
+                    ByteBuffer larger = loop.borrowPendingBuffer(Math.max(pending.capacity() * 2, pending.position() + buffer.remaining()));
+                    pending.flip();
+                    larger.put(pending);
+                    loop.releasePendingBuffer(pending);
+                    pending = larger;
+                }
+                pending.put(buffer);
+                pending.flip();
+                input = pending;
+            }
+
+            while (!closed.get() && (binary ? decodeFrame(input) : decodeLine(input))) {
+                // Keep decoding until the input ends in the middle of a line or frame
+            }
+
+            // Keep whatever is left for the next read
+            if (closed.get() || !input.hasRemaining()) {
+                if (pending != null) {
+                    loop.releasePendingBuffer(pending);
+                    pending = null;
+                }
+            } else if (input == pending) {
+                pending.compact();
+            } else {
+                pending = loop.borrowPendingBuffer(input.remaining());
+                pending.put(input);
+            }
+        }
+
+        // Hand the next complete line to the handler, returns false if the input has no newline yet
+        private boolean decodeLine(ByteBuffer input) {
+            int start = input.position();
+            int newline = -1;
+            for (int i = start; i < input.limit(); i++) {
+                if (input.get(i) == '\n') {
+                    newline = i;
+                    break;
+                }
+            }
+            if (newline < 0) {
+                return false;
+            }
+            int end = newline;
+            if (end > start && input.get(end - 1) == '\r') {
+                end--; // Drop a trailing carriage return like BufferedReader.readLine
+            }
+            // The handler sees the line in place, no copy and no view object
+            int limit = input.limit();
+            input.limit(end);
+            handler.onLine(input);
+            input.limit(limit).position(newline + 1);
+            return true;
+        }
+
+        // Hand the next complete frame to the handler, returns false if the input ends before it does
+        private boolean decodeFrame(ByteBuffer input) {
+            if (input.remaining() < Frames.HEADER_LENGTH) {
+                return false;
+            }
+            int start = input.position();
+            int opcode = input.get(start) & 0xFF;
+            int length = input.getInt(start + 1);
+            if (length < 0 || length > Frames.MAX_BODY_LENGTH) {
+                close(); // Protocol violation
+                return false;
+            }
+            if (input.remaining() < Frames.HEADER_LENGTH + length) {
+                return false;
+            }
+            // The handler sees the body in place, like lines
+            int end = start + Frames.HEADER_LENGTH + length;
+            int limit = input.limit();
+            input.limit(end).position(start + Frames.HEADER_LENGTH);
+            try {
+                if (opcode != Frames.COMPRESSED) {
+                    handler.onFrame(opcode, input);
+                    return true;
+                }
+                if (compression == null) {
+                    close(); // Protocol violation, compression was not negotiated
+                    return false;
+                }
+                compression.inflate(input, handler);
+                return true;
+            } catch (IOException e) {
+                close();
+                return false;
+            } finally {
+                input.limit(limit).position(end);
+            }
+        }
+
+        // Write queued messages until the socket would block or the queue is empty, runs on the loop
+        void flush() {
+            while (!closed.get()) {
+                if (flushOnce()) {
+                    return; // Socket is full, the selector resumes the flush
+                }
+                if (outbound.isDrained()) {
+                    close(); // closeAfterFlush was requested and everything is written
+                    return;
+                }
+                flushScheduled.set(false);
+                // A message queued after our last poll could not schedule a flush itself, so check again
+                if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        // Write until the socket would block or the queue is empty, returns true in the first case
+        private boolean flushOnce() {
+            try {
+                while (true) {
+                    if (writeBuffer == null) {
+                        writeBuffer = loop.borrowBuffer();
+                        writeBuffer.flip(); // Start empty, in draining mode
+                    }
+                    if (writeBuffer.hasRemaining()) {
+                        channel.write(writeBuffer);
+                        if (writeBuffer.hasRemaining()) {
+                            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE); // Resume when the socket drains
+                            return true;
+                        }
+                    }
+                    if (!fillWriteBuffer()) {
+                        break;
+                    }
+                }
+
+                // Everything is written, give the buffer back and stop watching for writability
+                loop.releaseBuffer(writeBuffer);
+                writeBuffer = null;
+                key.interestOps(SelectionKey.OP_READ);
+                return false;
+            } catch (IOException | CancelledKeyException e) {
+                close();
+                return true;
+            }
+        }
+
+        // Copy queued payloads into the write buffer, returns false if there was nothing to copy
+        private boolean fillWriteBuffer() {
+            writeBuffer.clear();
+            while (writeBuffer.hasRemaining()) {
+                if (current == null && compression != null) {
+                    // Stage a write buffer's worth of payloads and send them as one batch
+                    Payload payload;
+                    while (compression.staged() < writeBufferSize && (payload = outbound.poll()) != null) {
+                        compression.stage(payload);
+                    }
+                    if (compression.staged() == 0) {
+                        break;
+                    }
+                    current = compression.takeBatch();
+                } else if (current == null) {
+                    Payload payload = outbound.poll();
+                    if (payload == null) {
+                        break;
+                    }
+                    current = payload.buffer(binary);
+                }
+                if (current.remaining() <= writeBuffer.remaining()) {
+                    writeBuffer.put(current);
+                    current = null;
+                } else {
+                    int limit = current.limit();
+                    current.limit(current.position() + writeBuffer.remaining());
+                    writeBuffer.put(current);
+                    current.limit(limit);
+                }
+            }
+            writeBuffer.flip();
+            return writeBuffer.hasRemaining();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded queue of messages waiting to be written to one client
+final class OutboundQueue {
+    // What to do when a client does not drain its queue fast enough
+    enum OverflowPolicy {
+        DROP_OLDEST, // Discard the oldest queued message to make room
+        DROP_NEWEST, // Discard the message being added
+        DISCONNECT // Give up on the client
+    }
+
+    private final ArrayDeque<Payload> queue = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final int capacity;
+    private OverflowPolicy overflowPolicy; // Guarded by lock
+    private final Metrics metrics; // Counts what the overflow policy drops
+    private boolean finished; // No more messages will be added, the writer stops once the queue is empty
+
+    OutboundQueue(int capacity, OverflowPolicy overflowPolicy, Metrics metrics) {
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.metrics = metrics;
+    }
+
+    // Add a message without blocking, returns false if the client should be disconnected
+    boolean offer(Payload message) {
+        lock.lock();
+        try {
+            if (finished) {
+                return true; // Connection is closing, nothing more will be written
+            }
+            if (queue.size() >= capacity) {
+                switch (overflowPolicy) {
+                    case DROP_NEWEST:
+                        metrics.droppedMessages.increment();
+                        return true;
+                    case DISCONNECT:
+                        metrics.overflowDisconnects.increment();
+                        return false;
+                    case DROP_OLDEST:
+                        queue.poll(); // Make room
+                        metrics.droppedMessages.increment();
+                        break;
+                }
+            }
+            queue.add(message);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Give up on the client instead of dropping messages once the queue is full, for clients that would rather
+    // resume their session and get everything than silently miss some
+    void disconnectOnOverflow() {
+        lock.lock();
+        try {
+            overflowPolicy = OverflowPolicy.DISCONNECT;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Wait for the next message to write, returns null once the queue is finished and drained
+    Payload take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (queue.isEmpty()) {
+                if (finished) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            return queue.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Next message to write without waiting, or null if there is none
+    Payload poll() {
+        lock.lock();
+        try {
+            return queue.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Next message to write, waiting at most the given time for one to arrive, or null if none did
+    Payload poll(long timeoutNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (queue.isEmpty() && !finished && timeoutNanos > 0) {
+                timeoutNanos = notEmpty.awaitNanos(timeoutNanos);
+            }
+            return queue.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stop accepting messages, whatever is already queued is still written
+    void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Number of messages waiting
+    int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True if no message is waiting
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return queue.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True once finish() was called and every queued message was taken
+    boolean isDrained() {
+        lock.lock();
+        try {
+            return finished && queue.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package server;
+
+import protocol.Frames;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+// A single protocol message, encoded at most once per wire format and shared by every recipient
+final class Payload {
+    private final Supplier<byte[]> line; // Encodes the text protocol form, only if a text client needs it
+    private final Supplier<byte[]> frame; // Encodes the binary protocol form, only if a binary client needs it
+    private volatile byte[] lineBytes; // UTF-8 encoded line including the trailing newline, never modified
+    private volatile byte[] frameBytes; // Encoded frame, never modified
+
+    private Payload(String line, Supplier<byte[]> frame) {
+        this(() -> (oneLine(line) + "\n").getBytes(StandardCharsets.UTF_8), frame);
+    }
+
+    private Payload(Supplier<byte[]> line, Supplier<byte[]> frame) {
+        this.line = line;
+        this.frame = frame;
+    }
+
+    // Words that start the server's text protocol lines as "WORD:". No username may be one of them or contain ':',
+    // so a chat line "name: text" never passes for one of these lines.
+    static final Set<String> CONTROL_WORDS = Set.of("ERROR", "PING", "SESSION", "RESUMED", "RESUME_FAILED",
+            "USER_LIST", "USER_JOINED", "USER_LEFT", "ROOM_MESSAGE", "ROOM_USER_LIST", "ROOM_JOINED", "ROOM_LEFT",
+            "BANNED_WORDS", "INSTRUCTIONS", "HISTORY", "HISTORY_END", "STATS", "RATE_LIMITED", "PROTOCOL");
+
+    // Line breaks in a binary client's text would start a line of their own for text clients
+    private static String oneLine(String text) {
+        return text.indexOf('\n') < 0 && text.indexOf('\r') < 0 ? text : text.replace('\n', ' ').replace('\r', ' ');
+    }
+
+    // Encode a chat message as "sender: text", or just the text if there is no sender
+    static Payload message(String sender, String text) {
+        return new Payload(sender != null ? sender + ": " + text : text,
+                () -> new Frames.Builder(Frames.MESSAGE).string(sender != null ? sender : "").string(text).toBytes());
+    }
+
+    // Login failure, the text already starts with "ERROR:"
+    static Payload error(String text) {
+        return new Payload(text, () -> new Frames.Builder(Frames.ERROR).string(text).toBytes());
+    }
+
+    // Full list of connected users
+    static Payload userList(long version, List<String> names) {
+        return new Payload("USER_LIST:" + version + ":" + String.join(",", names),
+                () -> listFrames(Frames.USER_LIST, Frames.USER_LIST_MORE, null, version, names));
+    }
+
+    // A single user joined or left
+    static Payload presence(boolean joined, long version, String name) {
+        return new Payload((joined ? "USER_JOINED:" : "USER_LEFT:") + version + ":" + name,
+                () -> new Frames.Builder(joined ? Frames.USER_JOINED : Frames.USER_LEFT).version(version).string(name).toBytes());
+    }
+
+    // A message to a room, the text form is "ROOM_MESSAGE:<room>:" followed by the message as it is shown
+    static Payload roomMessage(String room, String sender, String text) {
+        return new Payload("ROOM_MESSAGE:" + room + ":" + (sender != null ? sender + ": " + text : text),
+                () -> new Frames.Builder(Frames.ROOM_MESSAGE).string(room).string(sender != null ? sender : "").string(text).toBytes());
+    }
+
+    // Full list of a room's members, versioned by the room
+    static Payload roomUserList(String room, long version, List<String> names) {
+        return new Payload("ROOM_USER_LIST:" + room + ":" + version + ":" + String.join(",", names),
+                () -> listFrames(Frames.ROOM_USER_LIST, Frames.ROOM_USER_LIST_MORE, room, version, names));
+    }
+
+    // A list frame, or if the names don't fit in one body the list frame followed by _MORE frames with the rest.
+    // A client that doesn't know the _MORE frames skips them and keeps the first part.
+    private static byte[] listFrames(int opcode, int moreOpcode, String room, long version, List<String> names) {
+        byte[] frame = listFrame(opcode, room, version, names);
+        if (frame.length <= Frames.HEADER_LENGTH + Frames.MAX_BODY_LENGTH) {
+            return frame;
+        }
+        int fixedLength = (room != null ? 4 + room.getBytes(StandardCharsets.UTF_8).length : 0) + 8 + 4;
+        ByteArrayOutputStream frames = new ByteArrayOutputStream(frame.length + Frames.HEADER_LENGTH * 2);
+        int from = 0;
+        int bodyLength = fixedLength;
+        for (int i = 0; i < names.size(); i++) {
+            int nameLength = 4 + names.get(i).getBytes(StandardCharsets.UTF_8).length;
+            if (bodyLength + nameLength > Frames.MAX_BODY_LENGTH && i > from) {
+                frames.writeBytes(listFrame(from == 0 ? opcode : moreOpcode, room, version, names.subList(from, i)));
+                from = i;
+                bodyLength = fixedLength;
+            }
+            bodyLength += nameLength;
+        }
+        frames.writeBytes(listFrame(from == 0 ? opcode : moreOpcode, room, version, names.subList(from, names.size())));
+        return frames.toByteArray();
+    }
+
+    private static byte[] listFrame(int opcode, String room, long version, List<String> names) {
+        Frames.Builder frame = new Frames.Builder(opcode);
+        if (room != null) {
+            frame.string(room);
+        }
+        return frame.version(version).list(names).toBytes();
+    }
+
+    // A single user joined or left a room
+    static Payload roomPresence(String room, boolean joined, long version, String name) {
+        return new Payload((joined ? "ROOM_JOINED:" : "ROOM_LEFT:") + room + ":" + version + ":" + name,
+                () -> new Frames.Builder(joined ? Frames.ROOM_JOINED : Frames.ROOM_LEFT).string(room).version(version).string(name).toBytes());
+    }
+
+    static Payload bannedWords(Collection<String> words) {
+        return new Payload("BANNED_WORDS:" + String.join(",", words),
+                () -> new Frames.Builder(Frames.BANNED_WORDS).list(words).toBytes());
+    }
+
+    static Payload instructions(String html) {
+        return new Payload("INSTRUCTIONS:" + html, () -> new Frames.Builder(Frames.INSTRUCTIONS).string(html).toBytes());
+    }
+
+    // Server statistics for an admin, space separated name=value pairs
+    static Payload stats(String values) {
+        return new Payload("STATS: " + values, () -> new Frames.Builder(Frames.STATS).string(values).toBytes());
+    }
+
+    // A logged message replayed from the history, both forms are put together from the stored UTF-8 bytes without decoding them.
+    // The text form is "HISTORY:<offset>:" followed by the message as it was shown.
+    static Payload history(MessageLog.Entry entry) {
+        return new Payload(() -> {
+            ByteBuffer sender = entry.sender();
+            ByteBuffer text = entry.text();
+            byte[] prefix = ("HISTORY:" + entry.offset() + ":").getBytes(StandardCharsets.UTF_8);
+            int senderLength = sender.remaining() > 0 ? sender.remaining() + 2 : 0;
+            ByteBuffer line = ByteBuffer.allocate(prefix.length + senderLength + text.remaining() + 1);
+            line.put(prefix);
+            if (senderLength > 0) {
+                line.put(sender.duplicate()).put((byte) ':').put((byte) ' ');
+            }
+            for (int i = text.position(); i < text.limit(); i++) {
+                byte b = text.get(i);
+                line.put(b == '\n' || b == '\r' ? (byte) ' ' : b); // Kept as it was sent, see oneLine
+            }
+            return line.put((byte) '\n').array();
+        }, () -> new Frames.Builder(Frames.HISTORY).version(entry.offset()).string(entry.sender()).string(entry.text()).toBytes());
+    }
+
+    // End of a history reply, with the offset to continue from
+    static Payload historyEnd(long nextOffset) {
+        return new Payload("HISTORY_END:" + nextOffset, () -> new Frames.Builder(Frames.HISTORY_END).version(nextOffset).toBytes());
+    }
+
+    // Session token issued on login, messages after it are counted for a resume
+    static Payload session(String token, long graceSeconds) {
+        return new Payload("SESSION:" + graceSeconds + ":" + token,
+                () -> new Frames.Builder(Frames.SESSION).string(token).version(graceSeconds).toBytes());
+    }
+
+    // The session was resumed, the replayed messages follow
+    static Payload resumed(long replayed) {
+        return new Payload("RESUMED:" + replayed, () -> new Frames.Builder(Frames.RESUMED).version(replayed).toBytes());
+    }
+
+    static Payload resumeFailed(String reason) {
+        return new Payload("RESUME_FAILED:" + reason, () -> new Frames.Builder(Frames.RESUME_FAILED).string(reason).toBytes());
+    }
+
+    // Heartbeat, the client answers with PONG and may expect one every interval
+    static Payload ping(long intervalSeconds) {
+        return new Payload("PING:" + intervalSeconds, () -> new Frames.Builder(Frames.PING).version(intervalSeconds).toBytes());
+    }
+
+    // Handshake reply, always sent as a text line even though the connection just switched to frames
+    static Payload handshake(String line) {
+        Payload payload = new Payload(line, null);
+        payload.frameBytes = payload.bytes(false);
+        return payload;
+    }
+
+    // Encoded size in bytes
+    int length(boolean binary) {
+        return bytes(binary).length;
+    }
+
+    // Read-only view of the encoded bytes, each call returns an independent position
+    ByteBuffer buffer(boolean binary) {
+        return ByteBuffer.wrap(bytes(binary)).asReadOnlyBuffer();
+    }
+
+    // Write the encoded bytes to a stream
+    void writeTo(OutputStream out, boolean binary) throws IOException {
+        out.write(bytes(binary));
+    }
+
+    // Encoding for the given wire format, built on first use
+    private byte[] bytes(boolean binary) {
+        if (binary) {
+            byte[] bytes = frameBytes;
+            if (bytes == null) {
+                synchronized (this) {
+                    bytes = frameBytes;
+                    if (bytes == null) {
+                        frameBytes = bytes = frame.get();
+                    }
+                }
+            }
+            return bytes;
+        }
+        byte[] bytes = lineBytes;
+        if (bytes == null) {
+            synchronized (this) {
+                bytes = lineBytes;
+                if (bytes == null) {
+                    lineBytes = bytes = line.get();
+                }
+            }
+        }
+        return bytes;
+    }
+}
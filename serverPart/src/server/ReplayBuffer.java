@@ -0,0 +1,34 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// The latest messages sent to one client, numbered in the order they were sent, so a client that lost its
+// connection can resume and get only what it missed. Messages are counted from 1, the client tells us the
+// number of the last one it got. Bounded, the oldest are forgotten first. Not synchronized, the client handler guards it.
+final class ReplayBuffer {
+    private final Payload[] ring;
+    private long count; // Messages added so far, also the number of the latest one
+
+    ReplayBuffer(int capacity) {
+        this.ring = new Payload[Math.max(1, capacity)];
+    }
+
+    void add(Payload payload) {
+        ring[(int) (count % ring.length)] = payload;
+        count++;
+    }
+
+    // Messages after the given one, oldest first, or null if some of them were already forgotten
+    // or the client claims to have seen more than was sent
+    List<Payload> after(long lastSeen) {
+        if (lastSeen < 0 || lastSeen > count || count - lastSeen > ring.length) {
+            return null;
+        }
+        List<Payload> missed = new ArrayList<>((int) (count - lastSeen));
+        for (long next = lastSeen; next < count; next++) {
+            missed.add(ring[(int) (next % ring.length)]);
+        }
+        return missed;
+    }
+}
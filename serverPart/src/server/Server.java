@@ -0,0 +1,1589 @@
+package server;
+
+import com.sun.net.httpserver.HttpServer;
+import protocol.Frames;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+// Main server class that handles client connections and messaging
+public class Server {
+    private int port; // Port number for the server
+    private String serverName; // Name of the server
+    private Path configFile; // Watched for changes to the banned phrases
+    private volatile BannedPhrases bannedPhrases; // Replaced as a whole when the config file changes, read without locking
+    private int outboundQueueCapacity; // Maximum number of messages waiting for each client
+    private OutboundQueue.OverflowPolicy overflowPolicy; // What to do when a client's queue is full
+    private String transport; // "threads" for a virtual thread per client, "nio" for selector event loops
+    private int eventLoops; // Number of selector threads in nio mode
+    private int writeBatchBytes; // Outgoing messages are coalesced into writes of up to this many bytes
+    private long writeBatchWindowMicros; // How long a write batch may wait for more messages, 0 to flush as soon as the queue is empty
+    private int compressionThreshold; // Smallest write batch deflated for clients that offer compression, 0 to never compress
+    private double messageRate; // Lines or frames each client may send per second, 0 for no limit
+    private int messageBurst; // How many of them may come at once
+    private double fanOutRate; // Recipients each client's messages may reach per second, 0 for no limit
+    private int fanOutBurst; // How many of them at once, a larger single message takes a full burst
+    private Set<String> adminUsers; // Users allowed to ask for STATS
+    private int metricsPort; // Local port of the Prometheus endpoint, 0 to disable it
+    private ClientRegistry<ClientHandler> clients; // Registry of logged-in clients
+    private ConcurrentHashMap<String, ClientRegistry<ClientHandler>> rooms; // Members of each room, a room exists while someone is in it
+    private Metrics metrics; // Counters and latency histograms
+    private MessageLog history; // Every delivered message, null unless historyDir is set
+    private int historyOnJoin; // Messages replayed to a client when it logs in
+    private Cluster cluster; // Links to the other nodes of the chat, null when running alone
+    private int resumeGraceSeconds; // How long a lost connection's session waits to be resumed, 0 for no sessions
+    private int resumeBufferMessages; // Latest messages kept per client for a resume
+    private ConcurrentHashMap<String, ClientHandler> sessions; // Logged-in clients by session token
+    private int heartbeatSeconds; // How often connections are pinged, 0 for no heartbeats
+    private int idleTimeoutSeconds; // How long a connection may stay silent before it is closed, with heartbeats on
+    private Payload ping; // PING with the heartbeat interval, shared by every client
+    private Mailboxes mailboxes; // INCLUDE messages kept for recipients who are offline, null unless mailboxMessages is set
+    private TimerWheel timers; // Heartbeats, session expiry and mailbox expiry, null when none is enabled
+    private ExecutorService executorService; // Thread pool for handling client connections
+    private Payload userListPayload; // Cached full USER_LIST reply, rebuilt only when membership changed
+    private long userListVersion = -1; // Registry version the cached USER_LIST reply was built from
+
+    private static final int MAX_HISTORY = 1000; // Most messages one history reply holds
+    private static final SecureRandom TOKENS = new SecureRandom(); // Session tokens must not be guessable
+    private static final long TIMER_TICK_MILLIS = 100; // Resolution of heartbeats and session expiry
+    private static final int TIMER_SLOTS = 1024; // One turn of the timer wheel covers about 100 seconds
+    private static final int MAILBOX_BATCH = 64; // Kept messages taken from a mailbox at once when its owner logs in
+    private static final long MAILBOX_PAUSE_MILLIS = 10; // Wait before the next batch while the client's queue is half full
+    private static final long MAILBOX_SWEEP_SECONDS = 60; // How often expired messages are dropped from mailboxes nobody reads
+    private static final int MAX_ROOMS_PER_CLIENT = 64; // Rooms one client may be in at the same time
+    private static final Pattern ROOM_NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}"); // No separators of the text protocol
+    private static final Pattern USER_NAME = Pattern.compile("[^:,\\p{Cntrl}]{1,64}"); // Nor here, see Payload.CONTROL_WORDS
+
+    // Rate limit replies, encoded once and shared by every client
+    private static final Payload RATE_LIMITED_MESSAGES = Payload.message(null,
+            "RATE_LIMITED: Too many messages, slow down. Messages are dropped until you do.");
+    private static final Payload RATE_LIMITED_FAN_OUT = Payload.message(null,
+            "RATE_LIMITED: Your messages reach too many users too fast, this one was dropped.");
+
+    // Usage instructions, the same for every client
+    private static final Payload INSTRUCTIONS = Payload.instructions("<html>"
+            + "<p>Type your message in the box in bottom left corner of window.</p>"
+            + "<p>Select what type of message you want to send:</p>"
+            + "<p> ---global = send to everyone</p>"
+            + "<p> ---include = check box next to users that WILL see your message.</p>"
+            + "<p> ---exclude = check box next to users that WON'T see your message.</p>"
+            + "<p>Join a room to chat with its members only, messages go to the room picked above the user list.</p>"
+            + "</html>");
+
+    // Constructor to initialize the server with a configuration file
+    public Server(String configFilePath) throws IOException {
+        this.clients = new ClientRegistry<>(true); // Indexed, INCLUDE recipients are looked up straight from the received bytes
+        this.rooms = new ConcurrentHashMap<>();
+        this.sessions = new ConcurrentHashMap<>();
+        this.metrics = new Metrics();
+        this.configFile = Path.of(configFilePath);
+        this.executorService = Executors.newVirtualThreadPerTaskExecutor(); // Virtual threads as per requirement
+        loadConfiguration(configFilePath); // Load settings from the config file
+        if (heartbeatSeconds > 0 || resumeGraceSeconds > 0 || mailboxes != null) {
+            this.timers = new TimerWheel(TIMER_TICK_MILLIS, TIMER_SLOTS); // One thread for every connection's timeouts
+            timers.start("timer-wheel");
+        }
+        if (mailboxes != null) {
+            scheduleMailboxSweep();
+        }
+    }
+
+    // Drop expired messages of users who don't log in, on a thread of the pool as it walks every mailbox
+    private void scheduleMailboxSweep() {
+        timers.schedule(new TimerWheel.Timeout(() -> executorService.execute(() -> {
+            mailboxes.expire();
+            scheduleMailboxSweep();
+        })), timers.ticks(MAILBOX_SWEEP_SECONDS, TimeUnit.SECONDS));
+    }
+
+    // Load server configuration from the provided file path
+    private void loadConfiguration(String configFilePath) throws IOException {
+        Map<String, String> settings = readSettings(configFilePath);
+        this.port = Integer.parseInt(settings.get("port").trim());
+        this.serverName = settings.get("serverName").trim();
+        this.bannedPhrases = new BannedPhrases(new HashSet<>(Arrays.asList(settings.get("bannedPhrases").split(",")))); // Compile once, reuse for every check
+
+        // Optional settings, with defaults
+        this.outboundQueueCapacity = Integer.parseInt(settings.getOrDefault("outboundQueueCapacity", "1024").trim());
+        this.overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(
+                settings.getOrDefault("overflowPolicy", "DROP_OLDEST").trim().toUpperCase());
+        this.transport = settings.getOrDefault("transport", "threads").trim().toLowerCase();
+        this.eventLoops = Integer.parseInt(settings.getOrDefault("eventLoops",
+                String.valueOf(Runtime.getRuntime().availableProcessors())).trim());
+        this.writeBatchBytes = Integer.parseInt(settings.getOrDefault("writeBatchBytes", "16384").trim());
+        this.writeBatchWindowMicros = Long.parseLong(settings.getOrDefault("writeBatchWindowMicros", "0").trim());
+        this.compressionThreshold = Integer.parseInt(settings.getOrDefault("compressionThreshold", "0").trim());
+        this.adminUsers = new HashSet<>();
+        for (String admin : settings.getOrDefault("adminUsers", "").split(",")) {
+            if (!admin.isBlank()) {
+                adminUsers.add(admin.trim());
+            }
+        }
+        this.metricsPort = Integer.parseInt(settings.getOrDefault("metricsPort", "0").trim());
+        this.resumeGraceSeconds = Integer.parseInt(settings.getOrDefault("resumeGraceSeconds", "0").trim());
+        this.resumeBufferMessages = Integer.parseInt(settings.getOrDefault("resumeBufferMessages", "256").trim());
+        this.heartbeatSeconds = Integer.parseInt(settings.getOrDefault("heartbeatSeconds", "0").trim());
+        this.idleTimeoutSeconds = Integer.parseInt(settings.getOrDefault("idleTimeoutSeconds",
+                String.valueOf(3 * heartbeatSeconds)).trim());
+        if (heartbeatSeconds > 0 && idleTimeoutSeconds < 2 * heartbeatSeconds) {
+            // The idle check runs once per heartbeat, a shorter timeout would close connections that answer every ping
+            throw new IOException("idleTimeoutSeconds must be at least twice heartbeatSeconds");
+        }
+        this.ping = Payload.ping(heartbeatSeconds);
+        this.messageRate = Double.parseDouble(settings.getOrDefault("messageRate", "0").trim());
+        this.messageBurst = Integer.parseInt(settings.getOrDefault("messageBurst",
+                String.valueOf((int) Math.ceil(messageRate * 2))).trim());
+        this.fanOutRate = Double.parseDouble(settings.getOrDefault("fanOutRate", "0").trim());
+        this.fanOutBurst = Integer.parseInt(settings.getOrDefault("fanOutBurst",
+                String.valueOf((int) Math.ceil(fanOutRate * 2))).trim());
+        int clusterPort = Integer.parseInt(settings.getOrDefault("clusterPort", "0").trim());
+        if (clusterPort > 0) {
+            List<String> peers = new ArrayList<>();
+            for (String peer : settings.getOrDefault("peers", "").split(",")) {
+                if (!peer.isBlank()) {
+                    peers.add(peer.trim());
+                }
+            }
+            String self = settings.getOrDefault("clusterHost", "localhost").trim() + ":" + clusterPort; // How the peers list us
+            InetAddress bindAddress = InetAddress.getByName(settings.getOrDefault("clusterBindAddress", "127.0.0.1").trim());
+            String secret = settings.getOrDefault("clusterSecret", "").trim();
+            if (secret.isEmpty() && !bindAddress.isLoopbackAddress()) {
+                // Anyone reaching the port could speak for any user, past banned phrases and rate limits
+                throw new IOException("clusterSecret must be set when clusterBindAddress is not a loopback address");
+            }
+            this.cluster = new Cluster(self, clusterPort, bindAddress, secret, peers, metrics);
+        }
+        if (settings.containsKey("historyDir")) {
+            this.history = new MessageLog(Path.of(settings.get("historyDir").trim()),
+                    Integer.parseInt(settings.getOrDefault("historySegmentBytes", "16777216").trim()),
+                    Integer.parseInt(settings.getOrDefault("historySegments", "16").trim()));
+            this.historyOnJoin = Integer.parseInt(settings.getOrDefault("historyOnJoin", "20").trim());
+        }
+        int mailboxMessages = Integer.parseInt(settings.getOrDefault("mailboxMessages", "0").trim());
+        if (mailboxMessages > 0) {
+            this.mailboxes = new Mailboxes(mailboxMessages,
+                    Integer.parseInt(settings.getOrDefault("mailboxHeadMessages", "8").trim()),
+                    TimeUnit.SECONDS.toMillis(Long.parseLong(settings.getOrDefault("mailboxTtlSeconds", "604800").trim())),
+                    Integer.parseInt(settings.getOrDefault("maxMailboxes", "10000").trim()),
+                    Long.parseLong(settings.getOrDefault("mailboxSpillBytes", "67108864").trim()),
+                    Integer.parseInt(settings.getOrDefault("mailboxSegmentBytes", "1048576").trim()),
+                    settings.containsKey("mailboxDir") ? Path.of(settings.get("mailboxDir").trim()) : null,
+                    metrics);
+        }
+    }
+
+    // Read the key=value lines of the config file
+    private static Map<String, String> readSettings(String configFilePath) throws IOException {
+        Map<String, String> settings = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(configFilePath))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf('=');
+                if (separator > 0) {
+                    settings.put(line.substring(0, separator).trim(), line.substring(separator + 1));
+                }
+            }
+        }
+        return settings;
+    }
+
+    // Reload the banned phrases whenever the config file changes, the other settings still need a restart
+    private void watchConfiguration() {
+        Path directory = configFile.toAbsolutePath().getParent();
+        try {
+            WatchService watcher = directory.getFileSystem().newWatchService();
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+            executorService.submit(() -> {
+                try {
+                    while (true) {
+                        WatchKey key = watcher.take();
+                        boolean changed = false;
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            changed |= configFile.getFileName().equals(event.context()); // Editors may also replace the file
+                        }
+                        key.reset();
+                        if (changed) {
+                            reloadBannedPhrases();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Server is shutting down
+                }
+                return null;
+            });
+        } catch (IOException e) {
+            e.printStackTrace(); // Keep serving with the phrases loaded at startup
+        }
+    }
+
+    // Compile the new phrases away from the message path and publish them with a single reference write,
+    // checks already running finish with the old matcher
+    private void reloadBannedPhrases() {
+        try {
+            String value = readSettings(configFile.toString()).get("bannedPhrases");
+            if (value == null) {
+                return; // File is being rewritten, wait for the next change
+            }
+            Set<String> phrases = new HashSet<>(Arrays.asList(value.split(",")));
+            if (!phrases.equals(bannedPhrases.phrases)) {
+                bannedPhrases = new BannedPhrases(phrases);
+                System.out.println("Banned phrases reloaded: " + String.join(",", phrases));
+            }
+        } catch (IOException e) {
+            System.out.println("Config not reloaded, keeping the current banned phrases: " + e.getMessage());
+        }
+    }
+
+    // Start the server and listen for incoming client connections
+    public void start() {
+        watchConfiguration();
+        if (cluster != null && !startCluster()) {
+            return;
+        }
+        if (metricsPort > 0) {
+            startMetricsEndpoint();
+        }
+        if (transport.equals("nio")) {
+            startNio();
+            return;
+        }
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            System.out.println(serverName + " running on port " + port);
+
+            // Infinite loop to accept client connections
+            while (true) {
+                Socket clientSocket = serverSocket.accept(); // Accept a new client
+                OutboundQueue outbound = new OutboundQueue(outboundQueueCapacity, overflowPolicy, metrics);
+                executorService.submit(new BlockingConnection(clientSocket, outbound, writeBatchBytes,
+                        TimeUnit.MICROSECONDS.toNanos(writeBatchWindowMicros), this::newClientHandler)); // Handle client in a new thread
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            executorService.shutdown(); // Shutdown the thread pool on server closure
+        }
+    }
+
+    // Serve every client from a few selector event loops instead of a thread per client
+    private void startNio() {
+        try {
+            NioTransport nioTransport = new NioTransport(port, eventLoops, writeBatchBytes,
+                    TimeUnit.MICROSECONDS.toNanos(writeBatchWindowMicros), () -> new OutboundQueue(outboundQueueCapacity, overflowPolicy, metrics), this::newClientHandler);
+            System.out.println(serverName + " running on port " + port + " (nio, " + eventLoops + " event loops)");
+            nioTransport.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Serve the metrics in Prometheus text format on http://localhost:<metricsPort>/metrics
+    private void startMetricsEndpoint() {
+        try {
+            HttpServer httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), metricsPort), 0);
+            httpServer.createContext("/metrics", exchange -> {
+                byte[] body = metrics.prometheus(gauges()).getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            httpServer.setExecutor(executorService);
+            httpServer.start();
+            System.out.println("Metrics available on http://localhost:" + metricsPort + "/metrics");
+        } catch (IOException e) {
+            e.printStackTrace(); // Chat keeps running without metrics
+        }
+    }
+
+    // Current client count and outbound queue depths, read when the metrics are rendered
+    private Metrics.Gauges gauges() {
+        ClientRegistry.Snapshot<ClientHandler> snapshot = clients.snapshot();
+        int connected = 0;
+        long queued = 0;
+        long maxQueueDepth = 0;
+        for (ClientHandler client : snapshot.clients) {
+            Connection connection = client.connection;
+            if (client.node == null) { // Users on other nodes are counted there
+                int depth = connection != null ? connection.queuedMessages() : 0; // No connection while waiting for a resume
+                connected++;
+                queued += depth;
+                maxQueueDepth = Math.max(maxQueueDepth, depth);
+            }
+        }
+        return new Metrics.Gauges(connected, queued, maxQueueDepth);
+    }
+
+    // Join the other nodes before taking clients, a node that can't must not hand out names on its own
+    private boolean startCluster() {
+        try {
+            cluster.start(new ClusterListener());
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Queue a message for every client connected to this node, except the excluded users
+    private void deliverLocally(Payload payload, Set<String> excludedUsers) {
+        ClientRegistry.Snapshot<ClientHandler> snapshot = clients.snapshot(); // Lock-free, consistent view
+        for (int i = 0; i < snapshot.names.size(); i++) {
+            if (snapshot.clients.get(i).node != null || excludedUsers != null && excludedUsers.contains(snapshot.names.get(i))) {
+                continue; // Skip excluded users, and users other nodes deliver to
+            }
+            snapshot.clients.get(i).send(payload);
+        }
+    }
+
+    // Add a client to a room, creating the room on first use.
+    // Room changes are made with the registry's membership lock held, which orders them with logins, logouts and cluster resyncs.
+    // Only the membership changes inside compute, the notifications are sent once the map's bin is unlocked.
+    private void addToRoom(String room, ClientHandler client) {
+        List<ClientRegistry.Snapshot<ClientHandler>> joined = new ArrayList<>(1); // Members with the client, if it joined
+        rooms.compute(room, (name, members) -> { // Atomic with dropping the room once it is empty
+            ClientRegistry<ClientHandler> roomMembers = members != null ? members : new ClientRegistry<>();
+            roomMembers.register(client.clientName, client, snapshot -> {
+                client.joinedRooms.add(room);
+                joined.add(snapshot);
+            });
+            return roomMembers;
+        });
+        if (joined.isEmpty()) {
+            return; // Already a member
+        }
+        ClientRegistry.Snapshot<ClientHandler> snapshot = joined.get(0);
+        if (client.node == null) {
+            if (cluster != null) {
+                cluster.announceRoomJoin(room, client.clientName);
+            }
+            client.send(Payload.roomUserList(room, snapshot.version, snapshot.names));
+        }
+        roomPresence(room, true, client, snapshot);
+    }
+
+    // Take a client out of a room, the room goes away with its last member. Called with the membership lock held.
+    private void removeFromRoom(String room, ClientHandler client) {
+        ClientRegistry<ClientHandler> members = rooms.get(room);
+        if (members == null) {
+            return;
+        }
+        members.unregister(client.clientName, client, snapshot -> {
+            client.joinedRooms.remove(room);
+            if (client.node == null && cluster != null) {
+                cluster.announceRoomLeave(room, client.clientName);
+            }
+            roomPresence(room, false, client, snapshot);
+        });
+        rooms.computeIfPresent(room, (name, remaining) -> remaining.snapshot().names.isEmpty() ? null : remaining);
+    }
+
+    // Tell the room's other members on this node that a client joined or left, tagged with the room's version
+    private void roomPresence(String room, boolean joined, ClientHandler client, ClientRegistry.Snapshot<ClientHandler> snapshot) {
+        Payload presence = Payload.roomPresence(room, joined, snapshot.version, client.clientName);
+        Payload notice = Payload.roomMessage(room, null, client.clientName + (joined ? " has joined the room." : " has left the room."));
+        for (ClientHandler member : snapshot.clients) {
+            if (member != client && member.node == null) {
+                member.send(presence);
+                member.send(notice);
+            }
+        }
+    }
+
+    // Queue a room message for the room's members on this node, returns the other nodes with members, null if none
+    private Set<String> deliverToRoom(String room, Payload payload) {
+        ClientRegistry<ClientHandler> members = rooms.get(room);
+        if (members == null) {
+            return null;
+        }
+        Set<String> nodes = null;
+        for (ClientHandler member : members.snapshot().clients) { // Only the room, however many clients the server has
+            if (member.node == null) {
+                member.send(payload);
+            } else {
+                if (nodes == null) {
+                    nodes = new HashSet<>();
+                }
+                nodes.add(member.node);
+            }
+        }
+        return nodes;
+    }
+
+    // Persist a message that passed moderation, delivery goes on if the log fails
+    private void logMessage(byte visibility, String sender, Collection<String> names, String text) {
+        if (history == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            history.append(visibility, sender, names, text);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        metrics.historyAppend.record(System.nanoTime() - start);
+    }
+
+    // Applies what the other nodes report, their users are registered here as clients without a connection
+    private class ClusterListener implements Cluster.Listener {
+        @Override
+        public void onRemoteJoin(String node, String name) {
+            ClientHandler remote = new ClientHandler(node, name);
+            clients.register(name, remote, snapshot -> remote.broadcastPresence(true, snapshot)); // Already listed after a resync
+        }
+
+        @Override
+        public void onRemoteLeave(String node, String name) {
+            ClientHandler remote = clients.get(name);
+            if (remote != null && node.equals(remote.node)) {
+                clients.unregister(name, remote, snapshot -> {
+                    for (String room : new ArrayList<>(remote.joinedRooms)) {
+                        removeFromRoom(room, remote);
+                    }
+                    remote.broadcastPresence(false, snapshot);
+                });
+            }
+        }
+
+        @Override
+        public void onRemoteRoomJoin(String node, String room, String name) {
+            clients.withSnapshot(snapshot -> {
+                ClientHandler remote = clients.get(name);
+                if (remote != null && node.equals(remote.node) && !remote.joinedRooms.contains(room)) {
+                    addToRoom(room, remote);
+                }
+            });
+        }
+
+        @Override
+        public void onRemoteRoomLeave(String node, String room, String name) {
+            clients.withSnapshot(snapshot -> {
+                ClientHandler remote = clients.get(name);
+                if (remote != null && node.equals(remote.node)) {
+                    removeFromRoom(room, remote);
+                }
+            });
+        }
+
+        @Override
+        public void onRemoteRoomMessage(String room, String sender, String text) {
+            long start = System.nanoTime();
+            deliverToRoom(room, Payload.roomMessage(room, sender, text));
+            metrics.fanOut.record(System.nanoTime() - start);
+        }
+
+        @Override
+        public void onRemoteBroadcast(String sender, String text, Set<String> excludedUsers) {
+            logMessage(excludedUsers == null ? MessageLog.PUBLIC : MessageLog.EXCLUDE, sender,
+                    excludedUsers == null ? Collections.emptySet() : excludedUsers, text);
+            long start = System.nanoTime();
+            deliverLocally(Payload.message(sender, text), excludedUsers);
+            metrics.fanOut.record(System.nanoTime() - start);
+        }
+
+        @Override
+        public void onRemoteDirect(String sender, String text, List<String> readers) {
+            Payload payload = Payload.message(sender, text);
+            for (String reader : readers) {
+                ClientHandler client = clients.get(reader);
+                if (client != null && client.node == null) {
+                    client.send(payload);
+                }
+            }
+            logMessage(MessageLog.INCLUDE, sender, readers, text);
+        }
+
+        @Override
+        public void onNodeDown(String node) {
+            for (ClientHandler client : clients.snapshot().clients) {
+                if (node.equals(client.node)) {
+                    onRemoteLeave(node, client.clientName);
+                }
+            }
+        }
+
+        @Override
+        public void onLinkUp(Consumer<String> announceUser, BiConsumer<String, String> announceRoom, Runnable markUp) {
+            clients.withSnapshot(snapshot -> {
+                for (int i = 0; i < snapshot.names.size(); i++) {
+                    ClientHandler client = snapshot.clients.get(i);
+                    if (client.node == null) {
+                        announceUser.accept(snapshot.names.get(i));
+                        for (String room : client.joinedRooms) {
+                            announceRoom.accept(room, snapshot.names.get(i));
+                        }
+                    }
+                }
+                markUp.run();
+            });
+        }
+    }
+
+    // Create the protocol handler for a newly accepted connection
+    Connection.Handler newClientHandler(Connection connection) {
+        metrics.connectionsOpened.increment();
+        return new ClientHandler(connection);
+    }
+
+    // Full list of connected users, built once per membership version
+    private synchronized Payload userListPayload(ClientRegistry.Snapshot<ClientHandler> snapshot) {
+        if (userListVersion != snapshot.version) {
+            userListPayload = Payload.userList(snapshot.version, snapshot.names);
+            userListVersion = snapshot.version;
+        }
+        return userListPayload;
+    }
+
+    // Inner class to handle individual client communication, independent of the transport and wire format
+    private class ClientHandler implements Connection.Handler {
+        private final Connection accepted; // The connection this handler was created for, null for users of other nodes
+        // Where the client is connected now. Replaced when the session is resumed on a new connection, null while
+        // waiting for that, and always null for users of other nodes. Changed with the replay buffer's monitor held.
+        private volatile Connection connection;
+        private final String node; // Cluster node the client is connected to, null for our own clients
+        private volatile String clientName; // Name of the connected client
+        private volatile boolean rejected; // Username was refused, ignore anything else the client sends
+        private volatile boolean loggingIn; // Waiting for the cluster to confirm the name, ignore input until then
+        private boolean compressionAccepted; // Handshake negotiated compression, which starts with the LOGIN frame
+        private boolean closed; // Connection is gone, a late name confirmation must be given back, guarded by this
+        private final Set<String> joinedRooms = ConcurrentHashMap.newKeySet(); // Rooms the client is in, changed with the membership lock held
+        // Rate limits, null when not configured. Only touched by the thread handling the client's input.
+        private final TokenBucket messageBucket;
+        private final TokenBucket fanOutBucket;
+        private boolean messageNoticeSent; // Told the client it is over the message rate since a message last got through it
+        private boolean fanOutNoticeSent; // Same for the fan-out rate, each limit is noticed on its own
+        // Session, only if resuming is enabled: everything sent after the token is numbered and kept for a resume
+        private volatile ReplayBuffer replay; // Also the lock ordering sends with a resume
+        private String sessionToken;
+        private volatile boolean loggedOut; // Left for good or the session ended, the session can't be resumed
+        private long detachCount; // Times the connection was lost, a pending expiry only applies to its own, guarded by replay
+        private volatile ClientHandler resumed; // Session this connection resumed, input and close are handed to it
+        // Recipients of the INCLUDE message being handled, resolved from the received bytes. Reused for every message
+        // by the thread handling the client's input, so a message allocates no list or set of names.
+        private ClientHandler[] recipients = new ClientHandler[16];
+        private int recipientCount;
+        private Set<ClientHandler> longRecipientList; // Finds repeated names in long lists, created on first use
+        private final List<String> offlineRecipients = new ArrayList<>(); // Names nobody is logged in under, with mailboxes on
+        private final AtomicBoolean draining = new AtomicBoolean(); // Delivering the client's mailbox, one drain at a time
+        // Heartbeats of the connection this handler was created for, null without heartbeats and for users of other nodes
+        private final TimerWheel.Timeout idleCheck;
+        private volatile long lastRead; // Timer wheel tick of the last line or frame read from the connection
+        private volatile boolean connectionClosed; // The connection is gone, its idle check stops
+
+        // Constructor accepting the client's connection
+        public ClientHandler(Connection connection) {
+            this.accepted = connection;
+            this.connection = connection;
+            this.node = null;
+            this.messageBucket = messageRate > 0 ? new TokenBucket(messageRate, messageBurst) : null;
+            this.fanOutBucket = fanOutRate > 0 ? new TokenBucket(fanOutRate, fanOutBurst) : null;
+            if (heartbeatSeconds > 0) {
+                this.idleCheck = new TimerWheel.Timeout(this::checkIdle);
+                this.lastRead = timers.now();
+                timers.schedule(idleCheck, timers.ticks(heartbeatSeconds, TimeUnit.SECONDS));
+            } else {
+                this.idleCheck = null;
+            }
+        }
+
+        // A user logged in on another node of the cluster
+        ClientHandler(String node, String name) {
+            this.accepted = null;
+            this.connection = null;
+            this.node = node;
+            this.clientName = name;
+            this.messageBucket = null;
+            this.fanOutBucket = null;
+            this.idleCheck = null;
+        }
+
+        @Override
+        public void onLine(ByteBuffer line) {
+            if (idleCheck != null) {
+                markRead();
+            }
+            if (resumed != null) {
+                resumed.onLine(line);
+                return;
+            }
+            if (rejected || loggingIn) {
+                return;
+            }
+            if (clientName == null) {
+                if (Lines.equals(line, Lines.HANDSHAKE)) {
+                    // Client speaks the binary protocol, accept and expect a LOGIN frame next
+                    connection.switchToBinary();
+                    send(Payload.handshake(Frames.HANDSHAKE));
+                    return;
+                }
+                if (Lines.equals(line, Lines.HANDSHAKE_DEFLATE)) {
+                    // Binary with compression, which starts after the LOGIN frame. Plain binary if we don't compress.
+                    compressionAccepted = compressionThreshold > 0;
+                    connection.switchToBinary();
+                    send(Payload.handshake(compressionAccepted ? Frames.HANDSHAKE_DEFLATE : Frames.HANDSHAKE));
+                    return;
+                }
+                if (Lines.startsWith(line, Lines.RESUME)) {
+                    // RESUME:token:count of messages received
+                    int token = line.position() + Lines.RESUME.length;
+                    int separator = Math.max(token, Lines.lastIndexOf(line, (byte) ':'));
+                    try {
+                        resume(Lines.decode(line, token, separator), Long.parseLong(Lines.decodeTrimmed(line, separator + 1, line.limit())));
+                    } catch (NumberFormatException e) {
+                        send("ERROR: Invalid RESUME message format. Correct format is RESUME:token:received");
+                    }
+                    return;
+                }
+                login(Lines.decode(line)); // First message is the client's username
+                return;
+            }
+            if (Lines.equals(line, Lines.LOGOUT)) {
+                logout(); // Never rate limited, a client can always leave
+                return;
+            }
+            if (Lines.equals(line, Lines.PONG)) {
+                return; // Only shows the client is there, which markRead already noted
+            }
+
+            long start = System.nanoTime();
+            metrics.messagesReceived.increment();
+            if (withinMessageLimit(start)) {
+                handleLine(line);
+                metrics.messageHandling.record(System.nanoTime() - start);
+            }
+        }
+
+        // Handle a text protocol message from a logged-in client, matched by its bytes
+        private void handleLine(ByteBuffer line) {
+            if (Lines.equals(line, Lines.GET_BANNED_WORDS)) {
+                // Send the list of banned words
+                send(bannedPhrases.reply);
+            } else if (Lines.equals(line, Lines.GET_USER_LIST)) {
+                // Client lost track of presence updates, resend the full list
+                sendUserList();
+            } else if (Lines.startsWith(line, Lines.GET_ROOM_USER_LIST)) {
+                sendRoomUserList(argument(line, Lines.GET_ROOM_USER_LIST));
+            } else if (Lines.startsWith(line, Lines.JOIN)) {
+                joinRoom(argument(line, Lines.JOIN));
+            } else if (Lines.startsWith(line, Lines.LEAVE)) {
+                leaveRoom(argument(line, Lines.LEAVE));
+            } else if (Lines.equals(line, Lines.GET_INSTRUCTIONS)) {
+                // Send usage instructions
+                send(INSTRUCTIONS);
+            } else if (Lines.equals(line, Lines.STATS)) {
+                sendStats();
+            } else if (Lines.startsWith(line, Lines.GET_HISTORY)) {
+                // Latest messages this client may see
+                try {
+                    sendHistoryTail(Integer.parseInt(argument(line, Lines.GET_HISTORY)));
+                } catch (NumberFormatException e) {
+                    send("ERROR: Invalid GET_HISTORY message format. Correct format is GET_HISTORY:count");
+                }
+            } else if (Lines.startsWith(line, Lines.GET_HISTORY_SINCE)) {
+                // Messages from an offset on, continuing an earlier history reply
+                try {
+                    sendHistorySince(Long.parseLong(argument(line, Lines.GET_HISTORY_SINCE)));
+                } catch (NumberFormatException e) {
+                    send("ERROR: Invalid GET_HISTORY_SINCE message format. Correct format is GET_HISTORY_SINCE:offset");
+                }
+            } else if (withinFanOutLimit(line)) {
+                if (Lines.startsWith(line, Lines.EXCLUDE)) {
+                    // Handle messages to be excluded for certain users
+                    handleExclusionMessage(line);
+                } else if (Lines.startsWith(line, Lines.INCLUDE)) {
+                    // Handle messages for specific included users
+                    handleInclusionMessage(line);
+                } else if (Lines.startsWith(line, Lines.ROOM)) {
+                    handleRoomMessage(line);
+                } else {
+                    // Broadcast the message globally, unless it contains banned phrases
+                    String message = Lines.decode(line);
+                    if (!rejectBannedPhrases(message)) {
+                        broadcast(message, clientName, null);
+                    }
+                }
+            }
+        }
+
+        // The rest of a command line after its prefix, without surrounding whitespace
+        private String argument(ByteBuffer line, byte[] prefix) {
+            return Lines.decodeTrimmed(line, line.position() + prefix.length, line.limit());
+        }
+
+        @Override
+        public void onFrame(int opcode, ByteBuffer body) {
+            if (idleCheck != null) {
+                markRead();
+            }
+            if (resumed != null) {
+                resumed.onFrame(opcode, body);
+                return;
+            }
+            if (rejected || loggingIn) {
+                return;
+            }
+            try {
+                if (clientName == null) {
+                    if (opcode == Frames.LOGIN || opcode == Frames.RESUME) {
+                        if (compressionAccepted) {
+                            connection.enableCompression(new Compression(compressionThreshold, metrics));
+                            compressionAccepted = false; // Once per connection, a failed resume is followed by a LOGIN
+                        }
+                        if (opcode == Frames.LOGIN) {
+                            login(Frames.readString(body));
+                        } else {
+                            resume(Frames.readString(body), body.getLong());
+                        }
+                    } else {
+                        connection.close(); // Anything before LOGIN is a protocol violation
+                    }
+                    return;
+                }
+                if (opcode == Frames.LOGOUT) {
+                    logout(); // Never rate limited, a client can always leave
+                    return;
+                }
+                if (opcode == Frames.PONG) {
+                    return; // Only shows the client is there, which markRead already noted
+                }
+
+                long start = System.nanoTime();
+                metrics.messagesReceived.increment();
+                if (withinMessageLimit(start)) {
+                    handleFrame(opcode, body);
+                    metrics.messageHandling.record(System.nanoTime() - start);
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                clearRecipients(); // An INCLUDE list may have been cut short, its names must not reach the next message
+                connection.close(); // Malformed frame
+            }
+        }
+
+        // Handle a binary protocol frame from a logged-in client
+        private void handleFrame(int opcode, ByteBuffer body) {
+            // Dispatch on the opcode, fields are already typed so nothing needs to be split
+            switch (opcode) {
+                case Frames.SEND: {
+                    if (!withinFanOutLimit(everyone())) {
+                        break;
+                    }
+                    String text = Frames.readString(body);
+                    if (!rejectBannedPhrases(text)) {
+                        broadcast(text, clientName, null);
+                    }
+                    break;
+                }
+                case Frames.INCLUDE: {
+                    if (body.remaining() < 4) {
+                        throw new IllegalArgumentException("Missing recipient count");
+                    }
+                    if (fanOutBucket != null && !withinFanOutLimit(body.getInt(body.position()))) {
+                        break; // Before the list is parsed, a huge one costs nothing when refused
+                    }
+                    int count = body.getInt();
+                    if (count < 0 || count > body.remaining() / 4) {
+                        throw new IllegalArgumentException("Invalid list length " + count);
+                    }
+                    for (int i = 0; i < count; i++) {
+                        int length = body.getInt();
+                        if (length < 0 || length > body.remaining()) {
+                            throw new IllegalArgumentException("Invalid string length " + length);
+                        }
+                        addRecipient(body, body.position(), body.position() + length); // Resolved in place, never decoded
+                        body.position(body.position() + length);
+                    }
+                    String text = Frames.readString(body);
+                    if (!rejectBannedPhrases(text)) {
+                        sendToRecipients(text);
+                    } else {
+                        clearRecipients();
+                    }
+                    break;
+                }
+                case Frames.EXCLUDE: {
+                    if (!withinFanOutLimit(everyone())) {
+                        break;
+                    }
+                    Set<String> excludedUsers = Frames.readSet(body);
+                    String text = Frames.readString(body);
+                    if (!rejectBannedPhrases(text)) {
+                        broadcast(text, clientName, excludedUsers);
+                    }
+                    break;
+                }
+                case Frames.ROOM_SEND: {
+                    String room = Frames.readString(body);
+                    if (!withinFanOutLimit(roomSize(room))) {
+                        break;
+                    }
+                    String text = Frames.readString(body);
+                    if (!rejectBannedPhrases(text)) {
+                        sendToRoom(room, text);
+                    }
+                    break;
+                }
+                case Frames.JOIN_ROOM:
+                    joinRoom(Frames.readString(body));
+                    break;
+                case Frames.LEAVE_ROOM:
+                    leaveRoom(Frames.readString(body));
+                    break;
+                case Frames.GET_ROOM_USER_LIST:
+                    sendRoomUserList(Frames.readString(body));
+                    break;
+                case Frames.GET_BANNED_WORDS:
+                    send(bannedPhrases.reply);
+                    break;
+                case Frames.GET_INSTRUCTIONS:
+                    send(INSTRUCTIONS);
+                    break;
+                case Frames.GET_USER_LIST:
+                    sendUserList();
+                    break;
+                case Frames.GET_STATS:
+                    sendStats();
+                    break;
+                case Frames.GET_HISTORY:
+                    sendHistoryTail((int) Math.min(body.getLong(), Integer.MAX_VALUE));
+                    break;
+                case Frames.GET_HISTORY_SINCE:
+                    sendHistorySince(body.getLong());
+                    break;
+                default:
+                    send("ERROR: Unknown frame type " + opcode);
+            }
+        }
+
+        @Override
+        public void onClose() {
+            connectionClosed = true;
+            metrics.connectionsClosed.increment();
+            if (resumed != null) {
+                resumed.connectionLost(accepted);
+            } else {
+                connectionLost(accepted);
+            }
+        }
+
+        // A connection of this client closed. With a session the client stays logged in for the grace period,
+        // so a reconnect can resume without anyone seeing it leave and join again.
+        private void connectionLost(Connection lost) {
+            ReplayBuffer replay = this.replay;
+            if (replay == null || loggedOut || rejected) {
+                disconnectClient(); // Ensure proper cleanup on client disconnect
+                return;
+            }
+            long detach;
+            synchronized (replay) {
+                if (connection != lost) {
+                    return; // Already resumed on a newer connection
+                }
+                connection = null; // Messages collect in the replay buffer until the client is back
+                detach = ++detachCount;
+            }
+            // Logging out tells everyone, too much for the timer wheel's thread
+            timers.schedule(new TimerWheel.Timeout(() -> executorService.execute(() -> expireSession(detach))),
+                    timers.ticks(resumeGraceSeconds, TimeUnit.SECONDS));
+        }
+
+        // Log the client out once the grace period is over, unless it resumed in the meantime
+        private void expireSession(long detach) {
+            synchronized (replay) {
+                if (connection != null || detachCount != detach || loggedOut) {
+                    return;
+                }
+                loggedOut = true; // A resume from now on fails
+            }
+            metrics.sessionsExpired.increment();
+            disconnectClient();
+        }
+
+        // Note that the client is there, at most one store per timer tick however fast it sends
+        private void markRead() {
+            long now = timers.now();
+            if (lastRead != now) {
+                lastRead = now;
+            }
+        }
+
+        // Runs on the timer wheel every heartbeat interval while the connection is open. Closes the connection once
+        // the client has been silent for the idle timeout, which then goes through onClose like any lost connection.
+        // Otherwise pings logged-in clients, so a client can tell a quiet server from a dead one.
+        private void checkIdle() {
+            if (connectionClosed) {
+                return;
+            }
+            if (timers.now() - lastRead >= timers.ticks(idleTimeoutSeconds, TimeUnit.SECONDS)) {
+                metrics.idleDisconnects.increment();
+                accepted.close();
+                return;
+            }
+            if (clientName != null || resumed != null) {
+                accepted.send(ping); // Not numbered, never replayed after a resume
+            }
+            timers.schedule(idleCheck, timers.ticks(heartbeatSeconds, TimeUnit.SECONDS));
+        }
+
+        // Issue a session token before the client is registered, everything sent from then on is numbered and kept
+        private void startSession() {
+            byte[] token = new byte[16];
+            TOKENS.nextBytes(token);
+            sessionToken = Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+            connection.disconnectOnOverflow(); // Better to resume and get everything than to silently miss messages
+            connection.send(Payload.session(sessionToken, resumeGraceSeconds)); // Not numbered, the count starts after it
+            replay = new ReplayBuffer(resumeBufferMessages);
+            sessions.put(sessionToken, this);
+        }
+
+        // Pick up the session of a lost connection instead of logging in. If that fails the client logs in on this connection.
+        private void resume(String token, long received) {
+            ClientHandler session = sessions.get(token);
+            long replayed = session != null ? session.attach(connection, received) : -1;
+            if (replayed < 0) {
+                metrics.resumesFailed.increment();
+                send(Payload.resumeFailed(session != null
+                        ? "Too many messages were missed, log in again." : "Session expired, log in again."));
+                return;
+            }
+            resumed = session;
+            metrics.sessionsResumed.increment();
+            metrics.messagesReplayed.add(replayed);
+            session.drainMailbox(); // A drain stops while the connection is lost
+        }
+
+        // Move the session to a new connection and send it what the client missed, returns how many messages
+        // that were, or -1 if the session can't be resumed
+        private long attach(Connection newConnection, long received) {
+            ReplayBuffer replay = this.replay;
+            Connection previous;
+            List<Payload> missed;
+            synchronized (replay) {
+                if (loggedOut) {
+                    return -1;
+                }
+                missed = replay.after(received);
+                previous = connection;
+                if (missed == null) {
+                    loggedOut = true; // Messages are gone, the client starts over and the name must be free for it
+                } else {
+                    // Ordered before anything sent later, every sender holds the same monitor
+                    connection = newConnection;
+                    detachCount++; // A pending expiry no longer applies
+                    newConnection.disconnectOnOverflow();
+                    newConnection.send(Payload.resumed(missed.size()));
+                    for (Payload payload : missed) {
+                        newConnection.send(payload);
+                    }
+                }
+            }
+            if (missed == null) {
+                disconnectClient();
+                return -1;
+            }
+            if (previous != null) {
+                previous.close(); // The old connection may not have noticed it is gone, its close is ignored now
+            }
+            return missed.size();
+        }
+
+        // The client is leaving for good, end the session instead of keeping it for a resume
+        private void logout() {
+            loggedOut = true;
+            connection.close();
+        }
+
+        // Register the client under the requested username
+        private void login(String name) {
+            this.clientName = name;
+
+            // Names that would make chat lines look like server lines of the text protocol
+            if (!USER_NAME.matcher(name).matches() || Payload.CONTROL_WORDS.contains(name)) {
+                rejectLogin("ERROR: Username must be 1 to 64 characters, without ':' or ',', and not a protocol word.");
+                return;
+            }
+
+            // Check if the username contains banned phrases
+            List<String> bannedPhrasesInName = containsBannedPhrases(clientName);
+            if (bannedPhrasesInName != null) {
+                // Inform the client about banned words in their username and close the connection
+                rejectLogin("ERROR: Username contains banned word(s): " + String.join(", ", bannedPhrasesInName));
+                return;
+            }
+            if (cluster == null) {
+                register();
+                return;
+            }
+
+            // A user of another node may have the name, ask the node that owns it without blocking this thread
+            loggingIn = true;
+            cluster.reserve(name).whenComplete((reserved, error) -> {
+                synchronized (this) {
+                    loggingIn = false;
+                    if (closed) {
+                        if (Boolean.TRUE.equals(reserved)) {
+                            cluster.release(name); // Client left while we were asking
+                        }
+                    } else if (error != null) {
+                        rejectLogin("ERROR: Username could not be checked, try again later.");
+                    } else if (!reserved) {
+                        rejectLogin("ERROR: Username is already taken.");
+                    } else {
+                        register();
+                    }
+                }
+            });
+        }
+
+        // Register the client locally and announce it, once the name is known to be free
+        private void register() {
+            if (resumeGraceSeconds > 0) {
+                startSession();
+            }
+            // Reserve the name atomically, two clients can't log in under the same one
+            long historyEnd = history != null ? history.nextOffset() : 0; // Replay what came before the join
+            boolean registered = clients.register(clientName, this, snapshot -> {
+                if (cluster != null) {
+                    cluster.announceJoin(clientName); // Ordered with the resync of a peer link
+                }
+                broadcast(clientName + " has joined the chat!", null, null); // Notify other clients
+                send(userListPayload(snapshot)); // The new client gets the full list once
+                broadcastPresence(true, snapshot); // Everyone else only learns who joined
+            });
+            if (!registered) {
+                if (sessionToken != null) {
+                    sessions.remove(sessionToken, this);
+                    replay = null;
+                }
+                rejectLogin("ERROR: Username is already taken.");
+            } else {
+                metrics.logins.increment();
+                if (history != null && historyOnJoin > 0) {
+                    sendHistory(history.tail(historyEnd, historyLimit(historyOnJoin), clientName), historyEnd);
+                }
+                if (mailboxes != null) {
+                    mailboxes.seen(clientName);
+                    drainMailbox();
+                }
+            }
+        }
+
+        // Deliver what was kept for the client while it was offline. Runs on a thread of its own so a full mailbox
+        // never holds up the login, and takes a batch at a time, waiting while the client's queue is half full:
+        // the overflow policy must not drop messages that waited days for it.
+        private void drainMailbox() {
+            if (mailboxes == null || !mailboxes.hasMail(clientName) || !draining.compareAndSet(false, true)) {
+                return;
+            }
+            executorService.execute(() -> {
+                try {
+                    deliverMailbox();
+                } finally {
+                    draining.set(false);
+                }
+                if (receivesMail()) {
+                    drainMailbox(); // Something may have been kept after the last batch was taken
+                }
+            });
+        }
+
+        private void deliverMailbox() {
+            boolean noticeSent = false;
+            while (receivesMail()) {
+                Connection current = connection;
+                // Mail may fill half the queue, a batch never pushes it past that however small the queue is
+                int room = current == null ? 0 : Math.max(1, outboundQueueCapacity / 2) - current.queuedMessages();
+                if (room > 0 && !noticeSent) {
+                    if (!mailboxes.hasMail(clientName)) {
+                        return;
+                    }
+                    noticeSent = true;
+                    send("Messages sent to you while you were offline:");
+                    room--;
+                }
+                if (room <= 0) {
+                    try {
+                        Thread.sleep(MAILBOX_PAUSE_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+                List<Mailboxes.Letter> letters = mailboxes.take(clientName, Math.min(MAILBOX_BATCH, room));
+                if (letters.isEmpty()) {
+                    return;
+                }
+                for (Mailboxes.Letter letter : letters) {
+                    send(Payload.message(letter.sender(), letter.text()));
+                }
+            }
+        }
+
+        // Logged in here with a connection to deliver to, a lost session's mail waits for its resume
+        private boolean receivesMail() {
+            return connection != null && !loggedOut && clients.get(clientName) == this;
+        }
+
+        // Refuse the login and close the connection once the client has the reason
+        private void rejectLogin(String reason) {
+            rejected = true;
+            metrics.loginsRejected.increment();
+            clientName = null; // Not ours, don't release it on disconnect
+            send(Payload.error(reason));
+            connection.closeAfterFlush();
+        }
+
+        // Check if a given text contains banned phrases, in a single pass over the text
+        private List<String> containsBannedPhrases(String text) {
+            long start = System.nanoTime();
+            List<String> found = bannedPhrases.matcher.findAll(text); // One read of the published phrases
+            metrics.bannedPhraseCheck.record(System.nanoTime() - start);
+            return found;
+        }
+
+        // Take a token from the message rate bucket, returns false if the client is over the limit.
+        // A refused client is told once until something gets through again, so a flood costs one reply, not one per line.
+        private boolean withinMessageLimit(long now) {
+            if (messageBucket == null || messageBucket.tryTake(1, now)) {
+                messageNoticeSent = false;
+                return true;
+            }
+            metrics.rateLimitedMessages.increment();
+            if (!messageNoticeSent) {
+                messageNoticeSent = true;
+                send(RATE_LIMITED_MESSAGES);
+            }
+            return false;
+        }
+
+        // Take a token per recipient from the fan-out bucket, told once like the message limit
+        private boolean withinFanOutLimit(int recipients) {
+            if (fanOutBucket == null || fanOutBucket.tryTake(Math.max(0, recipients), System.nanoTime())) {
+                fanOutNoticeSent = false;
+                return true;
+            }
+            metrics.rateLimitedFanOut.increment();
+            if (!fanOutNoticeSent) {
+                fanOutNoticeSent = true;
+                send(RATE_LIMITED_FAN_OUT);
+            }
+            return false;
+        }
+
+        // Fan-out limit of a text protocol chat message, the recipients are counted without parsing the message
+        private boolean withinFanOutLimit(ByteBuffer line) {
+            if (fanOutBucket == null) {
+                return true;
+            }
+            int recipients;
+            if (Lines.startsWith(line, Lines.INCLUDE)) {
+                int names = line.position() + Lines.INCLUDE.length;
+                int end = Lines.indexOf(line, names, (byte) ':');
+                recipients = 1 + Lines.count(line, names, end < 0 ? line.limit() : end, (byte) ',');
+            } else if (Lines.startsWith(line, Lines.ROOM)) {
+                int room = line.position() + Lines.ROOM.length;
+                int end = Lines.indexOf(line, room, (byte) ':');
+                recipients = end < 0 ? 0 : roomSize(Lines.decodeTrimmed(line, room, end));
+            } else {
+                recipients = everyone(); // Global and EXCLUDE:, every excluded user still costs a lookup
+            }
+            return withinFanOutLimit(recipients);
+        }
+
+        // Users a global message reaches, on every node
+        private int everyone() {
+            return clients.snapshot().clients.size();
+        }
+
+        private int roomSize(String room) {
+            ClientRegistry<ClientHandler> members = rooms.get(room);
+            return members == null ? 0 : members.snapshot().clients.size();
+        }
+
+        // Tell the client if a message contains banned phrases, returns true if it must not be delivered
+        private boolean rejectBannedPhrases(String message) {
+            List<String> bannedPhrasesInMessage = containsBannedPhrases(message);
+            if (bannedPhrasesInMessage == null) {
+                return false;
+            }
+            // Inform client about banned phrases
+            metrics.messagesBanned.increment();
+            send("BANNED: Message contains banned phrases: " + String.join(", ", bannedPhrasesInMessage));
+            return true;
+        }
+
+        // Encode and queue a server notice for this client
+        private void send(String message) {
+            send(Payload.message(null, message));
+        }
+
+        // Queue an encoded message for this client, never blocks on the socket
+        private void send(Payload payload) {
+            metrics.deliveries.increment();
+            ReplayBuffer replay = this.replay;
+            if (replay == null) {
+                connection.send(payload);
+                return;
+            }
+            synchronized (replay) {
+                // Numbered in the order the client gets them, and kept while it is away
+                replay.add(payload);
+                Connection current = connection;
+                if (current != null) {
+                    current.send(payload);
+                }
+            }
+        }
+
+        // Send the latest messages this client may see
+        private void sendHistoryTail(int count) {
+            if (history == null) {
+                send("ERROR: History is not enabled on this server.");
+                return;
+            }
+            long end = history.nextOffset();
+            sendHistory(history.tail(end, historyLimit(count), clientName), end);
+        }
+
+        // Send the messages this client may see from an offset on, the end marker says where to continue
+        private void sendHistorySince(long offset) {
+            if (history == null) {
+                send("ERROR: History is not enabled on this server.");
+                return;
+            }
+            long end = history.nextOffset();
+            int limit = historyLimit(Integer.MAX_VALUE);
+            List<MessageLog.Entry> entries = history.read(offset, end, limit, clientName);
+            sendHistory(entries, limit > 0 && entries.size() == limit ? entries.get(limit - 1).offset() + 1 : end);
+        }
+
+        private void sendHistory(List<MessageLog.Entry> entries, long nextOffset) {
+            for (MessageLog.Entry entry : entries) {
+                send(Payload.history(entry));
+            }
+            send(Payload.historyEnd(nextOffset));
+        }
+
+        // Cap a history reply so it fits in the client's outbound queue next to live traffic
+        private int historyLimit(int requested) {
+            return Math.max(0, Math.min(requested, Math.min(MAX_HISTORY, outboundQueueCapacity / 2)));
+        }
+
+        // Report the server metrics, only to configured admin users
+        private void sendStats() {
+            if (adminUsers.contains(clientName)) {
+                send(Payload.stats(metrics.stats(gauges())));
+            } else {
+                send("ERROR: STATS is only available to admin users.");
+            }
+        }
+
+        // Send the full user list, ordered with the presence updates around it
+        private void sendUserList() {
+            clients.withSnapshot(snapshot -> send(userListPayload(snapshot)));
+        }
+
+        // Join a room, the client gets its member list and the other members are told
+        private void joinRoom(String room) {
+            if (!ROOM_NAME.matcher(room).matches()) {
+                send("ERROR: Room names are 1 to 32 letters, digits, '-' or '_'.");
+                return;
+            }
+            List<String> bannedPhrasesInRoom = containsBannedPhrases(room);
+            if (bannedPhrasesInRoom != null) {
+                send("ERROR: Room name contains banned word(s): " + String.join(", ", bannedPhrasesInRoom));
+                return;
+            }
+            clients.withSnapshot(snapshot -> {
+                if (clients.get(clientName) != this) {
+                    return; // Logged out while the request was queued
+                }
+                if (joinedRooms.contains(room)) {
+                    send("ERROR: You are already in room " + room + ".");
+                } else if (joinedRooms.size() >= MAX_ROOMS_PER_CLIENT) {
+                    send("ERROR: You can be in at most " + MAX_ROOMS_PER_CLIENT + " rooms.");
+                } else {
+                    addToRoom(room, this);
+                }
+            });
+        }
+
+        private void leaveRoom(String room) {
+            clients.withSnapshot(snapshot -> {
+                if (!joinedRooms.contains(room)) {
+                    send("ERROR: You are not in room " + room + ".");
+                } else {
+                    removeFromRoom(room, this);
+                }
+            });
+        }
+
+        // Send a message to the members of a room the client is in, the sender gets it back like everyone else
+        private void sendToRoom(String room, String text) {
+            if (!joinedRooms.contains(room)) {
+                send("ERROR: You are not in room " + room + ".");
+                return;
+            }
+            long start = System.nanoTime();
+            Set<String> nodes = deliverToRoom(room, Payload.roomMessage(room, clientName, text));
+            if (nodes != null) {
+                cluster.roomMessage(nodes, room, clientName, text);
+            }
+            metrics.fanOut.record(System.nanoTime() - start);
+        }
+
+        // Send the member list of a room the client is in, ordered with the room's presence updates
+        private void sendRoomUserList(String room) {
+            ClientRegistry<ClientHandler> members = joinedRooms.contains(room) ? rooms.get(room) : null;
+            if (members == null) {
+                send("ERROR: You are not in room " + room + ".");
+                return;
+            }
+            members.withSnapshot(snapshot -> send(Payload.roomUserList(room, snapshot.version, snapshot.names)));
+        }
+
+        // Handle messages to a room, ROOM:room:message
+        private void handleRoomMessage(ByteBuffer line) {
+            int room = line.position() + Lines.ROOM.length;
+            int separator = Lines.indexOf(line, room, (byte) ':'); // Between room and message content
+            if (separator < 0) {
+                send("ERROR: Invalid ROOM message format. Correct format is ROOM:room:message");
+                return;
+            }
+            String text = Lines.decode(line, separator + 1, line.limit());
+            if (!rejectBannedPhrases(text)) {
+                sendToRoom(Lines.decodeTrimmed(line, room, separator), text);
+            }
+        }
+
+        // Tell every other client that this client joined or left, tagged with the membership version
+        private void broadcastPresence(boolean joined, ClientRegistry.Snapshot<ClientHandler> snapshot) {
+            Payload payload = Payload.presence(joined, snapshot.version, clientName);
+            for (ClientHandler client : snapshot.clients) {
+                if (client != this && client.node == null) {
+                    client.send(payload);
+                }
+            }
+        }
+
+        // Send a message to all connected clients, excluding specified users
+        private void broadcast(String message, String sender, Set<String> excludedUsers) {
+            logMessage(excludedUsers == null ? MessageLog.PUBLIC : MessageLog.EXCLUDE, sender,
+                    excludedUsers == null ? Collections.emptySet() : excludedUsers, message);
+            long start = System.nanoTime();
+            deliverLocally(Payload.message(sender, message), excludedUsers); // Encoded once per wire format, shared by every recipient
+            if (cluster != null) {
+                cluster.broadcast(sender, message, excludedUsers); // One event per node, each node fans out to its own clients
+            }
+            metrics.fanOut.record(System.nanoTime() - start);
+        }
+
+        // Send a message to the resolved recipients and echo it back to the sender
+        private void sendToRecipients(String content) {
+            long start = System.nanoTime();
+            Payload payload = Payload.message(clientName, content); // Encoded once per wire format, shared by every recipient
+            // Who may read it back from the history, and who the other nodes deliver to. Only when something needs them.
+            List<String> readers = history != null || cluster != null ? new ArrayList<>(recipientCount + 1) : null;
+            if (readers != null) {
+                readers.add(clientName);
+            }
+            Set<String> nodes = null; // Other nodes with recipients, each gets the message once
+            for (int i = 0; i < recipientCount; i++) {
+                ClientHandler recipient = recipients[i];
+                if (recipient.node == null) {
+                    recipient.send(payload);
+                } else {
+                    if (nodes == null) {
+                        nodes = new HashSet<>();
+                    }
+                    nodes.add(recipient.node);
+                }
+                if (readers != null) {
+                    readers.add(recipient.clientName);
+                }
+            }
+            if (!offlineRecipients.isEmpty()) {
+                keepForOffline(content);
+            }
+            clearRecipients();
+            send(payload);
+            if (nodes != null) {
+                cluster.direct(nodes, clientName, content, readers);
+            }
+            metrics.fanOut.record(System.nanoTime() - start);
+            logMessage(MessageLog.INCLUDE, clientName, readers, content); // Only who actually got it, never later holders of a missing name
+        }
+
+        // Add the recipient whose name is in the bytes between two absolute indexes.
+        // Surrounding whitespace is ignored, like names nobody is logged in under and names already added.
+        private void addRecipient(ByteBuffer bytes, int from, int to) {
+            while (from < to && Lines.isSpace(bytes.get(from))) {
+                from++;
+            }
+            while (to > from && Lines.isSpace(bytes.get(to - 1))) {
+                to--;
+            }
+            ClientHandler recipient = clients.get(bytes, from, to);
+            if (recipient == null) {
+                if (mailboxes != null && to > from) {
+                    String name = Lines.decode(bytes, from, to); // Only names nobody has are decoded
+                    if (mailboxes.accepts(name) && !offlineRecipients.contains(name)) {
+                        offlineRecipients.add(name);
+                    }
+                }
+                return;
+            }
+            if (recipientCount < 16) {
+                for (int i = 0; i < recipientCount; i++) {
+                    if (recipients[i] == recipient) {
+                        return;
+                    }
+                }
+            } else {
+                // Past a handful of names a set is cheaper than scanning
+                if (longRecipientList == null) {
+                    longRecipientList = Collections.newSetFromMap(new IdentityHashMap<>());
+                }
+                if (longRecipientList.isEmpty()) {
+                    longRecipientList.addAll(Arrays.asList(recipients).subList(0, recipientCount));
+                }
+                if (!longRecipientList.add(recipient)) {
+                    return;
+                }
+            }
+            if (recipientCount == recipients.length) {
+                recipients = Arrays.copyOf(recipients, recipientCount * 2);
+            }
+            recipients[recipientCount++] = recipient;
+        }
+
+        // Forget the recipients of the last message, so they are not kept alive until the next one
+        private void clearRecipients() {
+            Arrays.fill(recipients, 0, recipientCount, null);
+            recipientCount = 0;
+            if (longRecipientList != null) {
+                longRecipientList.clear();
+            }
+            offlineRecipients.clear();
+        }
+
+        // Keep the message for recipients nobody is logged in under, they get it when they log in on this node
+        private void keepForOffline(String content) {
+            for (String name : offlineRecipients) {
+                if (!mailboxes.store(name, clientName, content)) {
+                    send("ERROR: Mailbox of " + name + " is full, the message was not kept for them.");
+                    continue;
+                }
+                ClientHandler recipient = clients.get(name);
+                if (recipient != null && recipient.node == null) {
+                    recipient.drainMailbox(); // Logged in since the name was looked up, after its login drained the mailbox
+                }
+            }
+        }
+
+        // Handle messages explicitly sent to specific included users, INCLUDE:user1,user2:message
+        private void handleInclusionMessage(ByteBuffer line) {
+            int names = line.position() + Lines.INCLUDE.length;
+            int separator = Lines.indexOf(line, names, (byte) ':'); // Between recipients and message content
+            if (separator < 0) {
+                send("ERROR: Invalid INCLUDE message format.");
+                return;
+            }
+            String content = Lines.decode(line, separator + 1, Lines.trimEnd(line, separator + 1));
+            if (rejectBannedPhrases(content)) {
+                return;
+            }
+            for (int from = names; from <= separator; ) {
+                int comma = Lines.indexOf(line, from, (byte) ',');
+                int to = comma < 0 || comma > separator ? separator : comma;
+                addRecipient(line, from, to);
+                from = to + 1;
+            }
+            sendToRecipients(content);
+        }
+
+        // Handle messages explicitly excluding certain users, EXCLUDE:user1,user2:message
+        private void handleExclusionMessage(ByteBuffer line) {
+            int names = line.position() + Lines.EXCLUDE.length;
+            while (names < line.limit() && Lines.isSpace(line.get(names))) {
+                names++;
+            }
+            int separator = Lines.indexOf(line, names, (byte) ':'); // Between excluded users and message content
+            if (separator < 0) {
+                send("ERROR: Invalid EXCLUDE message format. Correct format is EXCLUDE:username1,username2:message");
+                return;
+            }
+            String content = Lines.decode(line, separator + 1, Lines.trimEnd(line, separator + 1));
+            if (rejectBannedPhrases(content)) {
+                return;
+            }
+            Set<String> excludedUsers = new HashSet<>(); // Decoded once here, broadcast, the history and the cluster all use it
+            for (int from = names; from <= separator; ) {
+                int comma = Lines.indexOf(line, from, (byte) ',');
+                int to = comma < 0 || comma > separator ? separator : comma;
+                excludedUsers.add(Lines.decode(line, from, to));
+                from = to + 1;
+            }
+            broadcast(content, clientName, excludedUsers);
+        }
+
+        // Disconnect a client and clean up resources
+        private void disconnectClient() {
+            synchronized (this) {
+                closed = true;
+                String name = clientName;
+                if (name != null && !rejected) {
+                    boolean removed = clients.unregister(name, this, snapshot -> {
+                        for (String room : new ArrayList<>(joinedRooms)) {
+                            removeFromRoom(room, this);
+                        }
+                        if (cluster != null) {
+                            cluster.announceLeave(name);
+                        }
+                        broadcast(name + " has left the chat.", null, null);
+                        broadcastPresence(false, snapshot); // Update the user list for other clients
+                    });
+                    if (removed && cluster != null) {
+                        cluster.release(name);
+                    }
+                    if (removed && mailboxes != null) {
+                        mailboxes.seen(name); // Mail is kept for a TTL after they leave
+                    }
+                }
+            }
+            if (sessionToken != null) {
+                sessions.remove(sessionToken, this);
+            }
+            Connection current = connection;
+            if (current != null) {
+                current.close();
+            }
+        }
+    }
+
+    // Main method to start the server
+    public static void main(String[] args) throws IOException {
+        Server server = new Server("ServerPart/src/server_config.txt");
+        server.start();
+    }
+}
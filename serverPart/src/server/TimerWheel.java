@@ -0,0 +1,110 @@
+package server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+// Hashed timing wheel: timeouts are hashed into slots by the tick they are due at, and one thread advances a slot
+// per tick and runs what is due there. Scheduling is O(1) from any thread, and a tick only touches the timeouts of
+// its slot, so hundreds of thousands of pending timeouts cost nothing until they are due.
+// Tasks run on the wheel's thread and must be quick, anything heavier is handed to another thread.
+final class TimerWheel {
+    // A task to run once its deadline has passed. Runs once per schedule call, and may schedule itself again.
+    static final class Timeout {
+        private final Runnable task;
+        private long deadline; // Tick it is due at, written before it is handed to the wheel
+        private Timeout next; // Next timeout in the same slot, owned by the wheel thread
+
+        Timeout(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    private final long tickNanos;
+    private final Timeout[] slots; // Linked timeouts by deadline, modulo the wheel size, owned by the wheel thread
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<>(); // Moved into the slots on the next tick
+    private volatile long now; // Ticks since the wheel started, a coarse clock that costs one volatile read
+
+    // A wheel of size slots, rounded up to a power of two, advancing every tickMillis.
+    // Timeouts further out than one turn just stay in their slot for more turns.
+    TimerWheel(long tickMillis, int size) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.slots = new Timeout[Integer.highestOneBit(Math.max(1, size - 1)) << 1];
+        this.mask = slots.length - 1;
+    }
+
+    // Start ticking on a daemon thread
+    void start(String name) {
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Current tick
+    long now() {
+        return now;
+    }
+
+    // Number of ticks covering a duration, at least one
+    long ticks(long duration, TimeUnit unit) {
+        return Math.max(1, (unit.toNanos(duration) + tickNanos - 1) / tickNanos);
+    }
+
+    // Run a timeout once the given number of ticks have passed. It must not be scheduled already.
+    void schedule(Timeout timeout, long ticks) {
+        timeout.deadline = now + Math.max(1, ticks);
+        scheduled.add(timeout); // Publishes the deadline to the wheel thread
+    }
+
+    private void run() {
+        long start = System.nanoTime();
+        while (true) {
+            long target = (System.nanoTime() - start) / tickNanos;
+            while (now < target) {
+                advance(); // Catches up if a tick ran late, every slot is still visited in order
+            }
+            long sleep = start + (target + 1) * tickNanos - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Move to the next tick and run the timeouts due at it
+    private void advance() {
+        long tick = now + 1;
+        Timeout added;
+        while ((added = scheduled.poll()) != null) {
+            insert(added, Math.max(added.deadline, tick)); // Late ones are run with this tick
+        }
+
+        now = tick; // Timeouts scheduled by the tasks below count from here
+        int slot = (int) (tick & mask);
+        Timeout timeout = slots[slot];
+        slots[slot] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.next = null;
+            if (timeout.deadline > tick) {
+                insert(timeout, timeout.deadline); // Due in a later turn of the wheel
+            } else {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace(); // One failing task must not stop the others
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    private void insert(Timeout timeout, long deadline) {
+        int slot = (int) (deadline & mask);
+        timeout.next = slots[slot];
+        slots[slot] = timeout;
+    }
+}
@@ -0,0 +1,30 @@
+package server;
+
+// Token bucket of one client: refills at a fixed rate up to a burst size, every accepted unit takes a token.
+// Kept as the time the bucket is next full instead of a token count, so taking tokens is one comparison and
+// one store, without timers or allocation. Used by the thread reading the client's input only, so it is unsynchronized.
+final class TokenBucket {
+    private static final long MAX_NANOS = Long.MAX_VALUE / 4; // Bounds the intervals, so sums with nanoTime can't overflow
+    private final long nanosPerToken; // Refill interval of one token
+    private final long burstNanos; // Time to refill a whole burst, how far fullAt may run ahead of now
+    private long fullAt = Long.MIN_VALUE; // When the bucket is full again if nothing else is taken, in System.nanoTime
+
+    // A bucket refilling at rate tokens a second that holds up to burst tokens, starts full
+    TokenBucket(double rate, int burst) {
+        this.nanosPerToken = Math.min(MAX_NANOS, Math.max(1, (long) (1e9 / rate)));
+        this.burstNanos = nanosPerToken * Math.max(1, Math.min(burst, MAX_NANOS / nanosPerToken));
+    }
+
+    // Take count tokens if the bucket has them. More than a full burst takes a full bucket,
+    // so a single large request still gets through, just never two in a row.
+    boolean tryTake(long count, long now) {
+        long start = fullAt == Long.MIN_VALUE || fullAt - now < 0 ? now : fullAt;
+        // Clamped before multiplying, a client-supplied count times a slow rate's interval could overflow
+        long next = start + Math.min(count, burstNanos / nanosPerToken) * nanosPerToken;
+        if (next - now > burstNanos) {
+            return false;
+        }
+        fullAt = next;
+        return true;
+    }
+}
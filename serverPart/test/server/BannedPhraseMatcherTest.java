@@ -0,0 +1,60 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class BannedPhraseMatcherTest {
+    @Test
+    void cleanTextFindsNothing() {
+        BannedPhraseMatcher matcher = new BannedPhraseMatcher(List.of("java", "SAD", "JNI"));
+        assertNull(matcher.findAll("hello there"));
+        assertNull(matcher.findAll(""));
+    }
+
+    @Test
+    void findsPhrasesInsideWords() {
+        BannedPhraseMatcher matcher = new BannedPhraseMatcher(List.of("java", "SAD"));
+        assertEquals(List.of("java"), matcher.findAll("I like javascript"));
+        assertEquals(List.of("SAD", "java"), matcher.findAll("SADly java"));
+    }
+
+    @Test
+    void matchingIsCaseSensitive() {
+        BannedPhraseMatcher matcher = new BannedPhraseMatcher(List.of("SAD"));
+        assertNull(matcher.findAll("sad"));
+    }
+
+    // The textbook example, every phrase ends inside another one or along a failure link
+    @Test
+    void findsOverlappingPhrases() {
+        BannedPhraseMatcher matcher = new BannedPhraseMatcher(List.of("he", "she", "his", "hers"));
+        assertEquals(Set.of("she", "he", "hers"), Set.copyOf(matcher.findAll("ushers")));
+        assertEquals(List.of("his"), matcher.findAll("this"));
+    }
+
+    @Test
+    void reportsEachPhraseOnce() {
+        BannedPhraseMatcher matcher = new BannedPhraseMatcher(List.of("ab", "ab"));
+        assertEquals(1, matcher.size());
+        assertEquals(List.of("ab"), matcher.findAll("ab ab abab"));
+    }
+
+    // A mismatch must fall back along the failure links instead of restarting after the mismatched character
+    @Test
+    void recoversAfterPartialMatch() {
+        BannedPhraseMatcher matcher = new BannedPhraseMatcher(List.of("aab"));
+        assertEquals(List.of("aab"), matcher.findAll("aaab"));
+    }
+
+    @Test
+    void noPhrasesFindNothing() {
+        BannedPhraseMatcher matcher = new BannedPhraseMatcher(List.of());
+        assertEquals(0, matcher.size());
+        assertNull(matcher.findAll("anything"));
+    }
+}
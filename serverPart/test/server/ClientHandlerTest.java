@@ -0,0 +1,266 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import protocol.Frames;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static server.TestServers.RecordingConnection;
+
+// The protocol handler of one client, driven over fake connections
+class ClientHandlerTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void includeFrameReachesOnlyItsRecipients() throws IOException {
+        Server server = TestServers.newServer(directory);
+        RecordingConnection ann = new RecordingConnection();
+        RecordingConnection ben = new RecordingConnection();
+        RecordingConnection cat = new RecordingConnection();
+        Connection.Handler sender = TestServers.loginBinary(server, "ann", ann);
+        TestServers.login(server, "ben", ben);
+        TestServers.login(server, "cat", cat);
+
+        sender.onFrame(Frames.INCLUDE, TestServers.body(new Frames.Builder(Frames.INCLUDE).list(List.of("ben")).string("hi")));
+        assertEquals("ann: hi", ben.last());
+        assertFalse(cat.lines().contains("ann: hi"));
+    }
+
+    // Too short for the recipient count, with and without a fan-out limit peeking at it
+    @Test
+    void shortIncludeFrameClosesTheConnection() throws IOException {
+        for (String settings : new String[] {"", "fanOutRate=10"}) {
+            Server server = TestServers.newServer(directory, settings);
+            for (int length = 0; length < 4; length++) {
+                RecordingConnection connection = new RecordingConnection();
+                Connection.Handler handler = TestServers.loginBinary(server, "ann" + length, connection);
+                handler.onFrame(Frames.INCLUDE, ByteBuffer.allocate(length));
+                assertTrue(connection.closed, settings + " " + length);
+            }
+        }
+    }
+
+    @Test
+    void truncatedIncludeFrameClosesTheConnection() throws IOException {
+        Server server = TestServers.newServer(directory);
+        RecordingConnection ben = new RecordingConnection();
+        TestServers.login(server, "ben", ben);
+        RecordingConnection connection = new RecordingConnection();
+        Connection.Handler handler = TestServers.loginBinary(server, "ann", connection);
+
+        ByteBuffer body = TestServers.body(new Frames.Builder(Frames.INCLUDE).list(List.of("ben", "cat")));
+        handler.onFrame(Frames.INCLUDE, body.limit(body.limit() - 2)); // Second name and the text cut off
+        assertTrue(connection.closed);
+        ByteBuffer hugeCount = ByteBuffer.allocate(8).putInt(Integer.MAX_VALUE).putInt(0).flip();
+        handler.onFrame(Frames.INCLUDE, hugeCount);
+        assertFalse(ben.lines().stream().anyMatch(line -> line.startsWith("ann:")));
+    }
+
+    @Test
+    void messageRateLimitDropsAndNotifiesOnce() throws IOException {
+        Server server = TestServers.newServer(directory, "messageRate=0.001", "messageBurst=1");
+        RecordingConnection ann = new RecordingConnection();
+        RecordingConnection ben = new RecordingConnection();
+        Connection.Handler sender = TestServers.login(server, "ann", ann);
+        TestServers.login(server, "ben", ben);
+
+        sender.onLine(TestServers.line("one"));
+        sender.onLine(TestServers.line("two"));
+        sender.onLine(TestServers.line("three"));
+        assertTrue(ben.lines().contains("ann: one"));
+        assertFalse(ben.lines().contains("ann: two"));
+        assertEquals(1, ann.lines().stream().filter(line -> line.startsWith("RATE_LIMITED:")).count());
+    }
+
+    @Test
+    void fanOutLimitCountsRecipients() throws IOException {
+        Server server = TestServers.newServer(directory, "fanOutRate=0.001", "fanOutBurst=2");
+        RecordingConnection ann = new RecordingConnection();
+        RecordingConnection ben = new RecordingConnection();
+        Connection.Handler sender = TestServers.login(server, "ann", ann);
+        TestServers.login(server, "ben", ben);
+        TestServers.login(server, "cat", new RecordingConnection());
+
+        sender.onLine(TestServers.line("INCLUDE:ben,cat:first"));
+        sender.onLine(TestServers.line("INCLUDE:ben:second"));
+        assertTrue(ben.lines().contains("ann: first"));
+        assertFalse(ben.lines().contains("ann: second"));
+        assertTrue(ann.last().startsWith("RATE_LIMITED:"));
+    }
+
+    // Messages that pass the message limit must not reset the fan-out notice
+    @Test
+    void fanOutLimitNotifiesOnceUntilAMessageGetsThrough() throws IOException {
+        Server server = TestServers.newServer(directory, "fanOutRate=0.001", "fanOutBurst=1");
+        RecordingConnection ann = new RecordingConnection();
+        RecordingConnection ben = new RecordingConnection();
+        Connection.Handler sender = TestServers.login(server, "ann", ann);
+        TestServers.login(server, "ben", ben);
+
+        sender.onLine(TestServers.line("INCLUDE:ben:first"));
+        for (int i = 0; i < 5; i++) {
+            sender.onLine(TestServers.line("INCLUDE:ben:refused " + i));
+        }
+        assertTrue(ben.lines().contains("ann: first"));
+        assertFalse(ben.lines().contains("ann: refused 0"));
+        assertEquals(1, ann.lines().stream().filter(line -> line.startsWith("RATE_LIMITED:")).count());
+    }
+
+    @Test
+    void resumeReplaysMissedMessagesOnTheNewConnection() throws IOException {
+        Server server = TestServers.newServer(directory, "resumeGraceSeconds=60");
+        RecordingConnection first = new RecordingConnection();
+        Connection.Handler ann = TestServers.login(server, "ann", first);
+        String session = first.lines().stream().filter(line -> line.startsWith("SESSION:")).findFirst().orElseThrow();
+        String token = session.substring(session.indexOf(':', 8) + 1);
+        int received = first.lines().size() - 1; // Counted from after the token
+        ann.onClose();
+
+        Connection.Handler ben = TestServers.login(server, "ben", new RecordingConnection());
+        ben.onLine(TestServers.line("while you were away"));
+        RecordingConnection second = new RecordingConnection();
+        server.newClientHandler(second).onLine(TestServers.line("RESUME:" + token + ":" + received));
+        assertEquals(List.of("RESUMED:3", "ben has joined the chat!", "USER_JOINED:2:ben", "ben: while you were away"),
+                second.lines());
+    }
+
+    @Test
+    void resumeWithAnUnknownTokenFails() throws IOException {
+        Server server = TestServers.newServer(directory, "resumeGraceSeconds=60");
+        RecordingConnection connection = new RecordingConnection();
+        server.newClientHandler(connection).onLine(TestServers.line("RESUME:nope:0"));
+        assertTrue(connection.last().startsWith("RESUME_FAILED:"));
+
+        RecordingConnection malformed = new RecordingConnection();
+        server.newClientHandler(malformed).onLine(TestServers.line("RESUME:nope:many"));
+        assertTrue(malformed.last().startsWith("ERROR:"));
+    }
+
+    @Test
+    void malformedCommandLinesAreAnsweredWithErrors() throws IOException {
+        Server server = TestServers.newServer(directory);
+        RecordingConnection connection = new RecordingConnection();
+        Connection.Handler handler = TestServers.login(server, "ann", connection);
+        for (String line : new String[] {"INCLUDE:ben", "EXCLUDE:ben", "ROOM:lobby", "GET_HISTORY:many", "GET_HISTORY_SINCE:"}) {
+            handler.onLine(TestServers.line(line));
+            assertTrue(connection.last().startsWith("ERROR:"), line);
+        }
+        assertFalse(connection.closed);
+    }
+
+    @Test
+    void includeAndExcludeLinesSplitTheirNames() throws IOException {
+        Server server = TestServers.newServer(directory);
+        RecordingConnection ben = new RecordingConnection();
+        RecordingConnection cat = new RecordingConnection();
+        Connection.Handler ann = TestServers.login(server, "ann", new RecordingConnection());
+        TestServers.login(server, "ben", ben);
+        TestServers.login(server, "cat", cat);
+
+        ann.onLine(TestServers.line("INCLUDE:ben,ben,nobody:to ben: with a colon  "));
+        assertEquals(1, ben.lines().stream().filter("ann: to ben: with a colon"::equals).count());
+        assertFalse(cat.lines().contains("ann: to ben: with a colon"));
+        ann.onLine(TestServers.line("EXCLUDE: ben,nobody:not for ben"));
+        assertFalse(ben.lines().contains("ann: not for ben"));
+        assertTrue(cat.lines().contains("ann: not for ben"));
+    }
+
+    @Test
+    void unknownFrameIsAnsweredWithAnError() throws IOException {
+        Server server = TestServers.newServer(directory);
+        RecordingConnection connection = new RecordingConnection();
+        Connection.Handler handler = TestServers.loginBinary(server, "ann", connection);
+        handler.onFrame(0x3F, ByteBuffer.allocate(0));
+        assertTrue(connection.last().startsWith("ERROR:"));
+        handler.onFrame(Frames.GET_HISTORY, ByteBuffer.allocate(3)); // Too short for the count
+        assertTrue(connection.closed);
+    }
+
+    // Anything but LOGIN or RESUME before the login is a protocol violation
+    @Test
+    void frameBeforeLoginClosesTheConnection() throws IOException {
+        Server server = TestServers.newServer(directory);
+        RecordingConnection connection = new RecordingConnection();
+        Connection.Handler handler = server.newClientHandler(connection);
+        handler.onLine(TestServers.line(Frames.HANDSHAKE));
+        assertTrue(connection.binary);
+        handler.onFrame(Frames.SEND, TestServers.body(new Frames.Builder(Frames.SEND).string("hi")));
+        assertTrue(connection.closed);
+    }
+
+    // With a small queue, mail goes out in batches that leave room for live messages instead of overflowing it
+    @Test
+    void mailboxDeliveryFitsASmallQueue() throws Exception {
+        Server server = TestServers.newServer(directory, "mailboxMessages=100", "outboundQueueCapacity=8");
+        TestServers.login(server, "ben", new RecordingConnection()).onClose(); // Mail is only kept for known users
+        Connection.Handler ann = TestServers.login(server, "ann", new RecordingConnection());
+        for (int i = 0; i < 30; i++) {
+            ann.onLine(TestServers.line("INCLUDE:ben:note " + i));
+        }
+
+        RecordingConnection ben = new RecordingConnection();
+        ben.queueing = true;
+        TestServers.login(server, "ben", ben);
+        int loginLines = ben.deepest;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (ben.lines().stream().filter(line -> line.startsWith("ann: ")).count() < 30 && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+            ben.drain();
+        }
+        List<String> mail = ben.lines().stream().filter(line -> line.startsWith("ann: ")).toList();
+        assertEquals(30, mail.size());
+        assertEquals("ann: note 0", mail.get(0));
+        assertEquals("ann: note 29", mail.get(29));
+        assertTrue(ben.deepest <= Math.max(loginLines, 4), "queued " + ben.deepest);
+    }
+
+    // The idle check runs once per heartbeat, a timeout that short would close every connection
+    @Test
+    void idleTimeoutShorterThanTwoHeartbeatsIsRefused() throws IOException {
+        for (String timeout : new String[] {"0", "5", "19"}) {
+            assertThrows(IOException.class,
+                    () -> TestServers.newServer(directory, "heartbeatSeconds=10", "idleTimeoutSeconds=" + timeout), timeout);
+        }
+        TestServers.newServer(directory, "heartbeatSeconds=10", "idleTimeoutSeconds=20");
+        TestServers.newServer(directory, "heartbeatSeconds=10");
+        TestServers.newServer(directory, "idleTimeoutSeconds=0"); // No heartbeats, no idle checks
+    }
+
+    // Chat lines "name: text" must never pass for server lines "WORD:..." on the text protocol
+    @Test
+    void namesThatLookLikeServerLinesAreRefused() throws IOException {
+        Server server = TestServers.newServer(directory);
+        for (String name : new String[] {"", "PING", "SESSION", "USER_LIST", "a:b", "a,b", "tab\tname", "n".repeat(65)}) {
+            RecordingConnection connection = new RecordingConnection();
+            TestServers.login(server, name, connection);
+            assertTrue(connection.last().startsWith("ERROR:"), name);
+            assertTrue(connection.closed, name);
+        }
+        RecordingConnection ping = new RecordingConnection();
+        TestServers.login(server, "Ping", ping); // Only the exact words are reserved
+        assertFalse(ping.closed);
+        RecordingConnection longest = new RecordingConnection();
+        TestServers.login(server, "n".repeat(64), longest);
+        assertFalse(longest.closed);
+    }
+
+    @Test
+    void lineBreaksFromBinaryClientsDontSplitTextLines() throws IOException {
+        Server server = TestServers.newServer(directory);
+        RecordingConnection ben = new RecordingConnection();
+        Connection.Handler ann = TestServers.loginBinary(server, "ann", new RecordingConnection());
+        TestServers.login(server, "ben", ben);
+        ann.onFrame(Frames.SEND, TestServers.body(new Frames.Builder(Frames.SEND).string("hi\nPING:1")));
+        assertEquals("ann: hi PING:1", ben.last());
+    }
+}
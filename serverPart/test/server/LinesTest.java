@@ -0,0 +1,56 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LinesTest {
+    // A line in the middle of a larger read buffer, as the transports hand it over
+    private static ByteBuffer line(String text) {
+        byte[] bytes = ("xx" + text + "\nyy").getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.wrap(bytes).position(2).limit(bytes.length - 3);
+    }
+
+    @Test
+    void matchesCommandsByTheirBytes() {
+        assertTrue(Lines.equals(line("GET_USER_LIST"), Lines.GET_USER_LIST));
+        assertFalse(Lines.equals(line("GET_USER_LIST:lobby"), Lines.GET_USER_LIST));
+        assertTrue(Lines.startsWith(line("GET_USER_LIST:lobby"), Lines.GET_ROOM_USER_LIST));
+        assertFalse(Lines.startsWith(line("JOIN"), Lines.JOIN)); // Shorter than the prefix
+        assertFalse(Lines.startsWith(line(""), Lines.JOIN));
+    }
+
+    @Test
+    void searchesStayInsideTheLine() {
+        ByteBuffer line = line("a:b:c");
+        int start = line.position();
+        assertEquals(start + 1, Lines.indexOf(line, start, (byte) ':'));
+        assertEquals(start + 3, Lines.indexOf(line, start + 2, (byte) ':'));
+        assertEquals(-1, Lines.indexOf(line, start, (byte) '\n'));
+        assertEquals(start + 3, Lines.lastIndexOf(line, (byte) ':'));
+        assertEquals(-1, Lines.lastIndexOf(line, (byte) 'x'));
+        assertEquals(2, Lines.count(line, start, line.limit(), (byte) ':'));
+    }
+
+    @Test
+    void decodesUtf8AndTrimsLikeString() {
+        ByteBuffer line = line("  héllo wörld \t");
+        assertEquals("  héllo wörld \t", Lines.decode(line));
+        assertEquals("héllo wörld", Lines.decodeTrimmed(line, line.position(), line.limit()));
+        assertEquals("", Lines.decodeTrimmed(line, line.position(), line.position() + 2));
+        assertEquals(line.limit() - 2, Lines.trimEnd(line, line.position()));
+    }
+
+    // Direct buffers have no array to decode from
+    @Test
+    void decodesDirectBuffers() {
+        byte[] bytes = "JOIN:lobby".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer line = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+        assertEquals("lobby", Lines.decode(line, Lines.JOIN.length, line.limit()));
+    }
+}
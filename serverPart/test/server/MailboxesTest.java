@@ -0,0 +1,135 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MailboxesTest {
+    private static final long DAY = 86_400_000;
+    private static final int RECORD = 4 + 8 + 4 + 3 + 4 + 2; // A spilled "ann", "mN" record
+
+    @TempDir
+    Path directory;
+
+    private final Metrics metrics = new Metrics();
+
+    @Test
+    void deliversInArrivalOrderFromHeadAndSpill() throws IOException {
+        Mailboxes mailboxes = new Mailboxes(10, 2, DAY, 10, 1 << 20, 64, directory, metrics);
+        for (int i = 1; i <= 6; i++) {
+            assertTrue(mailboxes.store("ben", "ann", "m" + i));
+        }
+        assertTrue(mailboxes.hasMail("ben"));
+        assertEquals(List.of("m1", "m2", "m3", "m4"), texts(mailboxes.take("ben", 4)));
+        assertEquals(List.of("m5", "m6"), texts(mailboxes.take("ben", 100)));
+        assertFalse(mailboxes.hasMail("ben"));
+        assertEquals(6, metrics.mailboxDelivered.sum());
+    }
+
+    @Test
+    void mailboxCapacityRefusesTheRest() throws IOException {
+        Mailboxes mailboxes = new Mailboxes(3, 1, DAY, 10, 1 << 20, 64, null, metrics);
+        for (int i = 1; i <= 3; i++) {
+            assertTrue(mailboxes.store("ben", "ann", "m" + i));
+        }
+        assertFalse(mailboxes.store("ben", "ann", "m4"));
+        assertEquals(1, metrics.mailboxRefused.sum());
+    }
+
+    @Test
+    void mailboxCountIsCapped() throws IOException {
+        Mailboxes mailboxes = new Mailboxes(3, 1, DAY, 1, 1 << 20, 64, null, metrics);
+        assertTrue(mailboxes.store("ben", "ann", "m1"));
+        assertFalse(mailboxes.store("cat", "ann", "m1"));
+        assertTrue(mailboxes.store("ben", "ann", "m2"));
+    }
+
+    // Two 64 byte segments hold two records each, the cap counts whole segments
+    @Test
+    void spillCapCountsAllocatedSegments() throws IOException {
+        Mailboxes mailboxes = new Mailboxes(100, 1, DAY, 10, 128, 64, directory, metrics);
+        assertTrue(64 / RECORD == 2);
+        assertTrue(mailboxes.store("ben", "ann", "m0")); // On the heap
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(mailboxes.store("ben", "ann", "m" + i));
+        }
+        assertFalse(mailboxes.store("ben", "ann", "m5"));
+        assertTrue(mailboxes.store("cat", "ann", "m1")); // Another mailbox still has its head on the heap...
+        assertFalse(mailboxes.store("cat", "ann", "m2")); // ...but can't spill either
+        assertEquals(2, spillFiles());
+    }
+
+    @Test
+    void deliveredSegmentsFreeTheirSpace() throws IOException {
+        Mailboxes mailboxes = new Mailboxes(100, 1, DAY, 10, 128, 64, directory, metrics);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i <= 4; i++) {
+                assertTrue(mailboxes.store("ben", "ann", "m" + i), round + " " + i);
+            }
+            assertFalse(mailboxes.store("ben", "ann", "m5"));
+            assertEquals(5, mailboxes.take("ben", 100).size());
+            assertTrue(spillFiles() <= 1); // Only the segment new records go to is kept
+        }
+    }
+
+    // One undelivered record keeps its segment, and the segment's full size, allocated
+    @Test
+    void liveRecordKeepsItsSegmentCounted() throws IOException {
+        Mailboxes mailboxes = new Mailboxes(100, 1, DAY, 10, 128, 64, directory, metrics);
+        mailboxes.store("cat", "ann", "m0"); // On cat's heap
+        mailboxes.store("cat", "ann", "m1"); // First segment, kept alive by cat
+        mailboxes.store("ben", "ann", "m0"); // On ben's heap
+        mailboxes.store("ben", "ann", "m1"); // Fills the first segment
+        mailboxes.store("ben", "ann", "m2");
+        mailboxes.store("ben", "ann", "m3"); // Fills the second
+        mailboxes.take("ben", 100);
+        assertTrue(mailboxes.store("ben", "ann", "m4")); // On the heap again
+        assertTrue(mailboxes.store("ben", "ann", "m5")); // A third segment in place of the emptied second
+        assertTrue(mailboxes.store("ben", "ann", "m6"));
+        assertFalse(mailboxes.store("ben", "ann", "m7")); // The first segment still counts
+    }
+
+    @Test
+    void expiredMessagesAndUsersAreDropped() throws IOException, InterruptedException {
+        Mailboxes mailboxes = new Mailboxes(10, 1, 20, 10, 1 << 20, 64, directory, metrics);
+        mailboxes.seen("ben");
+        assertTrue(mailboxes.accepts("ben"));
+        assertFalse(mailboxes.accepts("nobody"));
+        mailboxes.store("ben", "ann", "m1");
+        mailboxes.store("ben", "ann", "m2"); // Spilled
+        Thread.sleep(50);
+        mailboxes.expire();
+        assertFalse(mailboxes.hasMail("ben"));
+        assertFalse(mailboxes.accepts("ben"));
+        assertEquals(2, metrics.mailboxExpired.sum());
+        assertEquals(List.of(), mailboxes.take("ben", 10));
+    }
+
+    @Test
+    void spillFilesOfAnEarlierRunAreDeleted() throws IOException {
+        Files.createFile(directory.resolve("0000000007.spill"));
+        Files.createFile(directory.resolve("notes.txt"));
+        new Mailboxes(10, 1, DAY, 10, 1 << 20, 64, directory, metrics);
+        assertEquals(0, spillFiles());
+        assertTrue(Files.exists(directory.resolve("notes.txt")));
+    }
+
+    private long spillFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".spill")).count();
+        }
+    }
+
+    private static List<String> texts(List<Mailboxes.Letter> letters) {
+        return letters.stream().map(Mailboxes.Letter::text).toList();
+    }
+}
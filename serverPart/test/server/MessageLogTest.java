@@ -0,0 +1,107 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageLogTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsAppendedMessagesInOrder() throws IOException {
+        MessageLog log = new MessageLog(directory, 4096, 4);
+        assertEquals(0, log.append(MessageLog.PUBLIC, "ann", List.of(), "one"));
+        assertEquals(1, log.append(MessageLog.PUBLIC, null, List.of(), "notice"));
+        assertEquals(2, log.nextOffset());
+        assertEquals(List.of("0 ann: one", "1 notice"), texts(log.read(0, 2, 10, "ben")));
+    }
+
+    @Test
+    void visibilityFollowsTheNameList() throws IOException {
+        MessageLog log = new MessageLog(directory, 4096, 4);
+        log.append(MessageLog.INCLUDE, "ann", List.of("ben"), "for ben");
+        log.append(MessageLog.EXCLUDE, "ann", List.of("ben"), "not for ben");
+        assertEquals(List.of("0 ann: for ben"), texts(log.read(0, 2, 10, "ben")));
+        assertEquals(List.of("1 ann: not for ben"), texts(log.read(0, 2, 10, "cat")));
+    }
+
+    @Test
+    void readStopsAtTheLimit() throws IOException {
+        MessageLog log = new MessageLog(directory, 4096, 4);
+        for (int i = 0; i < 5; i++) {
+            log.append(MessageLog.PUBLIC, "ann", List.of(), "m" + i);
+        }
+        assertEquals(List.of("1 ann: m1", "2 ann: m2"), texts(log.read(1, 5, 2, "ben")));
+        assertEquals(List.of(), log.read(0, 5, 0, "ben"));
+        assertEquals(List.of("3 ann: m3", "4 ann: m4"), texts(log.tail(5, 2, "ben")));
+        assertEquals(List.of(), log.tail(5, 0, "ben"));
+    }
+
+    // Messages the reader can't see don't count against the limit
+    @Test
+    void tailSkipsInvisibleMessages() throws IOException {
+        MessageLog log = new MessageLog(directory, 4096, 4);
+        log.append(MessageLog.PUBLIC, "ann", List.of(), "seen");
+        for (int i = 0; i < 100; i++) {
+            log.append(MessageLog.INCLUDE, "ann", List.of("cat"), "hidden");
+        }
+        assertEquals(List.of("0 ann: seen"), texts(log.tail(log.nextOffset(), 5, "ben")));
+    }
+
+    @Test
+    void rolloverDropsTheOldestSegments() throws IOException {
+        MessageLog log = new MessageLog(directory, 128, 2);
+        for (int i = 0; i < 20; i++) {
+            log.append(MessageLog.PUBLIC, "ann", List.of(), "message " + i);
+        }
+        List<MessageLog.Entry> kept = log.read(0, log.nextOffset(), Integer.MAX_VALUE, "ben");
+        assertTrue(kept.size() < 20 && !kept.isEmpty());
+        assertEquals(19, kept.get(kept.size() - 1).offset());
+        for (int i = 1; i < kept.size(); i++) {
+            assertEquals(kept.get(i - 1).offset() + 1, kept.get(i).offset()); // Whole segments go, no gaps
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    void recordLargerThanASegmentGetsItsOwn() throws IOException {
+        MessageLog log = new MessageLog(directory, 64, 4);
+        String text = "x".repeat(500);
+        log.append(MessageLog.PUBLIC, "ann", List.of(), text);
+        log.append(MessageLog.PUBLIC, "ann", List.of(), "after");
+        assertEquals(List.of("0 ann: " + text, "1 ann: after"), texts(log.read(0, 2, 10, "ben")));
+    }
+
+    @Test
+    void reopeningContinuesWhereTheLogEnded() throws IOException {
+        MessageLog log = new MessageLog(directory, 4096, 4);
+        log.append(MessageLog.PUBLIC, "ann", List.of(), "before");
+        MessageLog reopened = new MessageLog(directory, 4096, 4);
+        assertEquals(1, reopened.nextOffset());
+        assertEquals(1, reopened.append(MessageLog.PUBLIC, "ann", List.of(), "after"));
+        assertEquals(List.of("0 ann: before", "1 ann: after"), texts(reopened.read(0, 2, 10, "ben")));
+    }
+
+    // "offset sender: text", or "offset text" for server notices
+    private static List<String> texts(List<MessageLog.Entry> entries) {
+        return entries.stream().map(entry -> entry.offset() + " "
+                + (entry.sender().hasRemaining() ? decode(entry.sender()) + ": " : "") + decode(entry.text())).toList();
+    }
+
+    private static String decode(ByteBuffer bytes) {
+        return StandardCharsets.UTF_8.decode(bytes.duplicate()).toString();
+    }
+}
@@ -0,0 +1,81 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundQueueTest {
+    private final Metrics metrics = new Metrics();
+    private final Payload first = Payload.message("ann", "1");
+    private final Payload second = Payload.message("ann", "2");
+    private final Payload third = Payload.message("ann", "3");
+
+    @Test
+    void dropOldestMakesRoom() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DROP_OLDEST, metrics);
+        assertTrue(queue.offer(first));
+        assertTrue(queue.offer(second));
+        assertTrue(queue.offer(third));
+        assertEquals(2, queue.size());
+        assertSame(second, queue.poll());
+        assertSame(third, queue.poll());
+        assertEquals(1, metrics.droppedMessages.sum());
+    }
+
+    @Test
+    void dropNewestKeepsTheQueue() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DROP_NEWEST, metrics);
+        queue.offer(first);
+        queue.offer(second);
+        assertTrue(queue.offer(third));
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+        assertNull(queue.poll());
+        assertEquals(1, metrics.droppedMessages.sum());
+    }
+
+    @Test
+    void disconnectRefusesWithoutDropping() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DISCONNECT, metrics);
+        queue.offer(first);
+        queue.offer(second);
+        assertFalse(queue.offer(third));
+        assertEquals(2, queue.size());
+        assertEquals(0, metrics.droppedMessages.sum());
+        assertEquals(1, metrics.overflowDisconnects.sum());
+    }
+
+    // A resumable client asks to be disconnected rather than miss messages silently
+    @Test
+    void disconnectOnOverflowOverridesThePolicy() {
+        OutboundQueue queue = new OutboundQueue(1, OutboundQueue.OverflowPolicy.DROP_OLDEST, metrics);
+        queue.disconnectOnOverflow();
+        queue.offer(first);
+        assertFalse(queue.offer(second));
+        assertSame(first, queue.poll());
+    }
+
+    @Test
+    void finishedQueueDrainsAndIgnoresNewMessages() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST, metrics);
+        queue.offer(first);
+        queue.finish();
+        assertTrue(queue.offer(second));
+        assertFalse(queue.isDrained());
+        assertSame(first, queue.take());
+        assertNull(queue.take());
+        assertTrue(queue.isDrained());
+    }
+
+    @Test
+    void pollWithTimeoutReturnsNullWhenNothingArrives() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST, metrics);
+        assertNull(queue.poll(1_000_000));
+        queue.offer(first);
+        assertSame(first, queue.poll(1_000_000));
+    }
+}
@@ -0,0 +1,73 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import protocol.Frames;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PayloadTest {
+    // 20000 names of 64 characters take about 1.3 MB, more than one frame body may hold
+    private static List<String> manyNames() {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            names.add(String.format("%064d", i));
+        }
+        return names;
+    }
+
+    @Test
+    void shortListIsOneFrame() {
+        ByteBuffer frames = Payload.userList(7, List.of("ann", "ben")).buffer(true);
+        assertEquals(Frames.USER_LIST, frames.get() & 0xFF);
+        assertEquals(frames.remaining() - 4, frames.getInt());
+    }
+
+    @Test
+    void longUserListIsSplitIntoFramesThatFit() {
+        List<String> names = manyNames();
+        ByteBuffer frames = Payload.userList(7, names).buffer(true);
+        List<String> received = new ArrayList<>();
+        List<Integer> opcodes = new ArrayList<>();
+        while (frames.hasRemaining()) {
+            opcodes.add(frames.get() & 0xFF);
+            int length = frames.getInt();
+            assertTrue(length <= Frames.MAX_BODY_LENGTH, "body of " + length + " bytes");
+            ByteBuffer body = frames.slice(frames.position(), length);
+            frames.position(frames.position() + length);
+            assertEquals(7, body.getLong());
+            received.addAll(Frames.readList(body));
+        }
+        assertEquals(List.of(Frames.USER_LIST, Frames.USER_LIST_MORE), opcodes);
+        assertEquals(names, received);
+
+        // Text clients have no frame limit and still get one line
+        String line = StandardCharsets.UTF_8.decode(Payload.userList(7, names).buffer(false)).toString();
+        assertEquals("USER_LIST:7:" + String.join(",", names) + "\n", line);
+    }
+
+    @Test
+    void longRoomUserListContinuesWithItsRoom() {
+        List<String> names = manyNames();
+        ByteBuffer frames = Payload.roomUserList("lobby", 3, names).buffer(true);
+        List<String> received = new ArrayList<>();
+        int count = 0;
+        while (frames.hasRemaining()) {
+            assertEquals(count++ == 0 ? Frames.ROOM_USER_LIST : Frames.ROOM_USER_LIST_MORE, frames.get() & 0xFF);
+            int length = frames.getInt();
+            assertTrue(length <= Frames.MAX_BODY_LENGTH);
+            ByteBuffer body = frames.slice(frames.position(), length);
+            frames.position(frames.position() + length);
+            assertEquals("lobby", Frames.readString(body));
+            assertEquals(3, body.getLong());
+            received.addAll(Frames.readList(body));
+        }
+        assertEquals(2, count);
+        assertEquals(names, received);
+    }
+}
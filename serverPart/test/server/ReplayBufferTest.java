@@ -0,0 +1,52 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ReplayBufferTest {
+    private final List<Payload> sent = new ArrayList<>();
+
+    private ReplayBuffer buffer(int capacity, int messages) {
+        ReplayBuffer buffer = new ReplayBuffer(capacity);
+        for (int i = 1; i <= messages; i++) {
+            Payload payload = Payload.message("ann", "m" + i);
+            sent.add(payload);
+            buffer.add(payload);
+        }
+        return buffer;
+    }
+
+    @Test
+    void replaysWhatTheClientMissed() {
+        ReplayBuffer buffer = buffer(4, 3);
+        assertEquals(sent, buffer.after(0));
+        assertEquals(sent.subList(1, 3), buffer.after(1));
+        assertEquals(List.of(), buffer.after(3));
+    }
+
+    @Test
+    void keepsTheLatestAfterWrappingAround() {
+        ReplayBuffer buffer = buffer(4, 10);
+        assertEquals(sent.subList(6, 10), buffer.after(6));
+        assertEquals(sent.subList(8, 10), buffer.after(8));
+    }
+
+    @Test
+    void forgottenMessagesCantBeResumed() {
+        ReplayBuffer buffer = buffer(4, 10);
+        assertNull(buffer.after(5));
+        assertNull(buffer.after(0));
+    }
+
+    @Test
+    void impossibleCountsAreRefused() {
+        ReplayBuffer buffer = buffer(4, 3);
+        assertNull(buffer.after(4)); // More than was sent
+        assertNull(buffer.after(-1));
+    }
+}
@@ -0,0 +1,106 @@
+package server;
+
+import protocol.Frames;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Servers with fake connections, so tests run the real protocol code without sockets
+final class TestServers {
+    // Connection that keeps the text form of everything it is sent
+    static final class RecordingConnection implements Connection {
+        final List<String> lines = new ArrayList<>();
+        boolean binary;
+        boolean closed;
+        volatile boolean queueing; // Sent lines count as queued until drain is called
+        private int drained; // Lines taken off the queue so far
+        int deepest; // Most lines that were queued at once
+
+        @Override
+        public synchronized void send(Payload payload) {
+            String line = StandardCharsets.UTF_8.decode(payload.buffer(false)).toString();
+            lines.add(line.endsWith("\n") ? line.substring(0, line.length() - 1) : line);
+            deepest = Math.max(deepest, queuedMessages());
+        }
+
+        @Override
+        public synchronized int queuedMessages() {
+            return queueing ? lines.size() - drained : 0;
+        }
+
+        synchronized void drain() {
+            drained = lines.size();
+        }
+
+        @Override
+        public void switchToBinary() {
+            binary = true;
+        }
+
+        @Override
+        public void disconnectOnOverflow() {
+        }
+
+        @Override
+        public void enableCompression(Compression compression) {
+        }
+
+        @Override
+        public void closeAfterFlush() {
+            closed = true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        synchronized List<String> lines() {
+            return new ArrayList<>(lines);
+        }
+
+        synchronized String last() {
+            return lines.isEmpty() ? null : lines.get(lines.size() - 1);
+        }
+    }
+
+    private TestServers() {
+    }
+
+    // Server configured with the given name=value settings on top of a minimal configuration, it is never started
+    static Server newServer(Path directory, String... settings) throws IOException {
+        Path config = directory.resolve("server_config.txt");
+        Files.writeString(config, "port=0\nserverName=test\nbannedPhrases=java\n" + String.join("\n", settings) + "\n");
+        return new Server(config.toString());
+    }
+
+    // Log a client in with a text line over a fake connection
+    static Connection.Handler login(Server server, String name, Connection connection) {
+        Connection.Handler handler = server.newClientHandler(connection);
+        handler.onLine(line(name));
+        return handler;
+    }
+
+    // Log a client in with the binary handshake and a LOGIN frame
+    static Connection.Handler loginBinary(Server server, String name, Connection connection) {
+        Connection.Handler handler = server.newClientHandler(connection);
+        handler.onLine(line(Frames.HANDSHAKE));
+        handler.onFrame(Frames.LOGIN, body(new Frames.Builder(Frames.LOGIN).string(name)));
+        return handler;
+    }
+
+    static ByteBuffer line(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // The body of a built frame, as the transport hands it to the handler
+    static ByteBuffer body(Frames.Builder frame) {
+        byte[] bytes = frame.toBytes();
+        return ByteBuffer.wrap(bytes, Frames.HEADER_LENGTH, bytes.length - Frames.HEADER_LENGTH).slice();
+    }
+}
@@ -0,0 +1,77 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+    private static final long MILLIS = 1_000_000;
+
+    @Test
+    void startsFullAndRefusesPastTheBurst() {
+        TokenBucket bucket = new TokenBucket(10, 3);
+        assertTrue(bucket.tryTake(1, 0));
+        assertTrue(bucket.tryTake(1, 0));
+        assertTrue(bucket.tryTake(1, 0));
+        assertFalse(bucket.tryTake(1, 0));
+    }
+
+    @Test
+    void refillsAtTheRate() {
+        TokenBucket bucket = new TokenBucket(10, 1); // One token every 100 ms
+        assertTrue(bucket.tryTake(1, 0));
+        assertFalse(bucket.tryTake(1, 50 * MILLIS));
+        assertTrue(bucket.tryTake(1, 100 * MILLIS));
+        assertFalse(bucket.tryTake(1, 150 * MILLIS));
+    }
+
+    // Idle time beyond a full bucket is not saved up
+    @Test
+    void neverHoldsMoreThanABurst() {
+        TokenBucket bucket = new TokenBucket(10, 2);
+        long later = 10_000 * MILLIS;
+        assertTrue(bucket.tryTake(2, later));
+        assertFalse(bucket.tryTake(1, later));
+    }
+
+    @Test
+    void refusedRequestsTakeNothing() {
+        TokenBucket bucket = new TokenBucket(10, 3);
+        assertTrue(bucket.tryTake(2, 0));
+        assertFalse(bucket.tryTake(2, 0));
+        assertTrue(bucket.tryTake(1, 0));
+    }
+
+    // More than a burst at once goes through on a full bucket and empties it
+    @Test
+    void oversizedRequestTakesAFullBucket() {
+        TokenBucket bucket = new TokenBucket(10, 3);
+        assertTrue(bucket.tryTake(100, 0));
+        assertFalse(bucket.tryTake(1, 0));
+        assertFalse(bucket.tryTake(100, 200 * MILLIS));
+        assertTrue(bucket.tryTake(100, 300 * MILLIS));
+    }
+
+    // System.nanoTime may be negative or wrap, only differences count
+    @Test
+    void worksAcrossNanoTimeWraparound() {
+        TokenBucket bucket = new TokenBucket(10, 1);
+        long now = Long.MAX_VALUE - 50 * MILLIS;
+        assertTrue(bucket.tryTake(1, now));
+        assertFalse(bucket.tryTake(1, now + 50 * MILLIS));
+        assertTrue(bucket.tryTake(1, now + 100 * MILLIS));
+    }
+
+    // Binary INCLUDE frames carry the count, a huge one at a slow rate must not overflow the cost
+    @Test
+    void hugeCountsAtSlowRatesDontOverflow() {
+        TokenBucket bucket = new TokenBucket(0.1, 5);
+        assertTrue(bucket.tryTake(Integer.MAX_VALUE, 0));
+        assertFalse(bucket.tryTake(Integer.MAX_VALUE, 0));
+        assertFalse(bucket.tryTake(1, 0));
+        TokenBucket slowest = new TokenBucket(1e-12, Integer.MAX_VALUE);
+        assertTrue(slowest.tryTake(Long.MAX_VALUE, 0));
+        assertFalse(slowest.tryTake(1, 1_000_000_000L));
+    }
+}